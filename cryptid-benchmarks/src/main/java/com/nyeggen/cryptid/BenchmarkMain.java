@@ -0,0 +1,22 @@
+package com.nyeggen.cryptid;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+//Runs the benchmarks with the usual JMH command line, eg a regex of which to
+//run, -p records=10000 or -prof gc.  Results go to jmh-result.json unless -rf
+//or -rff say otherwise, so runs can be compared over time.
+public class BenchmarkMain {
+	private static final String DEFAULT_RESULT = "jmh-result.json";
+
+	public static void main(String[] args) throws Exception {
+		final CommandLineOptions cli = new CommandLineOptions(args);
+		final OptionsBuilder opts = new OptionsBuilder();
+		opts.parent(cli);
+		if(!cli.getResultFormat().hasValue()) opts.resultFormat(ResultFormatType.JSON);
+		if(!cli.getResult().hasValue()) opts.result(DEFAULT_RESULT);
+		new Runner(opts.build()).run();
+	}
+}
@@ -0,0 +1,157 @@
+package com.nyeggen.cryptid;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nyeggen.cryptid.b2.ContentIndex;
+import com.nyeggen.cryptid.b2.IntrinsicMetadata;
+import com.nyeggen.cryptid.b2.LocalRecord;
+import com.nyeggen.cryptid.b2.NamefileMetadata;
+import com.nyeggen.cryptid.b2.RemoteRecord;
+import com.nyeggen.cryptid.util.Hasher;
+
+//Correlating scanned local files with remote records, as Sync does, against
+//the given number of remote records: building the content index, and looking
+//up a local file by name and then by content.  Half the lookups hit.  10M
+//records need a large heap in the fork, eg -jvmArgs -Xmx12g.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CorrelationBenchmark {
+	private static final int PROBES = 1024;
+	//Files actually on disk, for lookups by content
+	private static final int CONTENT_PROBES = 64;
+
+	@Param({"10000", "1000000", "10000000"})
+	public int records;
+
+	private final Map<String, RemoteRecord> remoteFiles = new ConcurrentHashMap<>();
+	private ContentIndex contentIndex;
+	private LocalRecord[] byName;
+	private LocalRecord[] byContent;
+	private final List<Path> files = new ArrayList<>();
+	private int next = 0;
+
+	//Stands in for attributes read while scanning
+	private static class Attributes implements BasicFileAttributes {
+		private final long size;
+		private final FileTime time;
+
+		Attributes(long size, long millis) {
+			this.size = size;
+			this.time = FileTime.fromMillis(millis);
+		}
+
+		@Override public FileTime lastModifiedTime() { return time; }
+		@Override public FileTime lastAccessTime() { return time; }
+		@Override public FileTime creationTime() { return time; }
+		@Override public boolean isRegularFile() { return true; }
+		@Override public boolean isDirectory() { return false; }
+		@Override public boolean isSymbolicLink() { return false; }
+		@Override public boolean isOther() { return false; }
+		@Override public long size() { return size; }
+		@Override public Object fileKey() { return null; }
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		final Random rand = new Random(1);
+		final long now = System.currentTimeMillis();
+		for(int i = 0; i < records; i++) {
+			final byte[] hash = new byte[Hasher.OUTPUT_LENGTH];
+			rand.nextBytes(hash);
+			final long size = rand.nextInt(1 << 30);
+			final IntrinsicMetadata imd = new IntrinsicMetadata(hash, Hasher.schemeFor(size), size);
+			final NamefileMetadata nmd = new NamefileMetadata(nameOf(i), now - i, imd.getRemoteName());
+			final RemoteRecord rr = new RemoteRecord(imd, nmd);
+			remoteFiles.put(rr.getLocalName(), rr);
+		}
+
+		//Real files whose content is known remotely for even probes, under names
+		//that aren't
+		byContent = new LocalRecord[CONTENT_PROBES];
+		for(int i = 0; i < CONTENT_PROBES; i++) {
+			final Path file = Files.createTempFile("bench", null);
+			files.add(file);
+			final byte[] body = new byte[1024 + i];
+			rand.nextBytes(body);
+			Files.write(file, body);
+			final LocalRecord lr = new LocalRecord(file, Files.readAttributes(file, BasicFileAttributes.class), null);
+			lr.populateHash();
+			byContent[i] = lr;
+			if(i % 2 == 0) {
+				final IntrinsicMetadata imd = new IntrinsicMetadata(lr.getHash(), lr.getHashScheme(), lr.getSize());
+				final RemoteRecord rr = new RemoteRecord(imd, new NamefileMetadata("moved/" + i, now, imd.getRemoteName()));
+				remoteFiles.put(rr.getLocalName(), rr);
+			}
+		}
+		contentIndex = new ContentIndex(remoteFiles.values());
+
+		//Unchanged files for even probes, new ones for odd
+		byName = new LocalRecord[PROBES];
+		for(int i = 0; i < PROBES; i++) {
+			final int n = rand.nextInt(records);
+			final RemoteRecord rr = remoteFiles.get(nameOf(n));
+			final String name = (i % 2 == 0) ? rr.getLocalName() : "new/" + i;
+			byName[i] = new LocalRecord(Paths.get(name), new Attributes(rr.getSize(), rr.getTimestamp()), null);
+		}
+	}
+
+	private static String nameOf(int i) {
+		return "photos/" + (i / 1000) + "/IMG_" + i + ".jpg";
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		for(final Path file : files) Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 2)
+	@Measurement(iterations = 5)
+	public ContentIndex buildIndex() {
+		return new ContentIndex(remoteFiles.values());
+	}
+
+	@Benchmark
+	public boolean matchByName() {
+		final LocalRecord lr = byName[next++ & (PROBES - 1)];
+		final RemoteRecord rr = remoteFiles.get(lr.getLocalName());
+		return rr != null && Sync.identityMatch(lr, rr);
+	}
+
+	//Hashes are already known, as they would be from the hash cache
+	@Benchmark
+	public String matchByContent() throws IOException {
+		return contentIndex.findMatchOrNull(byContent[next++ & (CONTENT_PROBES - 1)]);
+	}
+}
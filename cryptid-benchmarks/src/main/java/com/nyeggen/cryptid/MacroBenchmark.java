@@ -0,0 +1,222 @@
+package com.nyeggen.cryptid;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import com.nyeggen.cryptid.b2.FakeB2Storage;
+
+//Runs a whole sync and restore of a generated corpus against FakeB2Storage,
+//and reports wall time and throughput of each, eg 1M tiny files with
+//-files 1000000 -size 100, or 10 large ones with -files 10 -size 50G -store DIR.
+//The corpus is generated once and reused if its directory isn't empty.
+public class MacroBenchmark {
+	private static final String BUCKET = "bench";
+	private static final char[] PASSPHRASE = "benchmark".toCharArray();
+	//Files per generated directory
+	private static final int FILES_PER_DIR = 1000;
+
+	public static void main(String[] args) throws Exception {
+		Path corpus = null;
+		int files = 1000;
+		long size = 100 * 1024;
+		Path store = null;
+		Path restoreDir = null;
+		long latency = 0;
+		long upBandwidth = 0;
+		long downBandwidth = 0;
+		double errors = 0;
+		int attempts = -1;
+		long backoff = -1;
+		int pageSize = -1;
+		long partSize = -1;
+		int threads = 4;
+		int restoreThreads = 8;
+		boolean pack = false;
+		boolean blocks = false;
+		boolean resync = false;
+
+		for(int i=0; i<args.length; ) {
+			switch(args[i]) {
+			case "-h":
+				System.out.println("-corpus [PATH]      Directory of the corpus, generated if empty. Default a temp directory\n"
+						+ "-files [n]          Files in the corpus\n"
+						+ "-size [n]           Bytes per file, with an optional K, M or G suffix\n"
+						+ "-store [PATH]       Keep remote bodies in this directory rather than memory\n"
+						+ "-restoreTo [PATH]   Restore into this directory. Default a temp directory\n"
+						+ "-latency [ms]       Per request latency\n"
+						+ "-up [n] / -down [n] Bandwidth caps in bytes/s, with an optional suffix\n"
+						+ "-errors [rate]      Chance of each request failing with a 500 or 503\n"
+						+ "-attempts [n]       Tries per request before a failure reaches cryptid\n"
+						+ "-backoff [ms]       Wait before the first retry, doubling after\n"
+						+ "-pageSize [n]       Files per listing page\n"
+						+ "-partSize [n]       Large file part size\n"
+						+ "-threads [n]        Upload parallelism\n"
+						+ "-restoreThreads [n] Restore parallelism\n"
+						+ "-pack / -blocks     As for sync\n"
+						+ "-resync             Time a second sync, with nothing changed");
+				return;
+			case "-corpus": corpus = Paths.get(args[i+1]); i += 2; continue;
+			case "-files": files = Integer.parseInt(args[i+1]); i += 2; continue;
+			case "-size": size = parseSize(args[i+1]); i += 2; continue;
+			case "-store": store = Paths.get(args[i+1]); i += 2; continue;
+			case "-restoreTo": restoreDir = Paths.get(args[i+1]); i += 2; continue;
+			case "-latency": latency = Long.parseLong(args[i+1]); i += 2; continue;
+			case "-up": upBandwidth = parseSize(args[i+1]); i += 2; continue;
+			case "-down": downBandwidth = parseSize(args[i+1]); i += 2; continue;
+			case "-errors": errors = Double.parseDouble(args[i+1]); i += 2; continue;
+			case "-attempts": attempts = Integer.parseInt(args[i+1]); i += 2; continue;
+			case "-backoff": backoff = Long.parseLong(args[i+1]); i += 2; continue;
+			case "-pageSize": pageSize = Integer.parseInt(args[i+1]); i += 2; continue;
+			case "-partSize": partSize = parseSize(args[i+1]); i += 2; continue;
+			case "-threads": threads = Integer.parseInt(args[i+1]); i += 2; continue;
+			case "-restoreThreads": restoreThreads = Integer.parseInt(args[i+1]); i += 2; continue;
+			case "-pack": pack = true; i++; continue;
+			case "-blocks": blocks = true; i++; continue;
+			case "-resync": resync = true; i++; continue;
+			default:
+				throw new IllegalArgumentException("Unknown argument " + args[i]);
+			}
+		}
+
+		if(corpus == null) corpus = Files.createTempDirectory("corpus");
+		if(restoreDir == null) restoreDir = Files.createTempDirectory("restored");
+		corpus = corpus.toAbsolutePath();
+		generate(corpus, files, size);
+		final long corpusBytes = (long)files * size;
+
+		final FakeB2Storage storage = new FakeB2Storage(BUCKET, store);
+		storage.setLatencyMillis(latency);
+		storage.setUploadBandwidth(upBandwidth);
+		storage.setDownloadBandwidth(downBandwidth);
+		storage.setErrorRate(errors);
+		if(attempts > 0 || backoff >= 0) {
+			storage.setRetries((attempts > 0) ? attempts : 5, (backoff >= 0) ? backoff : 1000);
+		}
+		if(pageSize > 0) storage.setPageSize(pageSize);
+		if(partSize > 0) storage.setPartSize(partSize);
+
+		final Stage sync = sync(storage, corpus, threads, pack, blocks);
+		final Stage resynced = resync ? sync(storage, corpus, threads, pack, blocks) : null;
+		final Stage restore = restore(storage, corpus, restoreDir, restoreThreads);
+
+		System.out.println();
+		System.out.println(String.format("Corpus: %d files of %d bytes, %d bytes", files, size, corpusBytes));
+		sync.report("Sync", corpusBytes, files);
+		if(resynced != null) resynced.report("Resync", corpusBytes, files);
+		restore.report("Restore", corpusBytes, files);
+		System.out.println(String.format("Remote: %d files, %d requests, %d faults, %d retries, %d bytes up, %d bytes down",
+				storage.getFileCount(), storage.getRequests(), storage.getFaults(), storage.getRetries(),
+				storage.getBytesUploaded(), storage.getBytesDownloaded()));
+	}
+
+	//Wall time and requests of one timed run
+	private static class Stage {
+		final long nanos;
+		final long requests;
+
+		Stage(long nanos, long requests) {
+			this.nanos = nanos;
+			this.requests = requests;
+		}
+
+		void report(String name, long bytes, int files) {
+			final double seconds = nanos / 1e9;
+			System.out.println(String.format("%s: %.3f s, %.0f bytes/s, %.0f files/s, %d requests",
+					name, seconds, bytes / seconds, files / seconds, requests));
+		}
+	}
+
+	private static Stage sync(FakeB2Storage storage, Path corpus, int threads, boolean pack, boolean blocks) throws Exception {
+		final long requests = storage.getRequests();
+		try(final Sync sync = new Sync(corpus, storage.client(), BUCKET, PASSPHRASE)) {
+			sync.setUploadParallelism(threads);
+			sync.setPacking(pack);
+			sync.setBlockStorage(blocks);
+			final long start = System.nanoTime();
+			sync.run(false);
+			return new Stage(System.nanoTime() - start, storage.getRequests() - requests);
+		}
+	}
+
+	//Restores everything under the corpus into the directory, at the same
+	//relative paths
+	private static Stage restore(FakeB2Storage storage, Path corpus, Path restoreDir, int threads) throws Exception {
+		final long requests = storage.getRequests();
+		try(final Restore restore = new Restore(storage.client(), BUCKET, PASSPHRASE)) {
+			restore.setParallelism(threads);
+			//-restoreTo may be reused from an earlier run
+			restore.setOverwrite(true);
+			final long start = System.nanoTime();
+			restore.restoreByFilter((rr) -> true,
+					(rr) -> restoreDir.resolve(corpus.relativize(Paths.get(rr.getLocalName()))));
+			return new Stage(System.nanoTime() - start, storage.getRequests() - requests);
+		}
+	}
+
+	//Files of random content, so none compress or share chunks, a thousand to
+	//a directory.  Generation isn't timed.
+	private static void generate(Path corpus, int files, long size) throws Exception {
+		Files.createDirectories(corpus);
+		try(final Stream<Path> existing = Files.list(corpus)) {
+			if(existing.findAny().isPresent()) {
+				System.out.println("Using existing corpus in " + corpus);
+				return;
+			}
+		}
+		System.out.println("Generating " + files + " files of " + size + " bytes in " + corpus);
+		final ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			final List<Future<Void>> written = new ArrayList<>();
+			for(int d = 0; d * FILES_PER_DIR < files; d++) {
+				final int dir = d;
+				written.add(pool.submit(() -> {
+					final Path dirPath = Files.createDirectories(corpus.resolve(Integer.toString(dir)));
+					final int last = Math.min(files, (dir + 1) * FILES_PER_DIR);
+					for(int i = dir * FILES_PER_DIR; i < last; i++) {
+						writeRandom(dirPath.resolve(i + ".bin"), size, new SplittableRandom(i));
+					}
+					return null;
+				}));
+			}
+			for(final Future<Void> f : written) f.get();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static void writeRandom(Path file, long size, SplittableRandom rand) throws IOException {
+		final byte[] buf = new byte[(int)Math.min(size, 1 << 20)];
+		try(final OutputStream out = Files.newOutputStream(file)) {
+			for(long left = size; left > 0; ) {
+				final int n = (int)Math.min(left, buf.length);
+				for(int i = 0; i < n; i += 8) {
+					long v = rand.nextLong();
+					for(int j = i; j < Math.min(n, i + 8); j++, v >>>= 8) buf[j] = (byte)v;
+				}
+				out.write(buf, 0, n);
+				left -= n;
+			}
+		}
+	}
+
+	private static long parseSize(String s) {
+		final char unit = Character.toUpperCase(s.charAt(s.length() - 1));
+		final String digits = s.substring(0, s.length() - 1);
+		switch(unit) {
+		case 'K': return Long.parseLong(digits) * 1024;
+		case 'M': return Long.parseLong(digits) * 1024 * 1024;
+		case 'G': return Long.parseLong(digits) * 1024 * 1024 * 1024;
+		default: return Long.parseLong(s);
+		}
+	}
+}
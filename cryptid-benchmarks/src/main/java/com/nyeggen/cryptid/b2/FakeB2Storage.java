@@ -0,0 +1,594 @@
+package com.nyeggen.cryptid.b2;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.backblaze.b2.client.B2ListFilesIterable;
+import com.backblaze.b2.client.B2StorageClient;
+import com.backblaze.b2.client.contentHandlers.B2ContentSink;
+import com.backblaze.b2.client.contentSources.B2ContentSource;
+import com.backblaze.b2.client.exceptions.B2Exception;
+import com.backblaze.b2.client.exceptions.B2InternalErrorException;
+import com.backblaze.b2.client.exceptions.B2NotFoundException;
+import com.backblaze.b2.client.exceptions.B2ServiceUnavailableException;
+import com.backblaze.b2.client.structures.B2Bucket;
+import com.backblaze.b2.client.structures.B2ByteRange;
+import com.backblaze.b2.client.structures.B2DeleteFileVersionRequest;
+import com.backblaze.b2.client.structures.B2DownloadByIdRequest;
+import com.backblaze.b2.client.structures.B2FileVersion;
+import com.backblaze.b2.client.structures.B2ListFileNamesRequest;
+import com.backblaze.b2.client.structures.B2UploadFileRequest;
+import com.backblaze.b2.json.B2Json;
+import com.backblaze.b2.json.B2JsonException;
+
+//An in-process stand-in for one B2 bucket, so that sync and restore can be run
+//end to end without an account.  Bodies are kept in memory or in a directory.
+//Each request waits out a fixed latency, transfers share a bandwidth cap in
+//each direction, listings come a page at a time, large files go up in parts
+//on the caller's executor, and any request may fail with a 500 or 503 at a
+//given rate.  Failed requests are retried with backoff, as the SDK's client
+//does, up to a number of attempts.
+//
+//Only the calls cryptid makes are modelled.  The client is a proxy, so the
+//rest of the SDK's interface needn't be, and any other call fails.  Sinks are
+//given no response headers.
+public class FakeB2Storage {
+	private static final String ACCOUNT_ID = "fakeaccount";
+	private static final String BUCKET_ID = "fakebucket";
+	//B2's own default and largest listing pages
+	private static final int DEFAULT_PAGE_SIZE = 1000;
+	private static final int MAX_PAGE_SIZE = 10000;
+	//B2's recommended part size
+	private static final long DEFAULT_PART_SIZE = 100L * 1000 * 1000;
+	private static final int DEFAULT_ATTEMPTS = 5;
+	private static final long DEFAULT_BACKOFF_MILLIS = 1000;
+	//Bodies are transferred, throttled and kept in memory in pieces this large
+	private static final int PIECE = 64 * 1024;
+
+	private final String bucketName;
+	private final B2Bucket bucket;
+	//Where bodies are kept, or null for memory
+	private final Path dir;
+
+	private volatile long latencyMillis = 0;
+	private volatile Throttle uploadThrottle = new Throttle(0);
+	private volatile Throttle downloadThrottle = new Throttle(0);
+	private volatile double errorRate = 0;
+	private volatile int attempts = DEFAULT_ATTEMPTS;
+	private volatile long backoffMillis = DEFAULT_BACKOFF_MILLIS;
+	private volatile int pageSize = DEFAULT_PAGE_SIZE;
+	private volatile long partSize = DEFAULT_PART_SIZE;
+
+	//Versions of each file, newest first.  Guarded by itself.
+	private final NavigableMap<String, Deque<Stored>> byName = new TreeMap<>();
+	private final Map<String, Stored> byId = new ConcurrentHashMap<>();
+	//Large files started but not finished, by ID
+	private final Map<String, Stored> unfinished = new ConcurrentHashMap<>();
+	private final AtomicLong nextId = new AtomicLong(0);
+
+	private final AtomicLong requests = new AtomicLong(0);
+	private final AtomicLong faults = new AtomicLong(0);
+	private final AtomicLong retries = new AtomicLong(0);
+	private final AtomicLong bytesUploaded = new AtomicLong(0);
+	private final AtomicLong bytesDownloaded = new AtomicLong(0);
+
+	//Bodies in memory
+	public FakeB2Storage(String bucketName) {
+		this(bucketName, null);
+	}
+
+	//Bodies in files under the directory, for corpora larger than memory
+	public FakeB2Storage(String bucketName, Path dir) {
+		this.bucketName = bucketName;
+		this.dir = dir;
+		try {
+			this.bucket = B2Json.get().fromJson("{\"accountId\": \"" + ACCOUNT_ID + "\", "
+					+ "\"bucketId\": \"" + BUCKET_ID + "\", "
+					+ "\"bucketName\": \"" + bucketName + "\", "
+					+ "\"bucketType\": \"allPrivate\", \"bucketInfo\": {}, \"corsRules\": [], "
+					+ "\"lifecycleRules\": [], \"options\": [], \"revision\": 1}", B2Bucket.class);
+		} catch(B2JsonException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	public void setLatencyMillis(long millis) { this.latencyMillis = millis; }
+	//Bytes per second shared by all transfers in that direction, 0 for no cap
+	public void setUploadBandwidth(long bytesPerSecond) { this.uploadThrottle = new Throttle(bytesPerSecond); }
+	public void setDownloadBandwidth(long bytesPerSecond) { this.downloadThrottle = new Throttle(bytesPerSecond); }
+	//Chance of each request failing with a 500 or 503
+	public void setErrorRate(double rate) { this.errorRate = rate; }
+	//Tries per request, and the wait before the first retry, doubling after
+	public void setRetries(int attempts, long backoffMillis) {
+		if(attempts < 1) throw new IllegalArgumentException("At least one attempt is needed");
+		this.attempts = attempts;
+		this.backoffMillis = backoffMillis;
+	}
+	//Files per listing page, unless the request asks for some other count
+	public void setPageSize(int n) { this.pageSize = n; }
+	public void setPartSize(long bytes) { this.partSize = bytes; }
+
+	public long getRequests() { return requests.get(); }
+	public long getFaults() { return faults.get(); }
+	public long getRetries() { return retries.get(); }
+	public long getBytesUploaded() { return bytesUploaded.get(); }
+	public long getBytesDownloaded() { return bytesDownloaded.get(); }
+	public int getFileCount() { return byId.size(); }
+
+	//A client against this bucket.  Closing it does nothing, so several can be
+	//used in turn.
+	public B2StorageClient client() {
+		return (B2StorageClient)Proxy.newProxyInstance(B2StorageClient.class.getClassLoader(),
+				new Class<?>[] {B2StorageClient.class},
+				(proxy, method, args) -> {
+					switch(method.getName()) {
+					case "toString": return "FakeB2Storage(" + bucketName + ")";
+					case "hashCode": return System.identityHashCode(proxy);
+					case "equals": return proxy == args[0];
+					default: return invoke(method, (args == null) ? new Object[0] : args);
+					}
+				});
+	}
+
+	private Object invoke(Method method, Object[] args) throws B2Exception {
+		switch(method.getName()) {
+		case "close":
+			return null;
+		case "getBucketOrNullByName":
+			return request(() -> bucketName.equals(args[0]) ? bucket : null);
+		case "uploadSmallFile":
+			return uploadSmallFile((B2UploadFileRequest)args[0]);
+		case "uploadLargeFile":
+			if(args.length == 2 && args[0] instanceof B2UploadFileRequest && args[1] instanceof ExecutorService) {
+				return uploadLargeFile((B2UploadFileRequest)args[0], (ExecutorService)args[1]);
+			}
+			break;
+		case "finishUploadingLargeFile":
+			return finishLargeFile((B2FileVersion)args[0], (B2UploadFileRequest)args[1], (ExecutorService)args[2]);
+		case "fileNames":
+			if(args[0] instanceof String) return list(null, null, null);
+			final B2ListFileNamesRequest req = (B2ListFileNamesRequest)args[0];
+			return list(req.getPrefix(), req.getStartFileName(), req.getMaxFileCount());
+		case "unfinishedLargeFiles":
+			return listUnfinished();
+		case "downloadById":
+			if(args[0] instanceof String) {
+				download(() -> byId.get(args[0]), null, (B2ContentSink)args[1]);
+			} else {
+				final B2DownloadByIdRequest byIdReq = (B2DownloadByIdRequest)args[0];
+				download(() -> byId.get(byIdReq.getFileId()), byIdReq.getRange(), (B2ContentSink)args[1]);
+			}
+			return null;
+		case "downloadByName":
+			if(args.length == 3 && args[2] instanceof B2ContentSink) {
+				download(() -> latest((String)args[1]), null, (B2ContentSink)args[2]);
+				return null;
+			}
+			break;
+		case "deleteFileVersion":
+			if(args[0] instanceof B2FileVersion) {
+				final B2FileVersion b2fv = (B2FileVersion)args[0];
+				delete(b2fv.getFileName(), b2fv.getFileId());
+			} else if(args[0] instanceof B2DeleteFileVersionRequest) {
+				final B2DeleteFileVersionRequest del = (B2DeleteFileVersionRequest)args[0];
+				delete(del.getFileName(), del.getFileId());
+			} else {
+				delete((String)args[0], (String)args[1]);
+			}
+			return null;
+		default:
+			break;
+		}
+		throw new UnsupportedOperationException(method.getName() + " isn't modelled by the fake");
+	}
+
+	private interface Call<T> {
+		public T call() throws B2Exception, IOException;
+	}
+
+	//One API request: waits out the latency, then either fails or runs the call.
+	//Failures are retried after a backoff until out of attempts.
+	private <T> T request(Call<T> call) throws B2Exception {
+		long backoff = backoffMillis;
+		for(int attempt = 1; ; attempt++) {
+			requests.incrementAndGet();
+			pause(latencyMillis);
+			if(errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+				faults.incrementAndGet();
+				if(attempt < attempts) {
+					retries.incrementAndGet();
+					pause(backoff);
+					backoff *= 2;
+					continue;
+				}
+				throw ThreadLocalRandom.current().nextBoolean()
+						? new B2InternalErrorException("internal_error", null, "Injected fault")
+						: new B2ServiceUnavailableException("service_unavailable", null, "Injected fault");
+			}
+			try {
+				return call.call();
+			} catch(IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+	}
+
+	private static void pause(long millis) {
+		if(millis <= 0) return;
+		try {
+			Thread.sleep(millis);
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new UncheckedIOException(new InterruptedIOException());
+		}
+	}
+
+	private static B2NotFoundException notFound(String what) {
+		return new B2NotFoundException("not_found", null, what + " not found");
+	}
+
+	private B2FileVersion uploadSmallFile(B2UploadFileRequest req) throws B2Exception {
+		return request(() -> {
+			final B2ContentSource src = req.getContentSource();
+			final Stored s = new Stored(req.getFileName(), req.getFileInfo(), src.getContentLength());
+			try(final InputStream in = src.createInputStream()) {
+				s.write(0, in, s.length);
+			} catch(IOException | RuntimeException ex) {
+				s.delete();
+				throw ex;
+			}
+			publish(s);
+			return s.version("upload");
+		});
+	}
+
+	private B2FileVersion uploadLargeFile(B2UploadFileRequest req, ExecutorService executor) throws B2Exception {
+		final Stored s = request(() -> {
+			final Stored started = new Stored(req.getFileName(), req.getFileInfo(), req.getContentSource().getContentLength());
+			unfinished.put(started.id, started);
+			return started;
+		});
+		return uploadParts(s, req, executor);
+	}
+
+	private B2FileVersion finishLargeFile(B2FileVersion started, B2UploadFileRequest req, ExecutorService executor) throws B2Exception {
+		final Stored s = unfinished.get(started.getFileId());
+		if(s == null) throw notFound("Unfinished large file " + started.getFileId());
+		return uploadParts(s, req, executor);
+	}
+
+	//Uploads the parts not yet uploaded, each on the executor and each reading
+	//the content from the start, then finishes the file.  If a part fails the
+	//file is left unfinished, with the parts that made it.
+	private B2FileVersion uploadParts(Stored s, B2UploadFileRequest req, ExecutorService executor) throws B2Exception {
+		final B2ContentSource src = req.getContentSource();
+		final long size = partSize;
+		final int parts = (int)Math.max(1, (s.length + size - 1) / size);
+		final List<Future<Void>> uploads = new ArrayList<>();
+		for(int part = 0; part < parts; part++) {
+			if(s.parts.contains(part)) continue;
+			final int n = part;
+			final long offset = n * size;
+			final long length = Math.min(size, s.length - offset);
+			uploads.add(executor.submit(() -> request(() -> {
+				try(final InputStream in = src.createInputStream()) {
+					skipFully(in, offset);
+					s.write(offset, in, length);
+				}
+				s.parts.add(n);
+				return null;
+			})));
+		}
+		try {
+			for(final Future<Void> f : uploads) f.get();
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new UncheckedIOException(new InterruptedIOException());
+		} catch(ExecutionException ex) {
+			for(final Future<Void> f : uploads) f.cancel(true);
+			final Throwable cause = ex.getCause();
+			if(cause instanceof B2Exception) throw (B2Exception)cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new RuntimeException(cause);
+		}
+		return request(() -> {
+			if(unfinished.remove(s.id) == null) throw notFound("Unfinished large file " + s.id);
+			publish(s);
+			return s.version("upload");
+		});
+	}
+
+	private static void skipFully(InputStream in, long n) throws IOException {
+		while(n > 0) {
+			final long skipped = in.skip(n);
+			if(skipped > 0) {
+				n -= skipped;
+			} else {
+				if(in.read() == -1) throw new IOException("Content shorter than its length");
+				n--;
+			}
+		}
+	}
+
+	private void publish(Stored s) {
+		byId.put(s.id, s);
+		synchronized(byName) {
+			byName.computeIfAbsent(s.name, (k) -> new ArrayDeque<>()).addFirst(s);
+		}
+	}
+
+	private Stored latest(String name) {
+		synchronized(byName) {
+			final Deque<Stored> versions = byName.get(name);
+			return (versions == null) ? null : versions.peekFirst();
+		}
+	}
+
+	private void delete(String name, String id) throws B2Exception {
+		request(() -> {
+			Stored s = unfinished.remove(id);
+			if(s == null) {
+				s = byId.remove(id);
+				if(s == null || !s.name.equals(name)) throw notFound("File version " + name + " " + id);
+				synchronized(byName) {
+					final Deque<Stored> versions = byName.get(name);
+					versions.remove(s);
+					if(versions.isEmpty()) byName.remove(name);
+				}
+			}
+			s.delete();
+			return null;
+		});
+	}
+
+	private interface Lookup {
+		public Stored find();
+	}
+
+	//The range's end is inclusive, and clamped to the body as B2 does
+	private void download(Lookup lookup, B2ByteRange range, B2ContentSink sink) throws B2Exception {
+		request(() -> {
+			final Stored s = lookup.find();
+			if(s == null) throw notFound("File");
+			final long start = (range == null) ? 0 : range.getStart();
+			final Long end = (range == null) ? null : range.getEnd();
+			final long last = (end == null) ? s.length - 1 : Math.min(end, s.length - 1);
+			if(range != null && start > last) {
+				throw new B2Exception("range_not_satisfiable", 416, null, "Range outside " + s.name);
+			}
+			try(final InputStream in = s.open(start, last - start + 1)) {
+				sink.readContent(null, in);
+			}
+			return null;
+		});
+	}
+
+	//Newest version of each name in order, a page per request.  Iterators fail
+	//with an unchecked exception if a page does, as the SDK's do.
+	private B2ListFilesIterable list(String prefix, String startName, Integer maxCount) {
+		final int count = (maxCount == null) ? pageSize : Math.min(maxCount, MAX_PAGE_SIZE);
+		return () -> new Iterator<B2FileVersion>() {
+			private String from = max(startName, prefix);
+			private boolean exhausted = false;
+			private Iterator<B2FileVersion> page = Collections.emptyIterator();
+
+			@Override
+			public boolean hasNext() {
+				while(!page.hasNext() && !exhausted) fetch();
+				return page.hasNext();
+			}
+
+			@Override
+			public B2FileVersion next() {
+				if(!hasNext()) throw new NoSuchElementException();
+				return page.next();
+			}
+
+			private void fetch() {
+				try {
+					page = request(() -> {
+						final List<B2FileVersion> out = new ArrayList<>(count);
+						synchronized(byName) {
+							final Iterator<Map.Entry<String, Deque<Stored>>> it = byName.tailMap(from, true).entrySet().iterator();
+							while(out.size() < count && it.hasNext()) {
+								final Map.Entry<String, Deque<Stored>> e = it.next();
+								if(prefix != null && !e.getKey().startsWith(prefix)) break;
+								out.add(e.getValue().peekFirst().version("upload"));
+							}
+							final String next = out.isEmpty() ? null : byName.higherKey(out.get(out.size() - 1).getFileName());
+							exhausted = (next == null) || out.size() < count || (prefix != null && !next.startsWith(prefix));
+							from = next;
+						}
+						return out.iterator();
+					});
+				} catch(B2Exception ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		};
+	}
+
+	private static String max(String a, String b) {
+		if(a == null) return (b == null) ? "" : b;
+		if(b == null) return a;
+		return (a.compareTo(b) >= 0) ? a : b;
+	}
+
+	private B2ListFilesIterable listUnfinished() throws B2Exception {
+		final List<B2FileVersion> out = request(() -> {
+			final List<B2FileVersion> started = new ArrayList<>();
+			for(final Stored s : unfinished.values()) started.add(s.version("start"));
+			return started;
+		});
+		return () -> out.iterator();
+	}
+
+	//Shares a rate among all transfers in one direction
+	private static class Throttle {
+		//0 for no cap
+		private final double nanosPerByte;
+		private long next = 0;
+
+		Throttle(long bytesPerSecond) {
+			this.nanosPerByte = (bytesPerSecond <= 0) ? 0 : 1e9 / bytesPerSecond;
+		}
+
+		//Waits until the bytes can have gone at the rate, after those before them
+		void take(int bytes) {
+			if(nanosPerByte == 0) return;
+			final long until;
+			synchronized(this) {
+				next = Math.max(next, System.nanoTime()) + (long)(bytes * nanosPerByte);
+				until = next;
+			}
+			final long wait = until - System.nanoTime();
+			if(wait > 0) {
+				try {
+					Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+				} catch(InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new UncheckedIOException(new InterruptedIOException());
+				}
+			}
+		}
+	}
+
+	//A body as downloaded: limited to its range, throttled and counted
+	private class Download extends FilterInputStream {
+		private long remaining;
+
+		Download(InputStream in, long length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(remaining <= 0) return -1;
+			final int n = in.read(b, off, (int)Math.min(Math.min(len, PIECE), remaining));
+			if(n <= 0) return n;
+			remaining -= n;
+			downloadThrottle.take(n);
+			bytesDownloaded.addAndGet(n);
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			final byte[] b = new byte[(int)Math.min(n, PIECE)];
+			final int read = read(b, 0, b.length);
+			return Math.max(0, read);
+		}
+	}
+
+	//One file version, or large file in progress
+	private class Stored {
+		final String id = "fake_" + nextId.incrementAndGet();
+		final String name;
+		final Map<String, String> info;
+		final long length;
+		final long timestamp = System.currentTimeMillis();
+		//Large file parts uploaded so far
+		final Set<Integer> parts = ConcurrentHashMap.newKeySet();
+		//In memory, by offset
+		final NavigableMap<Long, byte[]> pieces;
+		final Path file;
+
+		Stored(String name, Map<String, String> info, long length) throws IOException {
+			this.name = name;
+			this.info = (info == null) ? Collections.emptyMap() : info;
+			this.length = length;
+			this.pieces = (dir == null) ? new ConcurrentSkipListMap<>() : null;
+			this.file = (dir == null) ? null : Files.createFile(dir.resolve(id));
+		}
+
+		B2FileVersion version(String action) {
+			return new B2FileVersion(id, name, length, "application/octet-stream", null, info, action, timestamp);
+		}
+
+		//Stores length bytes read from the stream at the offset, throttled and counted
+		void write(long offset, InputStream in, long length) throws IOException {
+			final FileChannel fc = (file == null) ? null : FileChannel.open(file, StandardOpenOption.WRITE);
+			try {
+				final byte[] buf = new byte[PIECE];
+				for(long done = 0; done < length; ) {
+					final int want = (int)Math.min(PIECE, length - done);
+					final int n = in.readNBytes(buf, 0, want);
+					if(n < want) throw new IOException("Content shorter than its length");
+					uploadThrottle.take(n);
+					bytesUploaded.addAndGet(n);
+					if(fc == null) {
+						pieces.put(offset + done, java.util.Arrays.copyOf(buf, n));
+					} else {
+						final ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+						long position = offset + done;
+						while(bb.hasRemaining()) position += fc.write(bb, position);
+					}
+					done += n;
+				}
+				if(offset + length == this.length && in.read() != -1) throw new IOException("Content longer than its length");
+			} finally {
+				if(fc != null) fc.close();
+			}
+		}
+
+		InputStream open(long start, long length) throws IOException {
+			if(file != null) {
+				final FileChannel fc = FileChannel.open(file, StandardOpenOption.READ);
+				fc.position(start);
+				return new Download(Channels.newInputStream(fc), length);
+			}
+			final List<InputStream> slices = new ArrayList<>();
+			final Long first = pieces.floorKey(start);
+			for(final Map.Entry<Long, byte[]> e : pieces.tailMap((first == null) ? start : first, true).entrySet()) {
+				final long pieceStart = e.getKey();
+				if(pieceStart >= start + length) break;
+				final int from = (int)Math.max(0, start - pieceStart);
+				slices.add(new ByteArrayInputStream(e.getValue(), from, e.getValue().length - from));
+			}
+			return new Download(new SequenceInputStream(Collections.enumeration(slices)), length);
+		}
+
+		void delete() throws IOException {
+			if(file != null) Files.deleteIfExists(file);
+			else pieces.clear();
+		}
+	}
+}
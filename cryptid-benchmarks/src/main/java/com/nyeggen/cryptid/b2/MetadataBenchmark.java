@@ -0,0 +1,147 @@
+package com.nyeggen.cryptid.b2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.backblaze.b2.client.B2StorageClient;
+import com.backblaze.b2.client.contentHandlers.B2ContentSink;
+import com.backblaze.b2.client.exceptions.B2Exception;
+import com.backblaze.b2.client.structures.B2FileVersion;
+import com.nyeggen.cryptid.util.Hasher;
+import com.nyeggen.cryptid.util.KeyfileCrypter;
+
+//Encoding and decoding of remote metadata: intrinsic file info, as decrypted
+//for every object in a listing; name segments, as read at the start of every
+//run; and the manifest.  Segments and manifests have the given record count.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataBenchmark {
+	@Param({"4096", "100000"})
+	public int records;
+
+	private KeyfileCrypter crypt;
+	private IntrinsicMetadata intrinsic;
+	private B2FileVersion intrinsicVersion;
+	private NameSegmentBuilder segment;
+	private NameSegmentMetadata uploadedSegment;
+	private B2StorageClient segmentClient;
+	private Manifest manifest;
+	private byte[] manifestBytes;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, B2Exception {
+		crypt = new KeyfileCrypter("benchmark".toCharArray());
+		final Random rand = new Random(1);
+
+		intrinsic = new IntrinsicMetadata(randomHash(rand), Hasher.SCHEME_FLAT, 12345);
+		intrinsicVersion = new B2FileVersion("id", intrinsic.getRemoteName(), 12345, "application/octet-stream",
+				null, intrinsic.mdForUpload(crypt), "upload", 0);
+
+		manifest = Manifest.fromListing(Collections.emptyList(), crypt, 1);
+		segment = new NameSegmentBuilder();
+		for(int i = 0; i < records; i++) {
+			final IntrinsicMetadata imd = new IntrinsicMetadata(randomHash(rand), Hasher.SCHEME_FLAT, rand.nextInt(1 << 20));
+			final NamefileMetadata nmd = new NamefileMetadata("photos/2018/" + i + ".jpg", System.currentTimeMillis(), imd.getRemoteName());
+			nmd.setContentHash(imd.getHash(), imd.getHashScheme());
+			imd.setRemoteID("intrinsic" + i);
+			nmd.setRemoteID("name" + i);
+			segment.add(nmd);
+			manifest.addIntrinsic(imd);
+			manifest.addNamefile(nmd);
+		}
+		final byte[] segmentBytes = uploadBytes(segment);
+		uploadedSegment = new NameSegmentMetadata(segment.getRemoteName(), "id", 0);
+		segmentClient = servingOnly(segmentBytes);
+		manifestBytes = writeManifest();
+	}
+
+	private static byte[] randomHash(Random rand) {
+		final byte[] out = new byte[Hasher.OUTPUT_LENGTH];
+		rand.nextBytes(out);
+		return out;
+	}
+
+	private byte[] uploadBytes(NameSegmentBuilder builder) throws IOException, B2Exception {
+		try(final InputStream in = builder.toUpload(crypt, "bucket").getContentSource().createInputStream()) {
+			return in.readAllBytes();
+		}
+	}
+
+	private byte[] writeManifest() throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		manifest.writeTo(out);
+		return out.toByteArray();
+	}
+
+	//A client that answers every download with the given bytes, so decoding is
+	//measured without the network
+	private static B2StorageClient servingOnly(byte[] body) {
+		return (B2StorageClient)Proxy.newProxyInstance(B2StorageClient.class.getClassLoader(),
+				new Class<?>[] {B2StorageClient.class},
+				(proxy, method, args) -> {
+					if(!method.getName().equals("downloadById") || !(args[1] instanceof B2ContentSink)) {
+						throw new UnsupportedOperationException(method.getName());
+					}
+					((B2ContentSink)args[1]).readContent(null, new ByteArrayInputStream(body));
+					return null;
+				});
+	}
+
+	@Benchmark
+	public Map<String, String> intrinsicEncode() throws IOException {
+		return intrinsic.mdForUpload(crypt);
+	}
+
+	@Benchmark
+	public IntrinsicMetadata intrinsicDecode() {
+		return IntrinsicMetadata.fromB2FileVersion(intrinsicVersion, crypt);
+	}
+
+	//Namefiles are only ever written as segment entries now, so this stands in
+	//for namefile encoding
+	@Benchmark
+	public byte[] segmentEncode() throws IOException, B2Exception {
+		return uploadBytes(segment);
+	}
+
+	@Benchmark
+	public List<NamefileMetadata> segmentDecode() throws IOException, B2Exception {
+		return new ArrayList<>(uploadedSegment.download(segmentClient, crypt).names);
+	}
+
+	@Benchmark
+	public byte[] manifestEncode() throws IOException {
+		return writeManifest();
+	}
+
+	@Benchmark
+	public Manifest manifestDecode() throws IOException {
+		return Manifest.readFrom(new ByteArrayInputStream(manifestBytes), "id");
+	}
+}
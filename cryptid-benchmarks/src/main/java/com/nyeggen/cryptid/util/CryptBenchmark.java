@@ -0,0 +1,111 @@
+package com.nyeggen.cryptid.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//Encryption and decryption of buffers, as for metadata and small bodies, and of
+//files, as for bodies encrypted to temp files, by size.  Throughput is the
+//benchmark's rate times the size.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptBenchmark {
+	@Param({"1024", "65536", "1048576", "67108864"})
+	public int size;
+
+	private KeyfileCrypter crypt;
+	private byte[] plain;
+	private byte[] encrypted;
+	private byte[] segmented;
+	private Path plainFile;
+	private Path encryptedFile;
+	private Path decryptedFile;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		crypt = new KeyfileCrypter("benchmark".toCharArray());
+		plain = new byte[size];
+		new Random(1).nextBytes(plain);
+		encrypted = crypt.encrypt(plain);
+		segmented = crypt.encryptSegmented(plain, 0, plain.length);
+		plainFile = Files.createTempFile("bench", null);
+		Files.write(plainFile, plain);
+		encryptedFile = crypt.encryptFileToTemp(plainFile);
+		decryptedFile = Files.createTempFile("bench", null);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(plainFile);
+		Files.deleteIfExists(encryptedFile);
+		Files.deleteIfExists(decryptedFile);
+	}
+
+	@Benchmark
+	public byte[] encrypt() {
+		return crypt.encrypt(plain);
+	}
+
+	@Benchmark
+	public byte[] decrypt() {
+		return crypt.decrypt(encrypted);
+	}
+
+	@Benchmark
+	public byte[] encryptSegmented() throws IOException {
+		return crypt.encryptSegmented(plain, 0, plain.length);
+	}
+
+	@Benchmark
+	public int decryptSegmented() throws IOException {
+		final CountingSink out = new CountingSink();
+		crypt.decryptStream(new java.io.ByteArrayInputStream(segmented), out);
+		return out.count;
+	}
+
+	@Benchmark
+	public long encryptFileToTemp() throws IOException {
+		final Path out = crypt.encryptFileToTemp(plainFile);
+		try {
+			return Files.size(out);
+		} finally {
+			Files.delete(out);
+		}
+	}
+
+	@Benchmark
+	public long decryptFile() throws IOException {
+		crypt.decryptFile(encryptedFile, decryptedFile);
+		return Files.size(decryptedFile);
+	}
+
+	//Discards the output, so only decryption is measured
+	private static class CountingSink extends java.io.OutputStream {
+		int count = 0;
+
+		@Override
+		public void write(int b) { count++; }
+		@Override
+		public void write(byte[] b, int off, int len) { count += len; }
+	}
+}
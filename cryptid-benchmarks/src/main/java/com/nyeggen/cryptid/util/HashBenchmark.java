@@ -0,0 +1,70 @@
+package com.nyeggen.cryptid.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//Content hashing of files under both schemes, by size.  The file stays in the
+//page cache, so this is hashing rather than disk speed.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashBenchmark {
+	@Param({"1024", "1048576", "67108864", "268435456"})
+	public long size;
+
+	private Path file;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		file = Files.createTempFile("bench", null);
+		final Random rand = new Random(1);
+		final byte[] buf = new byte[1 << 20];
+		try(final java.io.OutputStream out = Files.newOutputStream(file)) {
+			for(long left = size; left > 0; left -= buf.length) {
+				rand.nextBytes(buf);
+				out.write(buf, 0, (int)Math.min(left, buf.length));
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public byte[] flat() throws IOException {
+		return Hasher.hash(file, Hasher.SCHEME_FLAT);
+	}
+
+	@Benchmark
+	public byte[] tree() throws IOException {
+		return Hasher.hash(file, Hasher.SCHEME_TREE);
+	}
+
+	//Whichever of the two a file this size would be hashed with
+	@Benchmark
+	public byte[] chosen() throws IOException {
+		return Hasher.hash(file, Hasher.schemeFor(size));
+	}
+}
@@ -2,6 +2,7 @@ package com.nyeggen.cryptid;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Paths;
 import java.util.Properties;
 
 public class Config {
@@ -15,7 +16,9 @@ public class Config {
 	private final String defaultBucket;
 	private final String defaultPassphrase;
 	private final int defaultParallelism;
+	private final int defaultMaxParallelism;
 	private final boolean defaultSkipRenames;
+	private final String defaultStateDir;
 	
 	public static void load() {
 		load(DEFAULT_CONFIG_LOC);
@@ -38,7 +41,9 @@ public class Config {
 	public String getDefaultBucket() { return defaultBucket; }
 	public String getDefaultPassphrase() { return defaultPassphrase; }
 	public int getDefaultParallelism() { return defaultParallelism; }
+	public int getDefaultMaxParallelism() { return defaultMaxParallelism; }
 	public boolean getDefaultSkipRenames() { return defaultSkipRenames; }
+	public String getDefaultStateDir() { return defaultStateDir; }
 
 	private Config(String targ){
 		final Properties properties = new Properties();
@@ -53,7 +58,13 @@ public class Config {
 			defaultPassphrase = properties.getProperty("DEFAULT_PASSPHRASE", null);
 			String parallelism = properties.getProperty("DEFAULT_PARALLELISM", "1");
 			defaultParallelism = Integer.parseInt(parallelism);
+			//Unset means fixed parallelism
+			String maxParallelism = properties.getProperty("DEFAULT_MAX_PARALLELISM", parallelism);
+			defaultMaxParallelism = Integer.parseInt(maxParallelism);
 			defaultSkipRenames = Boolean.valueOf(properties.getProperty("DEFAULT_SKIP_RENAMES", null));
+			//Local state such as the hash cache lives here
+			defaultStateDir = properties.getProperty("DEFAULT_STATE_DIR",
+					Paths.get(System.getProperty("user.home"), ".cryptid").toString());
 		} catch(IOException ex) {
 			throw new RuntimeException(ex);
 		}
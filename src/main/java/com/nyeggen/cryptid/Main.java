@@ -13,8 +13,16 @@ public class Main {
 		String applicationID = null;
 		boolean deleteOrphans = false;
 		int nThreads = -1;
+		int maxThreads = -1;
 		char[] newPassphrase = null;
 		Boolean skipRenames = null;
+		String stateDir = null;
+		int scanThreads = -1;
+		int cryptThreads = -1;
+		boolean tempEncrypt = false;
+		boolean blocks = false;
+		boolean pack = false;
+		boolean compress = false;
 
 		//Manually incrementing
 		for(int i=0; i<args.length; ) {
@@ -36,8 +44,24 @@ public class Main {
 				System.out.println("This config file will be used to load default settings\n");
 				System.out.println("-threads [n]");
 				System.out.println("This many threads will upload files in parallel. Default 2.\n");
+				System.out.println("-maxThreads [n]");
+				System.out.println("Upload parallelism adapts to measured throughput, between -threads and this many.\n");
 				System.out.println("-newPW [PASSWORD]");
 				System.out.println("Password on keyfile will be changed to this and uploaded\n");
+				System.out.println("-scanThreads [n]");
+				System.out.println("This many threads will scan the local filesystem in parallel. Default is the number of cores.\n");
+				System.out.println("-stateDir [PATH]");
+				System.out.println("Local directory for the hash cache and other persistent state. Default ~/.cryptid\n");
+				System.out.println("-cryptThreads [n]");
+				System.out.println("Segments of a large file are encrypted on this many threads at once. Default is the number of cores.\n");
+				System.out.println("-tempEncrypt");
+				System.out.println("Encrypt each file to a temp file before uploading it, rather than while uploading. Needs free temp space as large as the largest file.\n");
+				System.out.println("-compress");
+				System.out.println("Compress files before encrypting them, unless a sample of the file doesn't compress. Compressed files are encrypted to a temp file before uploading.\n");
+				System.out.println("-blocks");
+				System.out.println("Store files of 64MB and up as content defined chunks, uploading only chunks not already stored. Suits large files changed in place, like VM images and database dumps.\n");
+				System.out.println("-pack");
+				System.out.println("Store files of 256KB and under together in packs of about 32MB, rather than one object each. With -delete, packs mostly of deleted files are repacked.\n");
 				i++; 
 				continue;
 			}
@@ -76,11 +100,51 @@ public class Main {
 				i+=2;
 				continue;
 			}
+			if(args[i].equals("-maxThreads")) {
+				maxThreads = Integer.parseInt(args[i+1]);
+				i+=2;
+				continue;
+			}
 			if(args[i].equals("-newPW")) {
 				newPassphrase = args[i+1].toCharArray();
 				i+=2;
 				continue;
 			}
+			if(args[i].equals("-scanThreads")) {
+				scanThreads = Integer.parseInt(args[i+1]);
+				i+=2;
+				continue;
+			}
+			if(args[i].equals("-stateDir")) {
+				stateDir = args[i+1];
+				i+=2;
+				continue;
+			}
+			if(args[i].equals("-cryptThreads")) {
+				cryptThreads = Integer.parseInt(args[i+1]);
+				i+=2;
+				continue;
+			}
+			if(args[i].equals("-tempEncrypt")) {
+				tempEncrypt = true;
+				i++;
+				continue;
+			}
+			if(args[i].equals("-compress")) {
+				compress = true;
+				i++;
+				continue;
+			}
+			if(args[i].equals("-blocks")) {
+				blocks = true;
+				i++;
+				continue;
+			}
+			if(args[i].equals("-pack")) {
+				pack = true;
+				i++;
+				continue;
+			}
 			if(args[i].equals("-skipRenames")) {
 				skipRenames = true;
 				i++;
@@ -97,7 +161,9 @@ public class Main {
 		if(applicationID == null) applicationID = Config.getInstance().getApplicationKey();
 		if(accountID == null) accountID = Config.getInstance().getAccountID();
 		if(nThreads == -1) nThreads = Config.getInstance().getDefaultParallelism();
+		if(maxThreads == -1) maxThreads = Config.getInstance().getDefaultMaxParallelism();
 		if(skipRenames == null) skipRenames = Config.getInstance().getDefaultSkipRenames();
+		if(stateDir == null) stateDir = Config.getInstance().getDefaultStateDir();
 		
 		System.out.println("Initiating sync");
 		try (final Sync sync = new Sync(
@@ -106,8 +172,16 @@ public class Main {
 				passphrase,
 				accountID,
 				applicationID);) {
-			sync.setUploadParallelism(nThreads);
+			if(maxThreads > nThreads) sync.setUploadParallelism(nThreads, maxThreads);
+			else sync.setUploadParallelism(nThreads);
 			sync.setSkipRenames(skipRenames);
+			sync.setTempEncryption(tempEncrypt);
+			sync.setBlockStorage(blocks);
+			sync.setPacking(pack);
+			sync.setCompression(compress);
+			if(cryptThreads > 0) sync.setEncryptionParallelism(cryptThreads);
+			sync.setStateDir(Paths.get(stateDir));
+			if(scanThreads > 0) sync.setScanParallelism(scanThreads);
 			if(newPassphrase != null) {
 				sync.uploadKeyfileWithPassphrase(newPassphrase);
 			}
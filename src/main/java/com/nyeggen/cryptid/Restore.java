@@ -1,31 +1,55 @@
 package com.nyeggen.cryptid;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
-import com.backblaze.b2.client.B2ListFilesIterable;
 import com.backblaze.b2.client.B2StorageClient;
 import com.backblaze.b2.client.contentHandlers.B2ContentSink;
 import com.backblaze.b2.client.contentSources.B2Headers;
 import com.backblaze.b2.client.exceptions.B2Exception;
+import com.backblaze.b2.client.structures.B2ByteRange;
+import com.backblaze.b2.client.structures.B2DownloadByIdRequest;
 import com.backblaze.b2.client.structures.B2FileVersion;
 import com.backblaze.b2.client.webApiHttpClient.B2StorageHttpClientBuilder;
+import com.nyeggen.cryptid.b2.Catalog;
+import com.nyeggen.cryptid.b2.ChunkList;
 import com.nyeggen.cryptid.b2.IntrinsicMetadata;
-import com.nyeggen.cryptid.b2.NamefileMetadata;
+import com.nyeggen.cryptid.b2.Manifest;
+import com.nyeggen.cryptid.b2.MeteredClient;
+import com.nyeggen.cryptid.b2.PackMetadata;
 import com.nyeggen.cryptid.b2.RemoteRecord;
+import com.nyeggen.cryptid.util.Chunker;
 import com.nyeggen.cryptid.util.KeyfileCrypter;
+import com.nyeggen.cryptid.util.Metrics;
+import com.nyeggen.cryptid.util.MetricsReporter;
+import com.nyeggen.cryptid.util.SegmentedCrypter;
 
 public class Restore implements AutoCloseable {
 	private static final String USER_AGENT = "java";
@@ -34,13 +58,36 @@ public class Restore implements AutoCloseable {
 	private final KeyfileCrypter crypt;
 	private final String bucketId;
 	private final String bucketName;
+	//Bodies at least this large are downloaded as several ranges at once, as one
+	//connection can't fill a fast link
+	private static final long RANGED_MIN_SIZE = 64L * 1024 * 1024;
+	//Segments per ranged request, 16MB at the default segment size
+	private static final int RANGE_SEGMENTS = 16;
+	//Files restored at once, and ranges of large files downloaded at once
+	private int parallelism = 8;
+	//Created per restoreByFilter(); restoreRemoteFile() doesn't use ranges
+	private ExecutorService rangePool = null;
+	//Counts and timings, reported while restoreByFilter() runs.  Requests are
+	//timed by the client wrapper, files here, with plaintext counted as written.
+	private final Metrics metrics = new Metrics("restore");
+	private final Metrics.Stage fileStage = metrics.stage("file");
+	//Local directory for the catalog, or null to load the remote state each time
+	private Path stateDir = null;
+	//Replace files already at the destination, rather than failing those restores
+	private boolean overwrite = false;
 	
 	public Restore(String bucketName, char[] passphrase, String accountID, String applicationID) {
-		this.bucketName = bucketName;
-		this.client = B2StorageHttpClientBuilder.builder(
+		this(B2StorageHttpClientBuilder.builder(
 				accountID,
 				applicationID,
-				USER_AGENT).build();
+				USER_AGENT).build(), bucketName, passphrase);
+	}
+	
+	//Against the given client, eg a stand-in for benchmarks.  It's closed along
+	//with this.
+	public Restore(B2StorageClient client, String bucketName, char[] passphrase) {
+		this.bucketName = bucketName;
+		this.client = MeteredClient.wrap(client, metrics);
 		try {
 			this.bucketId = client.getBucketOrNullByName(bucketName).getBucketId();		
 
@@ -65,74 +112,308 @@ public class Restore implements AutoCloseable {
 	public void close() throws Exception {
 		client.close();
 	}
+	
+	public void setParallelism(int n) {
+		if(n < 1) throw new IllegalArgumentException("Parallelism must be at least 1");
+		this.parallelism = n;
+	}
 
-	private B2ContentSink decryptionSink(Path out) {
-		return (B2Headers responseHeaders, InputStream in) -> {
-			Path tempEncrypted = Files.createTempFile(null, null);
-			Path tempDecrypted = Files.createTempFile(null, null);
-			try(final OutputStream os = Files.newOutputStream(tempEncrypted, StandardOpenOption.WRITE)){
-				in.transferTo(os);
-			}
-			crypt.decryptFile(tempEncrypted, tempDecrypted);
-			Files.move(tempDecrypted, out);
-			
-			Files.delete(tempEncrypted);
-		};
+	public void setStateDir(Path dir) {
+		this.stateDir = dir;
 	}
 	
-	//All remote records are correlated; if they pass the filter (eg a regex match on the name,
-	//a date condition, etc) the locator function is used to determine the location they are then
-	//restored to.
-	public void restoreByFilter(Predicate<RemoteRecord> filter, Function<RemoteRecord, Path> locator) throws IOException, B2Exception {
-		final Map<String, IntrinsicMetadata> imd = new HashMap<>();
-		final Collection<NamefileMetadata> nfmd = new ArrayList<>();
+	public void setOverwrite(boolean overwrite) {
+		this.overwrite = overwrite;
+	}
+	
+	public Metrics getMetrics() { return metrics; }
+
+	private interface ContentWriter {
+		public void write(OutputStream os) throws IOException, B2Exception;
+	}
+	
+	private interface ChannelWriter {
+		public void write(FileChannel fc) throws IOException, B2Exception;
+	}
+	
+	//Counts into the file stage's bytes as it's written
+	private class CountingOutputStream extends FilterOutputStream {
+		public CountingOutputStream(OutputStream out) { super(out); }
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			fileStage.add(1);
+		}
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			fileStage.add(len);
+		}
+	}
+	
+	private void writeInPlace(Path out, ContentWriter writer) throws IOException, B2Exception {
+		writeChannelInPlace(out, (FileChannel fc) -> {
+			final OutputStream os = new CountingOutputStream(new BufferedOutputStream(Channels.newOutputStream(fc), 1024 * 1024));
+			writer.write(os);
+			os.flush();
+		});
+	}
+	
+	//Writes into a temp file next to the destination, which is moved into place
+	//once the whole file has been written and authenticated.  A failed or
+	//tampered download never appears under the real name.  An existing file is
+	//only replaced with overwrite set; otherwise the restore fails, before
+	//downloading anything if it's there from the start.
+	private void writeChannelInPlace(Path out, ChannelWriter writer) throws IOException, B2Exception {
+		final Path absOut = out.toAbsolutePath();
+		if(!overwrite && Files.exists(absOut, LinkOption.NOFOLLOW_LINKS)) throw new FileAlreadyExistsException(absOut.toString());
+		Files.createDirectories(absOut.getParent());
+		final Path partial = Files.createTempFile(absOut.getParent(), "." + absOut.getFileName(), ".partial");
+		boolean done = false;
 		try {
-			System.out.println("Scanning remote files");
-			int i = 0;
-			final B2ListFilesIterable remoteIt = client.fileNames(bucketId);
-			for(B2FileVersion b2fv : remoteIt) {
-				if(++i % 1000 == 0) System.out.println(i + " remote files scanned");
+			try(final FileChannel fc = FileChannel.open(partial, StandardOpenOption.WRITE)){
+				writer.write(fc);
+			}
+			if(!overwrite) {
+				//Fails if something appeared there meanwhile
+				Files.move(partial, absOut);
+			} else {
 				try {
-					if (b2fv.getFileName().equals(KEYFILE_NAME)) {
-						//Do nothing.  This is your keyfile, pulled earlier.
-					} else if(IntrinsicMetadata.isIntrinsicMDName(b2fv)) {
-						IntrinsicMetadata md = IntrinsicMetadata.fromB2FileVersion(b2fv, crypt);
-						imd.put(md.getRemoteName(), md);
-					} else if(NamefileMetadata.isNamefileMDName(b2fv)) {
-						NamefileMetadata md = NamefileMetadata.fromB2FileVersion(b2fv, crypt);
-						nfmd.add(md);
-					} else {
-						//The checks above are already complementary, so currently this
-						//should never get reached; we will get an exception trying
-						//to convert.
-						throw new IllegalStateException();
-					}
-				} catch(Exception ex) {
-					//Incompatible file, presumably
-					System.out.println("incompatible file: " + b2fv.getFileName());	
-				}; 
+					Files.move(partial, absOut, StandardCopyOption.ATOMIC_MOVE);
+				} catch(AtomicMoveNotSupportedException ex) {
+					Files.move(partial, absOut, StandardCopyOption.REPLACE_EXISTING);
+				}
 			}
-			System.out.println(i + " files found remotely");
-		} catch(B2Exception ex) {
-			throw new RuntimeException(ex);
+			done = true;
+		} finally {
+			if(!done) Files.deleteIfExists(partial);
 		}
-		
-		//Correlate remote intrinsic & namefile to gen complete remote records
-		int i = 0;
-		for(final NamefileMetadata namefile : nfmd) {
-			//If we have multiple namefiles, they're all treated as valid
-			final IntrinsicMetadata intrinsic = imd.get(namefile.getAssociatedIntrinsicFile());
-			if(intrinsic != null) {
-				final RemoteRecord rr = new RemoteRecord(intrinsic, namefile);
-				if(filter.test(rr)) {
-					i++;
-					final Path restoreTo = locator.apply(rr);
-					System.out.println("Resotring " + rr.getIntrinsicMDRemoteName() + " to " + restoreTo.toString());
-					client.downloadById(rr.getIntrinsicMD().getRemoteID(), decryptionSink(restoreTo));
+	}
+	
+	private B2ContentSink decryptionSink(Path out) {
+		return (B2Headers responseHeaders, InputStream in) -> writeInPlace(out, (os) -> crypt.decryptStream(in, os));
+	}
+	
+	//Downloads the chunks of a body stored in blocks, in order.  Each is checked
+	//against the ID it's listed under, since any chunk would authenticate, and
+	//the total against the size.
+	private void restoreChunked(IntrinsicMetadata md, Path out) throws IOException, B2Exception {
+		final ChunkList chunks = (md.getChunks() != null) ? md.getChunks()
+				: ChunkList.download(client, md.getRemoteID(), crypt);
+		if(chunks.getTotalSize() != md.getSize()) throw new IOException("Chunk list doesn't match size of " + md.getRemoteName());
+		writeInPlace(out, (os) -> {
+			final ByteArrayOutputStream plain = new ByteArrayOutputStream(Chunker.MAX_SIZE);
+			for(final ChunkList.Entry e : chunks.getEntries()) {
+				plain.reset();
+				client.downloadByName(bucketName, e.getRemoteName(), (B2Headers responseHeaders, InputStream in) -> {
+					crypt.decryptStream(in, plain);
+				});
+				final byte[] b = plain.toByteArray();
+				if(b.length != e.getLength() || !Arrays.equals(crypt.chunkId(b, 0, b.length), e.getId())) {
+					throw new IOException("Chunk " + e.getRemoteName() + " doesn't match its ID");
+				}
+				os.write(b);
+			}
+		});
+	}
+	
+	//Downloads a segmented body as several ranges at once, each of whole segments,
+	//so each decrypts on its own and is written at its own offset in the file,
+	//which is sized up front.  Legacy bodies don't mark where their chunks start,
+	//and compressed segments' offsets are only found by reading through them, so
+	//those are downloaded whole as usual.
+	private void restoreRanged(IntrinsicMetadata md, Path out) throws IOException, B2Exception {
+		final byte[] header = new byte[SegmentedCrypter.HEADER_LENGTH];
+		final AtomicInteger headerRead = new AtomicInteger(0);
+		client.downloadById(rangeRequest(md, 0, header.length - 1), (B2Headers responseHeaders, InputStream in) -> {
+			headerRead.set(in.readNBytes(header, 0, header.length));
+		});
+		if(!SegmentedCrypter.isMagic(header, headerRead.get()) || KeyfileCrypter.isCompressedHeader(header)) {
+			client.downloadById(md.getRemoteID(), decryptionSink(out));
+			return;
+		}
+		final SegmentedCrypter.FileContext ctx = crypt.segmentContext(header);
+		final long size = md.getSize();
+		final long segments = ctx.segmentCount(size);
+		writeChannelInPlace(out, (FileChannel fc) -> {
+			if(size > 0) fc.write(ByteBuffer.allocate(1), size - 1);
+			final List<Future<Void>> ranges = new ArrayList<>();
+			for(long first = 0; first < segments; first += RANGE_SEGMENTS) {
+				final long from = first;
+				final long to = Math.min(segments, first + RANGE_SEGMENTS);
+				ranges.add(rangePool.submit(() -> {
+					restoreRange(md, ctx, fc, from, to);
+					return null;
+				}));
+			}
+			awaitAll(ranges);
+			fc.force(false);
+		});
+	}
+	
+	//Downloads segments [from, to) and writes them decrypted into place.  The last
+	//range asks for a byte past the expected end, so that a body longer than the
+	//manifest says fails rather than having its tail ignored.
+	private void restoreRange(IntrinsicMetadata md, SegmentedCrypter.FileContext ctx, FileChannel fc, long from, long to) throws IOException, B2Exception {
+		final long size = md.getSize();
+		final long segments = ctx.segmentCount(size);
+		final int segmentSize = ctx.getSegmentSize();
+		final int segmentOut = segmentSize + SegmentedCrypter.TAG_LENGTH;
+		final long start = SegmentedCrypter.HEADER_LENGTH + from * segmentOut;
+		final long end = (to == segments) ? ctx.encryptedLength(size) : SegmentedCrypter.HEADER_LENGTH + to * segmentOut - 1;
+		client.downloadById(rangeRequest(md, start, end), (B2Headers responseHeaders, InputStream in) -> {
+			final byte[] buf = new byte[segmentOut];
+			final byte[] plain = new byte[segmentOut];
+			for(long index = from; index < to; index++) {
+				final boolean last = index == segments - 1;
+				final int len = last ? (int)(size - index * segmentSize) + SegmentedCrypter.TAG_LENGTH : segmentOut;
+				if(in.readNBytes(buf, 0, len) < len) throw new IOException("Truncated encrypted stream");
+				final int n = ctx.decryptSegment(index, last, buf, 0, len, plain, 0);
+				final ByteBuffer bb = ByteBuffer.wrap(plain, 0, n);
+				long position = index * segmentSize;
+				while(bb.hasRemaining()) position += fc.write(bb, position);
+				fileStage.add(n);
+			}
+			if(to == segments && in.read() != -1) throw new IOException("Encrypted body longer than expected");
+		});
+	}
+	
+	private static B2DownloadByIdRequest rangeRequest(IntrinsicMetadata md, long start, long end) {
+		return B2DownloadByIdRequest.builder(md.getRemoteID())
+				.setRange(B2ByteRange.between(start, end))
+				.build();
+	}
+	
+	//Waits for all, failing with the first failure, and cancels any left
+	private static void awaitAll(List<? extends Future<?>> futures) throws IOException, B2Exception {
+		try {
+			for(final Future<?> f : futures) f.get();
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch(ExecutionException ex) {
+			final Throwable cause = ex.getCause();
+			if(cause instanceof IOException) throw (IOException)cause;
+			if(cause instanceof B2Exception) throw (B2Exception)cause;
+			throw new RuntimeException(cause);
+		} finally {
+			for(final Future<?> f : futures) f.cancel(true);
+		}
+	}
+	
+	//Downloads just the segments of the pack the body is in, and checks it
+	//against the pack's bounds first, since the pack's length is authenticated
+	//along with its content
+	private void restorePacked(Catalog catalog, IntrinsicMetadata md, Path out) throws IOException, B2Exception {
+		final PackMetadata pack = catalog.getPack(md.getPack());
+		if(pack == null) throw new IOException("Pack " + md.getPack() + " of " + md.getRemoteName() + " not found");
+		if(md.getPackOffset() + md.getSize() > pack.getDataLength()) {
+			throw new IOException(md.getRemoteName() + " lies outside pack " + pack.getRemoteName());
+		}
+		final byte[] b = pack.read(client, crypt, md.getPackOffset(), (int)md.getSize());
+		writeInPlace(out, (os) -> os.write(b));
+	}
+	
+	private void restore(Catalog catalog, IntrinsicMetadata md, Path out) throws IOException, B2Exception {
+		if(md.isPacked()) restorePacked(catalog, md, out);
+		else if(md.isChunked()) restoreChunked(md, out);
+		else if(md.getSize() >= RANGED_MIN_SIZE) restoreRanged(md, out);
+		else client.downloadById(md.getRemoteID(), decryptionSink(out));
+	}
+	
+	//Uses the local catalog if it's a copy of the current remote manifest,
+	//otherwise the manifest if there's a usable one, saving it as the catalog,
+	//otherwise lists the whole bucket.  Finding the manifest's file ID is a single
+	//listing request, so with a current catalog nothing else is fetched.
+	private Catalog loadCatalog() throws B2Exception, IOException {
+		final B2FileVersion remoteManifest = Manifest.findRemoteOrNull(client, bucketId);
+		final Path catalogDir = (stateDir == null) ? null : stateDir.resolve(bucketName);
+		if(remoteManifest != null) {
+			if(catalogDir != null) {
+				final Catalog cached = Catalog.loadOrNull(catalogDir, crypt);
+				if(cached != null && remoteManifest.getFileId().equals(cached.getManifestId())) {
+					System.out.println("Using catalog generation " + cached.getGeneration() + ", " + cached.size() + " remote records");
+					return cached;
 				}
 			}
+			System.out.println("Loading manifest");
+			final Manifest loaded = Manifest.download(client, remoteManifest, crypt);
+			if(loaded != null) {
+				System.out.println("Loaded manifest generation " + loaded.getGeneration() + ", " + loaded.size() + " remote files");
+				final Catalog catalog = Catalog.of(loaded, remoteManifest.getFileId());
+				if(catalogDir != null) catalog.save(catalogDir, crypt);
+				return catalog;
+			}
+		}
+		//Without a manifest there's nothing to tell whether a catalog is current,
+		//so the listing isn't saved as one
+		System.out.println("Scanning remote files");
+		final Manifest listed = Manifest.fromListing(client.fileNames(bucketId), crypt, 0);
+		listed.readIndexes(client, crypt);
+		return Catalog.of(listed, null);
+	}
+	
+	//Remote records whose local name starts with the prefix, from the catalog
+	public Collection<RemoteRecord> listByPrefix(String prefix) throws IOException, B2Exception {
+		return loadCatalog().getRecordsWithPrefix(prefix);
+	}
+	
+	//Remote records are correlated, or taken from the catalog; if they pass the filter (eg a regex
+	//match on the name, a date condition, etc) the locator function is used to determine the
+	//location they are then restored to.  Of several records under one local name, the newest is
+	//restored.
+	public void restoreByFilter(Predicate<RemoteRecord> filter, Function<RemoteRecord, Path> locator) throws IOException, B2Exception {
+		final Catalog catalog = loadCatalog();
+		final List<RemoteRecord> matched = new ArrayList<>();
+		for(final RemoteRecord rr : catalog.getRecords()) {
+			if(filter.test(rr)) matched.add(rr);
+		}
+		restoreAll(catalog, matched, locator);
+	}
+	
+	//As above, for the records under a prefix, eg a directory's path and separator, found
+	//without going through the rest
+	public void restoreByPrefix(String prefix, Function<RemoteRecord, Path> locator) throws IOException, B2Exception {
+		final Catalog catalog = loadCatalog();
+		restoreAll(catalog, new ArrayList<>(catalog.getRecordsWithPrefix(prefix)), locator);
+	}
+	
+	//Several are restored at once, with progress reported periodically, and also
+	//written as JSON if there's a state directory; one that fails is reported and
+	//the rest carry on
+	private void restoreAll(Catalog catalog, List<RemoteRecord> matched, Function<RemoteRecord, Path> locator) throws IOException, B2Exception {
+		System.out.println(matched.size() + " remote records to restore, " + parallelism + " at a time");
+		final ExecutorService filePool = Executors.newFixedThreadPool(parallelism);
+		rangePool = Executors.newFixedThreadPool(parallelism);
+		final AtomicInteger restored = new AtomicInteger(0);
+		final AtomicInteger failed = new AtomicInteger(0);
+		final Path metricsFile = (stateDir == null) ? null : stateDir.resolve(bucketName).resolve("restore-metrics.json");
+		metrics.gauge("files.remaining", () -> matched.size() - restored.get() - failed.get());
+		try(final MetricsReporter reporter = MetricsReporter.start(metrics, metricsFile)) {
+			final List<Future<?>> restores = new ArrayList<>();
+			for(final RemoteRecord rr : matched) {
+				final IntrinsicMetadata intrinsic = rr.getIntrinsicMD();
+				final Path restoreTo = locator.apply(rr);
+				restores.add(filePool.submit(() -> {
+					final long start = fileStage.start();
+					try {
+						restore(catalog, intrinsic, restoreTo);
+						fileStage.finish(start);
+						restored.incrementAndGet();
+					} catch(IOException | B2Exception | RuntimeException ex) {
+						fileStage.fail(start);
+						System.out.println("Failed to restore " + restoreTo + ": " + ex);
+						failed.incrementAndGet();
+					}
+				}));
+			}
+			awaitAll(restores);
+		} finally {
+			filePool.shutdownNow();
+			rangePool.shutdownNow();
 		}
-		System.out.println(i + " remote records restored");
+		System.out.println(restored.get() + " of " + matched.size() + " files restored");
+		if(failed.get() > 0) System.out.println(failed.get() + " remote records failed to restore");
 	}
 	
 	public void restoreRemoteFile(String remoteName, String localOut) throws IOException, B2Exception {
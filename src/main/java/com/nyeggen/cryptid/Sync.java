@@ -3,21 +3,31 @@ package com.nyeggen.cryptid;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.FileVisitResult;
-import java.nio.file.FileVisitor;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
-import com.backblaze.b2.client.B2ListFilesIterable;
 import com.backblaze.b2.client.B2StorageClient;
 import com.backblaze.b2.client.contentHandlers.B2ContentSink;
 import com.backblaze.b2.client.contentSources.B2ByteArrayContentSource;
@@ -25,21 +35,93 @@ import com.backblaze.b2.client.contentSources.B2ContentTypes;
 import com.backblaze.b2.client.contentSources.B2Headers;
 import com.backblaze.b2.client.exceptions.B2Exception;
 import com.backblaze.b2.client.exceptions.B2NotFoundException;
-import com.backblaze.b2.client.structures.B2DeleteFileVersionRequest;
 import com.backblaze.b2.client.structures.B2FileVersion;
 import com.backblaze.b2.client.structures.B2UploadFileRequest;
 import com.backblaze.b2.client.webApiHttpClient.B2StorageHttpClientBuilder;
 import com.nyeggen.cryptid.b2.B2Deletable;
+import com.nyeggen.cryptid.b2.Catalog;
+import com.nyeggen.cryptid.b2.ChunkList;
+import com.nyeggen.cryptid.b2.ChunkMetadata;
+import com.nyeggen.cryptid.b2.ContentIndex;
 import com.nyeggen.cryptid.b2.IntrinsicMetadata;
 import com.nyeggen.cryptid.b2.LocalRecord;
+import com.nyeggen.cryptid.b2.Manifest;
+import com.nyeggen.cryptid.b2.MeteredClient;
+import com.nyeggen.cryptid.b2.NameSegmentBuilder;
+import com.nyeggen.cryptid.b2.NameSegmentMetadata;
 import com.nyeggen.cryptid.b2.NamefileMetadata;
+import com.nyeggen.cryptid.b2.PackBuilder;
+import com.nyeggen.cryptid.b2.PackMetadata;
 import com.nyeggen.cryptid.b2.RemoteRecord;
+import com.nyeggen.cryptid.b2.SyncJournal;
+import com.nyeggen.cryptid.b2.UploadJournal;
 import com.nyeggen.cryptid.b2.UploadPair;
+import com.nyeggen.cryptid.util.Channel;
+import com.nyeggen.cryptid.util.Chunker;
+import com.nyeggen.cryptid.util.Compression;
+import com.nyeggen.cryptid.util.ConcurrencyController;
+import com.nyeggen.cryptid.util.HashCache;
+import com.nyeggen.cryptid.util.Hasher;
 import com.nyeggen.cryptid.util.KeyfileCrypter;
+import com.nyeggen.cryptid.util.Metrics;
+import com.nyeggen.cryptid.util.MetricsReporter;
+import com.nyeggen.cryptid.util.ParallelFileWalker;
+import com.nyeggen.cryptid.util.PipelineStage;
+import com.nyeggen.cryptid.util.WindowedPriorityQueue;
 
 public class Sync implements AutoCloseable {
-	//IE, 500M bytes.  Above this, we use the B2 "large file" API
+	//Upload ready to go, between the encrypt and upload stages
+	private static class PreparedUpload {
+		static final PreparedUpload POISON = new PreparedUpload(null, null, false, false);
+		final UploadPair pair;
+		final B2UploadFileRequest body;
+		//Body is stored in blocks, so its request is only built once they're uploaded
+		final boolean chunked;
+		//Body goes into a pack, uploaded with others once the pack is full
+		final boolean packed;
+		
+		PreparedUpload(UploadPair pair, B2UploadFileRequest body, boolean chunked, boolean packed) {
+			this.pair = pair;
+			this.body = body;
+			this.chunked = chunked;
+			this.packed = packed;
+		}
+	}
+	
+	//Pack being filled, and the uploads whose bodies are in it, waiting on it
+	//for their names
+	private static class PendingPack {
+		final PackBuilder builder = new PackBuilder();
+		final List<UploadPair> pairs = new ArrayList<>();
+	}
+	
+	//IE, 500M bytes.  Above this, we use the B2 "large file" API, until we've
+	//measured throughput to choose the limit from
 	private static final long LARGE_FILE_SIZE_LIMIT = 500000000;
+	//Bounds on the measured limit: large files need at least two parts of B2's
+	//recommended 100MB, and single uploads can be at most 5GB
+	private static final long MIN_LARGE_FILE_SIZE = 200000000;
+	private static final long MAX_SMALL_FILE_SIZE = 5000000000L;
+	//Single uploads expected to take longer than this use the large file API,
+	//whose parts go up in parallel and survive a dropped connection
+	private static final long LARGE_FILE_SECONDS = 60;
+
+	//In block storage mode, smaller bodies are still uploaded whole.  Few small
+	//files share much with other versions, and each chunk costs a request.
+	private static final long BLOCK_STORAGE_MIN_SIZE = 64 * 1024 * 1024;
+	
+	//In pack mode, bodies up to this size are packed rather than uploaded alone,
+	//into packs of about PACK_SIZE.  Packs less than half live are repacked.
+	private static final long PACK_MAX_FILE_SIZE = 256 * 1024;
+	private static final long PACK_SIZE = 32 * 1024 * 1024;
+	
+	//Names and tombstones per name segment.  Segments are compacted when under
+	//half their records are live names, or there are this many more than needed.
+	private static final int SEGMENT_RECORDS = 4096;
+	private static final int SEGMENT_SLACK = 8;
+	
+	//Scanned files waiting to upload.  Past this, scanning waits for uploads.
+	private static final int UPLOAD_WINDOW = 100000;
 
 	private static final String USER_AGENT = "java";
 	private static final String KEYFILE_NAME = "KEYFILE";
@@ -47,31 +129,99 @@ public class Sync implements AutoCloseable {
 	private final B2StorageClient client;
 	private final KeyfileCrypter crypt;
 	private final String bucketId;
+	private final String bucketName;
 	private final Path baseDir;
 	
 	//Maps from the remote file name of the MD to the record, initially
-	//filled and reduced over time
-	private final Map<String, B2Deletable> toDelete = new HashMap<>();
-	//Ordered smallest uploads first
-	private final PriorityBlockingQueue<UploadPair> uploads = new PriorityBlockingQueue<UploadPair>(16);
+	//filled and reduced over time.  Concurrent, since the local scan is.
+	private final Map<String, B2Deletable> toDelete = new ConcurrentHashMap<>();
+	//Ordered smallest uploads first, among the next UPLOAD_WINDOW to be uploaded
+	private final WindowedPriorityQueue<UploadPair> uploads = new WindowedPriorityQueue<UploadPair>(UPLOAD_WINDOW);
 	//Map from the putative local name to the record
-	private final Map<String, RemoteRecord> remoteFiles = new HashMap<>();
+	private final Map<String, RemoteRecord> remoteFiles = new ConcurrentHashMap<>();
+	//Remote content by size and hash, built once remote records are correlated
+	private ContentIndex contentIndex = null;
 	//Total number of local files currently scanned
 	private final AtomicInteger totalCounter = new AtomicInteger(0);
+	//Counts and timings of the run, reported as it goes by run().  Requests are
+	//timed by the client wrapper; files through each pipeline stage here.
+	private final Metrics metrics = new Metrics("sync");
+	private final Metrics.Stage scanStage = metrics.stage("scan");
+	private final Metrics.Stage hashStage = metrics.stage("hash");
+	private final Metrics.Stage encryptStage = metrics.stage("encrypt");
+	private final Metrics.Stage fileStage = metrics.stage("file");
+	//Chunks of chunked bodies, and those of them not already stored
+	private final LongAdder chunksSeen = metrics.counter("chunks.seen");
+	private final LongAdder chunkBytesSeen = metrics.counter("chunks.seenBytes");
+	private final LongAdder chunksNew = metrics.counter("chunks.new");
+	private final LongAdder chunkBytesNew = metrics.counter("chunks.newBytes");
+	private final LongAdder segmentsUploaded = metrics.counter("nameSegments.uploaded");
+	private final LongAdder segmentRecords = metrics.counter("nameSegments.records");
+	private final LongAdder packsUploaded = metrics.counter("packs.uploaded");
+	private final LongAdder packedFiles = metrics.counter("packs.files");
 	//This is out default parallelism for how many files we attempt to upload at once
-	//To saturate bandwidth, many small files require more threads and vice versa
-	private int uploadParallelism = 2;
+	//To saturate bandwidth, many small files require more threads and vice versa,
+	//so given a range, the controller adjusts within it as the run goes
+	private int minUploadParallelism = 2;
+	private int maxUploadParallelism = 2;
+	private ConcurrencyController uploadController = null;
+	//Threads each hashing and encrypting files ahead of the uploaders
+	private int prepareParallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
 	//This thread pool is passed to B2 for their internal parallelism when uploading large files
 	private final ExecutorService pool = Executors.newFixedThreadPool(4);
+	//Threads walking the local filesystem.  Walking is latency bound, so on network
+	//filesystems more threads than cores can help.
+	private int scanParallelism = Runtime.getRuntime().availableProcessors();
 	//Don't upload pure renames, only new content
 	private boolean skipRenames = true;
+	//Encrypt each body to a temp file before uploading, rather than as it's read
+	private boolean tempEncryption = false;
+	//Compress bodies that sample as compressible before encrypting them
+	private boolean compression = false;
+	//Store large bodies as content defined chunks, uploading only those not
+	//already stored
+	private boolean blockStorage = false;
+	private Chunker chunker = null;
+	//Uploads each chunk is stored by or being stored by, by remote name.  Files
+	//sharing a chunk wait on the one upload, and a failed upload is removed so
+	//the next file to need the chunk tries again.
+	private final Map<String, CompletableFuture<Void>> chunkUploads = new ConcurrentHashMap<>();
+	//Chunks of a single body uploaded at once; created in run() if needed
+	private ExecutorService chunkPool = null;
+	//Pack small bodies together, and the pack being filled, if any
+	private boolean packing = false;
+	private final Object packLock = new Object();
+	private PendingPack openPack = null;
+	//Name segment being filled, if any
+	private final Object nameLock = new Object();
+	private NameSegmentBuilder openSegment = null;
+	//Large uploads in progress, under the state directory, or null without one
+	private UploadJournal journal = null;
+	//Unfinished large files remotely, by name, that an upload might resume
+	private final Map<String, B2FileVersion> unfinished = new ConcurrentHashMap<>();
+	//Remote changes made this run, under the state directory, or null without one
+	private SyncJournal syncJournal = null;
+	//Local directory for persistent state such as the hash cache, or null for none
+	private Path stateDir = null;
+	//Hashes of local files from previous runs, opened at the start of run()
+	private HashCache hashCache = null;
+	//Every remote object, kept up to date as we upload and delete, and uploaded
+	//at the end of the run for the next one to start from
+	private Manifest manifest = null;
 
 	public Sync(Path localBaseDir, String bucketName, char[] passphrase, String accountID, String applicationID) throws B2Exception {
-		this.client = B2StorageHttpClientBuilder.builder(
+		this(localBaseDir, B2StorageHttpClientBuilder.builder(
 				accountID,
 				applicationID,
-				USER_AGENT).build();
+				USER_AGENT).build(), bucketName, passphrase);
+	}
+	
+	//Against the given client, eg a stand-in for benchmarks.  It's closed along
+	//with this.
+	public Sync(Path localBaseDir, B2StorageClient client, String bucketName, char[] passphrase) throws B2Exception {
+		this.client = MeteredClient.wrap(client, metrics);
 		this.baseDir = localBaseDir;
+		this.bucketName = bucketName;
 		this.bucketId = client.getBucketOrNullByName(bucketName).getBucketId();
 		
 		//Try to download keyfile if exists
@@ -112,8 +262,48 @@ public class Sync implements AutoCloseable {
 		this.skipRenames = v;
 	}
 	
+	public void setTempEncryption(boolean v) {
+		this.tempEncryption = v;
+	}
+	
+	public void setCompression(boolean v) {
+		this.compression = v;
+	}
+	
+	public void setBlockStorage(boolean v) {
+		this.blockStorage = v;
+	}
+	
+	public void setPacking(boolean v) {
+		this.packing = v;
+	}
+	
+	//Cores encrypting the segments of each large file, default all of them
+	public void setEncryptionParallelism(int n) {
+		crypt.setEncryptionParallelism(n);
+	}
+	
 	public void setUploadParallelism(int n) {
-		this.uploadParallelism = n;
+		setUploadParallelism(n, n);
+	}
+	
+	//Adaptive between the two
+	public void setUploadParallelism(int min, int max) {
+		this.minUploadParallelism = min;
+		this.maxUploadParallelism = max;
+	}
+	
+	//Current upload concurrency decision, or null before run()
+	public ConcurrencyController getUploadController() {
+		return uploadController;
+	}
+	
+	public void setScanParallelism(int n) {
+		this.scanParallelism = n;
+	}
+	
+	public void setStateDir(Path dir) {
+		this.stateDir = dir;
 	}
 	
 	//Serves for both initial write, and changing password
@@ -131,92 +321,80 @@ public class Sync implements AutoCloseable {
 	public void close() throws Exception {
 		client.close();
 		pool.shutdown();
+		if(chunkPool != null) chunkPool.shutdown();
+		if(hashCache != null) hashCache.close();
+		if(syncJournal != null) syncJournal.close();
 	}
 	
-	//Scans local filesystem and correlates w/ remote records
-	private FileVisitor<Path> getLocalScanner() {
-		return new FileVisitor<Path>() {
-	        public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-	            return FileVisitResult.CONTINUE;
-	        };
-	        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-	            return FileVisitResult.CONTINUE;
-	        };
-	        public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-	            return FileVisitResult.CONTINUE;
-	        };
-	        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-	            if (!Files.exists(file)) return FileVisitResult.CONTINUE;
-	            if (Files.isDirectory(file)) return FileVisitResult.CONTINUE;
-	        	final LocalRecord lr = new LocalRecord(file);
-	        	if(totalCounter.incrementAndGet() % 1000 == 0) {
-	        		System.out.println(totalCounter.get() + " files scanned");
-	        	}
-	        	
-				final boolean existingNameMatch;
-				final boolean identityMatch;
-				final String remoteIntrinsicName; 
-				
-				//Find corresponding name remotely, if it might exist
-				final RemoteRecord rr = remoteFiles.get(lr.getLocalName());
-				//Potential match
-				existingNameMatch = (rr != null);
-				if(existingNameMatch) {
-					identityMatch = identityMatch(lr, rr);
-					if(identityMatch) {
-						remoteIntrinsicName = rr.getIntrinsicMDRemoteName();
-					} else {
-						//Name and content match, but not identical - result of "touch" operation
-						remoteIntrinsicName = findMatchOrNullByContent(lr, remoteFiles.values());
-					}
-				} else {
-					//No name match, but is potentially a content match
-					identityMatch = false;
-					remoteIntrinsicName = findMatchOrNullByContent(lr, remoteFiles.values());
-				}
-				
-				if(identityMatch) {
-					//Everything matches, do nothing, remove from delete list
-					toDelete.remove(rr.getIntrinsicMD().getRemoteName());
-					toDelete.remove(rr.getNamefileMD().getRemoteName());
-				} else if( (existingNameMatch && remoteIntrinsicName != null) //Name and content matches, timestamp doesn't.
-						|| (remoteIntrinsicName != null)) { //Content matches, not name.
-					//Don't delete the intrinsic, since we have content match
-					toDelete.remove(remoteIntrinsicName);
-					//Generate namefile and upload
-					final UploadPair pair = UploadPair.namefileUpload(lr);
-					uploads.add(pair);
-				} else {
-					//No match to be found.  Generate upload
-					final UploadPair pair = UploadPair.contentUpload(lr);
-					uploads.add(pair);
-				}
-				return FileVisitResult.CONTINUE;
-	        }
-		};
+	//Correlates a scanned local file w/ remote records.  Called concurrently
+	//from the scanner's threads.
+	private void correlate(Path file, BasicFileAttributes attrs) throws IOException {
+		totalCounter.incrementAndGet();
+		//Keeps its cached hash through compaction, whether or not it's needed
+		if(hashCache != null) hashCache.touch(file);
+		//Timed apart from enqueueing, which waits on uploads once the window fills
+		final long start = scanStage.start();
+		final UploadPair pair;
+		try {
+			pair = match(new LocalRecord(file, attrs, hashCache));
+		} catch(IOException | RuntimeException ex) {
+			scanStage.fail(start);
+			throw ex;
+		}
+		scanStage.finish(start, attrs.size());
+		if(pair != null) enqueue(pair);
+	}
+	
+	//The upload a local file needs, or null if it's already stored
+	private UploadPair match(LocalRecord lr) throws IOException {
+		final boolean existingNameMatch;
+		final boolean identityMatch;
+		final String remoteIntrinsicName; 
+		
+		//Find corresponding name remotely, if it might exist
+		final RemoteRecord rr = remoteFiles.get(lr.getLocalName());
+		//Potential match
+		existingNameMatch = (rr != null);
+		if(existingNameMatch) {
+			identityMatch = identityMatch(lr, rr);
+			if(identityMatch) {
+				remoteIntrinsicName = rr.getIntrinsicMDRemoteName();
+			} else {
+				//Name and content match, but not identical - result of "touch" operation
+				remoteIntrinsicName = findMatchOrNullByContent(lr);
+			}
+		} else {
+			//No name match, but is potentially a content match
+			identityMatch = false;
+			remoteIntrinsicName = findMatchOrNullByContent(lr);
+		}
+		
+		if(identityMatch) {
+			//Everything matches, do nothing, remove from delete list
+			toDelete.remove(rr.getIntrinsicMD().getRemoteName());
+			toDelete.remove(rr.getNamefileMD().getRemoteName());
+			return null;
+		} else if( (existingNameMatch && remoteIntrinsicName != null) //Name and content matches, timestamp doesn't.
+				|| (remoteIntrinsicName != null)) { //Content matches, not name.
+			//Don't delete the intrinsic, since we have content match
+			toDelete.remove(remoteIntrinsicName);
+			//Generate namefile pointing at the existing content and upload
+			lr.linkToIntrinsic(remoteIntrinsicName);
+			return UploadPair.namefileUpload(lr);
+		} else {
+			//No match to be found.  Generate upload
+			return UploadPair.contentUpload(lr);
+		}
 	}
 	
 	//Finds any matching content which we can just generate a namefile
 	//for the local record to point at remote
-	private static String findMatchOrNullByContent(LocalRecord lr, Collection<RemoteRecord> remoteFiles) throws IOException {
-		for(final RemoteRecord rr : remoteFiles) {
-			final long lrSize = lr.getSize();
-			final long rrSize = rr.getSize();
-			final boolean sizeMatch = (lrSize == rrSize);
-
-			if(! sizeMatch) continue;
-			
-			//Check for hash match if we have size match
-			final byte[] rrHash = rr.getHash();
-			final byte[] lrHash = lr.populateHash();
-			if(Arrays.equals(rrHash, lrHash)) {
-				return rr.getIntrinsicMDRemoteName();
-			} else continue;
-		}
-		return null;
+	private String findMatchOrNullByContent(LocalRecord lr) throws IOException {
+		return contentIndex.findMatchOrNull(lr);
 	}
 	
-	private static boolean identityMatch(LocalRecord lr, RemoteRecord rr) {
+	//Package-private for the correlation benchmark
+	static boolean identityMatch(LocalRecord lr, RemoteRecord rr) {
 		final long lrTimestamp = lr.getTimestamp();
 		final long rrTimestamp = rr.getTimestamp();
 		final boolean timestampMatch = (lrTimestamp == rrTimestamp);
@@ -235,17 +413,246 @@ public class Sync implements AutoCloseable {
 		return true;
 	}
 	
-	private void deleteLeftovers() throws B2Exception {
+	private void deleteLeftovers() throws B2Exception, IOException {
 		final Collection<B2Deletable> md = toDelete.values();
 		int cnt = md.size();
 		System.out.println(cnt + " remote files to delete");
 		for(final B2Deletable i : md) {
-			System.out.println("Deleting " + i.getRemoteName());
-			final B2DeleteFileVersionRequest del = i.toDelete();
-			client.deleteFileVersion(del);
+			//A packed body has no object of its own; its space goes when its pack
+			//is collected
+			if(i instanceof IntrinsicMetadata && ((IntrinsicMetadata)i).isPacked()) {
+				removed(i.getRemoteName());
+				continue;
+			}
+			//Likewise a name in a segment; it's gone once a tombstone is stored
+			if(i instanceof NamefileMetadata && ((NamefileMetadata)i).isSegmented()) {
+				removeName((NamefileMetadata)i);
+				continue;
+			}
+			deleteRemote(i);
+		}
+	}
+	
+	private B2FileVersion uploadFile(B2UploadFileRequest req) throws IOException, B2Exception {
+		if(req.getContentSource().getContentLength() > largeFileThreshold()) {
+			return client.uploadLargeFile(req, pool);
+		} else {
+			return client.uploadSmallFile(req);
+		}
+	}
+	
+	//Size above which uploads use the large file API: what a single upload is
+	//expected to send in LARGE_FILE_SECONDS, going by the throughput the
+	//controller measured divided among the uploads in flight
+	private long largeFileThreshold() {
+		final ConcurrencyController controller = uploadController;
+		if(controller == null || controller.getThroughput() <= 0) return LARGE_FILE_SIZE_LIMIT;
+		final double perUpload = controller.getThroughput() / Math.max(1, controller.getLimit());
+		final long threshold = (long)(perUpload * LARGE_FILE_SECONDS);
+		return Math.max(MIN_LARGE_FILE_SIZE, Math.min(MAX_SMALL_FILE_SIZE, threshold));
+	}
+	
+	//Uploads a body, finishing the unfinished large file it resumes, if any.
+	//Large uploads are journaled before they start, so that if this one doesn't
+	//finish, the next run can pick up from the parts B2 has.  Compressed ones
+	//aren't, since compressing the same file again needn't give the same bytes,
+	//nor are those without a hash to check the file against when resuming.
+	private B2FileVersion uploadBody(UploadPair upload, B2UploadFileRequest body) throws IOException, B2Exception {
+		final B2FileVersion started = unfinished.remove(body.getFileName());
+		if(started != null) {
+			System.out.println("Resuming unfinished upload: " + body.getFileName());
+		} else if(journal == null || upload.isCompressed() || upload.getHash() == null
+				|| body.getContentSource().getContentLength() <= largeFileThreshold()) {
+			return uploadFile(body);
+		}
+		final UploadJournal.Entry entry = new UploadJournal.Entry(body.getFileName(), upload.getLocalName(),
+				upload.getBodySize(), upload.getTimestamp(), upload.getBodyHeader(), upload.getHash(), upload.getHashScheme());
+		journal.record(entry);
+		final B2FileVersion uploaded = (started != null)
+				? client.finishUploadingLargeFile(started, body, pool)
+				: client.uploadLargeFile(body, pool);
+		journal.remove(entry);
+		return uploaded;
+	}
+	
+	//Lists unfinished large files, and drops journal entries whose upload isn't
+	//among them, as they were finished or deleted since
+	private void loadUnfinished() throws B2Exception, IOException {
+		for(final B2FileVersion b2fv : client.unfinishedLargeFiles(bucketId)) {
+			unfinished.put(b2fv.getFileName(), b2fv);
+		}
+		int resumable = 0;
+		for(final UploadJournal.Entry e : journal.getEntries()) {
+			if(unfinished.containsKey(e.getRemoteName())) resumable++;
+			else journal.remove(e);
+		}
+		System.out.println(unfinished.size() + " unfinished large files, " + resumable + " resumable");
+	}
+	
+	//Takes over the unfinished large file of a previous attempt at this upload,
+	//if there is one and the local file's content is the same.  The parts B2 has
+	//were encrypted under the journaled header, so encrypting other content under
+	//it would reuse their nonces.  The file is hashed afresh for this, since the
+	//hash cache only goes by size and timestamp, and the upload keeps that hash,
+	//so it's journaled again and not hashed a second time while uploading.  An
+	//entry that can't be resumed is dropped, leaving its unfinished file to be
+	//cleaned up.
+	private void resumeIfUnfinished(UploadPair upload) throws IOException {
+		if(journal == null || !upload.hasBody()) return;
+		final UploadJournal.Entry e = journal.find(upload.getLocalName(), upload.getBodySize(), upload.getTimestamp());
+		if(e == null || !unfinished.containsKey(e.getRemoteName())) return;
+		final byte[] hash = (e.isCompressed() || upload.isCompressed() || e.getHashScheme() != upload.getHashScheme())
+				? null : Hasher.hash(upload.getPath(), e.getHashScheme());
+		if(!Arrays.equals(e.getHash(), hash)) {
+			System.out.println("Not resuming unfinished " + e.getRemoteName() + " of " + e.getLocalName());
+			journal.remove(e);
+			return;
+		}
+		upload.resumeAs(e.getRemoteName(), e.getHeader(), hash);
+	}
+	
+	//Unfinished large files are kept while they might be resumed: journaled,
+	//uncompressed, for a local file whose size and timestamp haven't changed
+	//since; its content is checked on resuming.  With deleteOrphans, the rest
+	//are deleted; they were only ever kept to allow continuation.
+	private void cleanUpUnfinished(boolean deleteOrphans) throws B2Exception, IOException {
+		final Map<String, UploadJournal.Entry> journaled = new HashMap<>();
+		if(journal != null) for(final UploadJournal.Entry e : journal.getEntries()) journaled.put(e.getRemoteName(), e);
+		for(final B2FileVersion b2fv : client.unfinishedLargeFiles(bucketId)) {
+			final UploadJournal.Entry e = journaled.get(b2fv.getFileName());
+			if(e != null && !e.isCompressed() && localFileUnchanged(e)) {
+				System.out.println("Keeping unfinished " + b2fv.getFileName() + " of " + e.getLocalName() + " to resume");
+				continue;
+			}
+			if(e != null) journal.remove(e);
+			if(deleteOrphans) {
+				System.out.println("Deleting partial " + b2fv.getFileName());
+				client.deleteFileVersion(b2fv);
+			}
 		}
 	}
 	
+	private static boolean localFileUnchanged(UploadJournal.Entry e) {
+		try {
+			final BasicFileAttributes attrs = Files.readAttributes(Paths.get(e.getLocalName()), BasicFileAttributes.class);
+			return attrs.size() == e.getSize() && attrs.lastModifiedTime().toMillis() == e.getTimestamp();
+		} catch(IOException ex) {
+			return false;
+		}
+	}
+	
+	//Loads the remote state from the manifest if there's a usable one, otherwise
+	//from the sync journal of an interrupted run, otherwise from a full listing.
+	//Either way the remote manifest is removed, since this run is about to change
+	//the remote; the next generation is uploaded at the end.
+	private Manifest loadRemote() throws B2Exception, IOException {
+		final B2FileVersion remoteManifest = Manifest.findRemoteOrNull(client, bucketId);
+		if(remoteManifest != null) {
+			System.out.println("Loading manifest");
+			final Manifest loaded = Manifest.download(client, remoteManifest, crypt);
+			if(loaded != null) {
+				System.out.println("Loaded manifest generation " + loaded.getGeneration() + ", " + loaded.size() + " remote files");
+				client.deleteFileVersion(Manifest.toDelete(remoteManifest));
+				return loaded.nextGeneration();
+			}
+		} else if(syncJournal != null) {
+			//No manifest means the last run didn't finish; if it was ours, the journal
+			//says how far it got
+			final Manifest resumed = syncJournal.loadOrNull();
+			if(resumed != null) {
+				System.out.println("Resuming interrupted sync generation " + resumed.getGeneration() + ", " + resumed.size() + " remote files");
+				deleteUnresolved();
+				return resumed;
+			}
+		}
+		System.out.println("Scanning remote files");
+		final long generation = (remoteManifest == null) ? 1 : Manifest.generationOf(remoteManifest) + 1;
+		final Manifest listed = Manifest.fromListing(client.fileNames(bucketId), crypt, generation);
+		listed.readIndexes(client, crypt);
+		if(remoteManifest != null) client.deleteFileVersion(Manifest.toDelete(remoteManifest));
+		return listed;
+	}
+	
+	//Uploads the interrupted run started but didn't log finishing.  One that got
+	//as far as the remote isn't in the manifest, so would never be cleaned up.
+	//Unfinished large files aren't listed, and are left to be resumed.
+	private void deleteUnresolved() throws B2Exception {
+		int deleted = 0;
+		for(final String name : syncJournal.getUnresolved()) {
+			final B2FileVersion b2fv = Manifest.findVersionOrNull(client, bucketId, name);
+			if(b2fv == null) continue;
+			System.out.println("Deleting unrecorded upload " + name);
+			client.deleteFileVersion(Manifest.toDelete(b2fv));
+			deleted++;
+		}
+		if(deleted > 0) System.out.println(deleted + " unrecorded uploads deleted");
+	}
+	
+	//Remote changes go to the manifest, and to the sync journal if there is one.
+	//An upload is journaled as planned before it starts, and as added once done.
+	private void planned(String remoteName) throws IOException {
+		if(syncJournal != null) syncJournal.planned(remoteName);
+	}
+	
+	private void added(IntrinsicMetadata md) throws IOException {
+		manifest.addIntrinsic(md);
+		if(syncJournal != null) syncJournal.added(md);
+	}
+	
+	private void added(NamefileMetadata md) throws IOException {
+		manifest.addNamefile(md);
+		if(syncJournal != null) syncJournal.added(md);
+	}
+	
+	private void added(ChunkMetadata c) throws IOException {
+		manifest.addChunk(c);
+		if(syncJournal != null) syncJournal.added(c);
+	}
+	
+	private void added(PackMetadata p) throws IOException {
+		manifest.addPack(p);
+		if(syncJournal != null) syncJournal.added(p);
+	}
+	
+	private void added(NameSegmentMetadata s) throws IOException {
+		manifest.addNameSegment(s);
+		if(syncJournal != null) syncJournal.added(s);
+	}
+	
+	private void removed(String remoteName) throws IOException {
+		manifest.remove(remoteName);
+		if(syncJournal != null) syncJournal.deleted(remoteName);
+	}
+	
+	//Names the interrupted run added to a segment that never went up.  Their
+	//bodies are stored and in the manifest, so without their names they'd be
+	//orphans, and the files uploaded again.  They're taken as remote names for
+	//correlation, and go in this run's first segment.  A name superseded by a
+	//newer one for the same file is dropped.
+	private void requeueNames(Map<String, IntrinsicMetadata> imd, Map<String, NamefileMetadata> nfmd) throws IOException, B2Exception {
+		int requeued = 0;
+		for(final NamefileMetadata md : syncJournal.getPendingNames()) {
+			if(!imd.containsKey(md.getAssociatedIntrinsicFile())) continue;
+			checkAndAddNamefile(nfmd, md);
+			if(nfmd.get(md.getLocalName()) != md) continue;
+			addName(md);
+			requeued++;
+		}
+		if(requeued > 0) System.out.println(requeued + " names from the interrupted sync requeued");
+	}
+	
+	//Deletes the remote version and records it gone.  One that's already gone
+	//counts as deleted: an interrupted run may have deleted it without getting
+	//as far as journaling that, leaving it in the replayed manifest.
+	private void deleteRemote(B2Deletable d) throws B2Exception, IOException {
+		try {
+			client.deleteFileVersion(d.toDelete());
+		} catch(B2NotFoundException ex) {
+			System.out.println("Already deleted: " + d.getRemoteName());
+		}
+		removed(d.getRemoteName());
+	}
+	
 	//Checks the list for duplicate metadata, replacing older with newer in case
 	//of conflict
 	private static void checkAndAddNamefile(Map<String, NamefileMetadata> nfmd, NamefileMetadata md) {
@@ -262,51 +669,466 @@ public class Sync implements AutoCloseable {
 		}
 	}
 	
-	//Calling this twice will result in nothing good.
-	public void run(boolean deleteOrphans) throws B2Exception, IOException {				
-		//From remote name (guaranteed unique) to MD record
-		final Map<String, IntrinsicMetadata> imd = new HashMap<>();
-		//From local name (not guaranteed unique upstream) to MD record
-		final Map<String, NamefileMetadata> nfmd = new HashMap<>();
+	private void enqueue(UploadPair pair) throws InterruptedIOException {
 		try {
-			System.out.println("Scanning remote files");
-			int i = 0;
-			final B2ListFilesIterable remoteIt = client.fileNames(bucketId);
-			for(B2FileVersion b2fv : remoteIt) {
-				if(++i % 1000 == 0) System.out.println(i + " remote files scanned");
-				//Split into namefiles and intrinsic files; add all of both of them
-				//to the delete lists.  Things will be removed from delete lists as they
-				//are correlated with local files, leaving only orphans to be deleted
+			uploads.put(pair);
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+	
+	//Pipeline stage: hashes new content, and drops renames if we're skipping them.
+	//Content uploaded through a single stream is hashed as it's encrypted instead,
+	//unless the hash is cached.  With compression on, this is also where bodies
+	//are sampled to decide whether to compress them.
+	private UploadPair hashForUpload(UploadPair upload) throws IOException {
+		if(!upload.hasBody()) {
+			if(skipRenames) {
+				metrics.counter("renames.skipped").increment();
+				return null;
+			}
+			return upload;
+		}
+		final long start = hashStage.start();
+		boolean success = false;
+		//Bytes actually read to hash, not those with cached hashes
+		long hashed = 0;
+		try {
+			if(compression && !isChunked(upload) && !isPacked(upload)) upload.setCompressed(Compression.worthCompressing(upload.getPath()));
+			if(hashWhileUploading(upload)) upload.populateCachedHash();
+			else {
+				if(upload.populateCachedHash() == null) hashed = upload.getBodySize();
+				upload.populateHash();
+			}
+			success = true;
+		} finally {
+			if(success) hashStage.finish(start, hashed);
+			else hashStage.fail(start);
+		}
+		return upload;
+	}
+	
+	//Large files are uploaded in parts from several streams, and temp files
+	//(including all compressed bodies) are encrypted before upload, so neither
+	//can be hashed along the way, and packed bodies' hashes go in the pack's
+	//index, written first.  Only the flat hash scheme can be computed from a
+	//stream.
+	private boolean hashWhileUploading(UploadPair upload) {
+		return !tempEncryption
+				&& !isChunked(upload)
+				&& !isPacked(upload)
+				&& !upload.isCompressed()
+				&& KeyfileCrypter.encryptedLength(upload.getBodySize()) <= largeFileThreshold()
+				&& Hasher.schemeFor(upload.getBodySize()) == Hasher.SCHEME_FLAT;
+	}
+	
+	private boolean isChunked(UploadPair upload) {
+		return blockStorage && upload.hasBody() && upload.getBodySize() >= BLOCK_STORAGE_MIN_SIZE;
+	}
+	
+	private boolean isPacked(UploadPair upload) {
+		return packing && upload.hasBody() && upload.getBodySize() <= PACK_MAX_FILE_SIZE && !isChunked(upload);
+	}
+	
+	//Pipeline stage: builds the body request.  Bodies are encrypted here only with
+	//temp encryption, otherwise as the upload stage reads them.  Chunked bodies
+	//are chunked and encrypted by the upload stage, packed ones with their pack.
+	private PreparedUpload encryptForUpload(UploadPair upload) throws IOException {
+		if(isChunked(upload)) return new PreparedUpload(upload, null, true, false);
+		if(isPacked(upload)) return new PreparedUpload(upload, null, false, true);
+		final long start = encryptStage.start();
+		boolean success = false;
+		try {
+			resumeIfUnfinished(upload);
+			final B2UploadFileRequest body = upload.getBodyUpload(crypt, bucketId, tempEncryption);
+			success = true;
+			//Only temp files are encrypted here; others are as they're uploaded
+			encryptStage.finish(start, (body != null && (tempEncryption || upload.isCompressed())) ? upload.getBodySize() : 0);
+			return new PreparedUpload(upload, body, false, false);
+		} finally {
+			if(!success) encryptStage.fail(start);
+		}
+	}
+	
+	//Pipeline stage: uploads the body and then records the name, as many at once
+	//as the controller allows
+	private Void upload(PreparedUpload prepared) throws IOException, B2Exception, InterruptedException {
+		final long bytes = (prepared.chunked || prepared.packed) ? prepared.pair.getBodySize()
+				: (prepared.body == null) ? 0 : prepared.body.getContentSource().getContentLength();
+		uploadController.acquire();
+		final long start = fileStage.start();
+		boolean success = false;
+		//Errors from B2 or the connection to it, as opposed to reading the file
+		boolean remoteFailure = false;
+		try {
+			uploadPrepared(prepared);
+			success = true;
+		} catch(B2Exception ex) {
+			remoteFailure = true;
+			throw ex;
+		} finally {
+			if(success) uploadController.release(bytes, System.nanoTime() - start);
+			else uploadController.releaseFailed(remoteFailure);
+			if(success) fileStage.finish(start, bytes);
+			else fileStage.fail(start);
+		}
+		return null;
+	}
+	
+	private void uploadPrepared(PreparedUpload prepared) throws IOException, B2Exception {
+		final UploadPair upload = prepared.pair;
+		if(prepared.packed) {
+			addToPack(upload);
+			return;
+		}
+		try {
+			final B2UploadFileRequest body = prepared.chunked
+					? upload.getChunkListUpload(crypt, bucketId, uploadChunks(upload))
+					: prepared.body;
+			if(body != null) {
+				planned(body.getFileName());
+				final B2FileVersion uploaded = uploadBody(upload, body);
+				added(upload.bodyUploaded(uploaded.getFileId()));
+			}
+		} finally {
+			upload.deleteTempCryptFile();
+		}
+		//After the body, as it may carry the hash computed while uploading it
+		addName(upload.getNamefile());
+	}
+	
+	//Adds the name to the open name segment, uploading the segment once it's
+	//full.  Names go up thousands at a time rather than as objects of their own,
+	//so each is journaled as it's added, for the next run to pick up if this one
+	//dies before the segment is uploaded; see requeueNames().
+	private void addName(NamefileMetadata md) throws IOException, B2Exception {
+		if(syncJournal != null) syncJournal.named(md);
+		final NameSegmentBuilder full;
+		synchronized(nameLock) {
+			if(openSegment == null) openSegment = new NameSegmentBuilder();
+			openSegment.add(md);
+			if(openSegment.size() < SEGMENT_RECORDS) return;
+			full = openSegment;
+			openSegment = null;
+		}
+		uploadSegment(full);
+	}
+	
+	//As above, for a tombstone of a name in an earlier segment
+	private void removeName(NamefileMetadata md) throws IOException, B2Exception {
+		final NameSegmentBuilder full;
+		synchronized(nameLock) {
+			if(openSegment == null) openSegment = new NameSegmentBuilder();
+			openSegment.tombstone(md);
+			if(openSegment.size() < SEGMENT_RECORDS) return;
+			full = openSegment;
+			openSegment = null;
+		}
+		uploadSegment(full);
+	}
+	
+	//Uploads whatever was left in the open name segment once the uploads and
+	//deletes are done, returning how many names failed with it
+	private int flushNames() {
+		final NameSegmentBuilder last;
+		synchronized(nameLock) {
+			last = openSegment;
+			openSegment = null;
+		}
+		if(last == null) return 0;
+		try {
+			uploadSegment(last);
+			return 0;
+		} catch(IOException | B2Exception | RuntimeException ex) {
+			System.out.println("Failed to upload name segment " + last.getRemoteName() + ": " + ex);
+			return last.getNames().size();
+		}
+	}
+	
+	//Names in it only count as stored, and tombstoned ones as gone, once the
+	//segment is uploaded
+	private void uploadSegment(NameSegmentBuilder builder) throws IOException, B2Exception {
+		final B2UploadFileRequest req = builder.toUpload(crypt, bucketId);
+		planned(req.getFileName());
+		final B2FileVersion uploaded = client.uploadSmallFile(req);
+		segmentsUploaded.increment();
+		segmentRecords.add(builder.size());
+		added(builder.uploaded(uploaded.getFileId()));
+		for(final NamefileMetadata md : builder.getNames()) added(md);
+		for(final NamefileMetadata md : builder.getTombstones()) removed(md.getRemoteName());
+	}
+	
+	//Rewrites the live names into new segments when the segments are mostly
+	//tombstones and replaced names, or there are many more than the names need,
+	//or to move namefiles stored as objects of their own into segments.  The
+	//last new segment supersedes the old ones, and they're deleted after it's up.
+	private void compactNames() throws B2Exception, IOException {
+		final Collection<NameSegmentMetadata> segments = manifest.getNameSegments();
+		final List<NamefileMetadata> segmented = new ArrayList<>();
+		final List<NamefileMetadata> standalone = new ArrayList<>();
+		for(final NamefileMetadata md : manifest.getNamefiles()) {
+			if(md.isSegmented()) segmented.add(md);
+			else standalone.add(md);
+		}
+		long records = 0;
+		for(final NameSegmentMetadata segment : segments) records += segment.getRecords();
+		if(standalone.isEmpty() && records <= 2L * segmented.size()
+				&& segments.size() <= segmented.size() / SEGMENT_RECORDS + SEGMENT_SLACK) return;
+		System.out.println("Compacting " + segments.size() + " name segments of " + records + " records, "
+				+ segmented.size() + " names live, " + standalone.size() + " namefiles to move into segments");
+		//Names loaded from a manifest don't carry hashes, which the intrinsic may
+		//not have outside the manifest
+		final Map<String, IntrinsicMetadata> intrinsics = new HashMap<>();
+		for(final IntrinsicMetadata md : manifest.getIntrinsics()) intrinsics.put(md.getRemoteName(), md);
+		final List<NamefileMetadata> names = new ArrayList<>(segmented);
+		for(final NamefileMetadata md : standalone) names.add(md.copy());
+		NameSegmentBuilder builder = new NameSegmentBuilder();
+		for(final NamefileMetadata md : names) {
+			final IntrinsicMetadata intrinsic = intrinsics.get(md.getAssociatedIntrinsicFile());
+			if(md.getContentHash() == null && intrinsic != null) md.setContentHash(intrinsic.getHash(), intrinsic.getHashScheme());
+			if(builder.size() >= SEGMENT_RECORDS) {
+				uploadSegment(builder);
+				builder = new NameSegmentBuilder();
+			}
+			builder.add(md);
+		}
+		final List<String> old = new ArrayList<>();
+		for(final NameSegmentMetadata segment : segments) old.add(segment.getRemoteName());
+		builder.supersede(old);
+		uploadSegment(builder);
+		for(final NameSegmentMetadata segment : segments) deleteRemote(segment);
+		for(final NamefileMetadata md : standalone) deleteRemote(md);
+		System.out.println(names.size() + " names compacted, " + (segments.size() + standalone.size()) + " remote files deleted");
+	}
+	
+	//Adds the body to the open pack, uploading the pack once it's full.  The
+	//namefile waits for the pack, as it can't point at content not yet stored.
+	private void addToPack(UploadPair upload) throws IOException, B2Exception {
+		final byte[] body = upload.readBody();
+		final PendingPack full;
+		synchronized(packLock) {
+			if(openPack == null) openPack = new PendingPack();
+			upload.addToPack(openPack.builder, body);
+			openPack.pairs.add(upload);
+			if(openPack.builder.getDataLength() < PACK_SIZE) return;
+			full = openPack;
+			openPack = null;
+		}
+		uploadPack(full);
+	}
+	
+	//Uploads whatever was left in the open pack once the uploads are done,
+	//returning how many files failed with it
+	private int flushPack() {
+		final PendingPack last;
+		synchronized(packLock) {
+			last = openPack;
+			openPack = null;
+		}
+		if(last == null) return 0;
+		try {
+			uploadPack(last);
+			return 0;
+		} catch(IOException | B2Exception | RuntimeException ex) {
+			System.out.println("Failed to upload pack " + last.builder.getRemoteName() + ": " + ex);
+			return last.pairs.size();
+		}
+	}
+	
+	//Uploads the pack, then records its members' names
+	private void uploadPack(PendingPack pending) throws IOException, B2Exception {
+		final B2UploadFileRequest req = pending.builder.toUpload(crypt, bucketId);
+		planned(req.getFileName());
+		final B2FileVersion uploaded = uploadFile(req);
+		packsUploaded.increment();
+		packedFiles.add(pending.pairs.size());
+		added(pending.builder.uploaded(uploaded.getFileId()));
+		for(final IntrinsicMetadata md : pending.builder.getMembers()) added(md);
+		for(final UploadPair upload : pending.pairs) addName(upload.getNamefile());
+	}
+	
+	//Deletes packs no body is left in, and repacks those less than half live, as
+	//a dropped body's space only goes with its pack.  Run once uploads are done.
+	private void collectPacks() throws B2Exception, IOException {
+		final Map<String, List<IntrinsicMetadata>> live = new HashMap<>();
+		for(final IntrinsicMetadata md : manifest.getIntrinsics()) {
+			if(md.isPacked()) live.computeIfAbsent(md.getPack(), (k) -> new ArrayList<>()).add(md);
+		}
+		int deleted = 0;
+		int repacked = 0;
+		PackBuilder builder = null;
+		List<PackMetadata> sources = new ArrayList<>();
+		for(final PackMetadata pack : manifest.getPacks()) {
+			final List<IntrinsicMetadata> members = live.get(pack.getRemoteName());
+			if(members == null) {
+				System.out.println("Deleting empty pack " + pack.getRemoteName());
+				deleteRemote(pack);
+				deleted++;
+				continue;
+			}
+			long liveBytes = 0;
+			for(final IntrinsicMetadata md : members) liveBytes += md.getSize();
+			if(liveBytes * 2 >= pack.getDataLength()) continue;
+			System.out.println("Repacking " + pack.getRemoteName() + ", " + liveBytes + " of " + pack.getDataLength() + " bytes live");
+			final byte[] data = pack.read(client, crypt, 0, (int)pack.getDataLength());
+			if(builder == null) builder = new PackBuilder();
+			for(final IntrinsicMetadata md : members) builder.add(md, data, (int)md.getPackOffset());
+			sources.add(pack);
+			repacked++;
+			if(builder.getDataLength() >= PACK_SIZE) {
+				replacePacks(builder, sources);
+				builder = null;
+				sources = new ArrayList<>();
+			}
+		}
+		if(builder != null) replacePacks(builder, sources);
+		System.out.println(deleted + " empty packs deleted, " + repacked + " repacked");
+	}
+	
+	//Uploads the new pack and records its members in place of the old ones,
+	//before the old packs are deleted
+	private void replacePacks(PackBuilder builder, List<PackMetadata> old) throws B2Exception, IOException {
+		final B2UploadFileRequest req = builder.toUpload(crypt, bucketId);
+		planned(req.getFileName());
+		final B2FileVersion uploaded = uploadFile(req);
+		added(builder.uploaded(uploaded.getFileId()));
+		for(final IntrinsicMetadata md : builder.getMembers()) added(md);
+		for(final PackMetadata pack : old) deleteRemote(pack);
+	}
+	
+	//Splits the body into chunks and uploads those not already stored, several
+	//at once, returning the list of all of them.  Fails if any chunk it needs
+	//fails to upload, including one another file was uploading.
+	private ChunkList uploadChunks(UploadPair upload) throws IOException, B2Exception {
+		final ChunkList chunks = new ChunkList();
+		final List<CompletableFuture<Void>> needed = new ArrayList<>();
+		//Bounds the chunks held in memory waiting to upload
+		final Semaphore inFlight = new Semaphore(maxUploadParallelism * 2);
+		try(final FileChannel in = FileChannel.open(upload.getPath(), StandardOpenOption.READ)) {
+			chunker.split(in, upload.getBodySize(), (buf, off, len) -> {
+				final byte[] id = crypt.chunkId(buf, off, len);
+				chunks.add(id, len);
+				chunksSeen.increment();
+				chunkBytesSeen.add(len);
+				final String name = ChunkMetadata.nameFor(id);
+				final CompletableFuture<Void> mine = new CompletableFuture<>();
+				final CompletableFuture<Void> existing = chunkUploads.putIfAbsent(name, mine);
+				if(existing != null) {
+					needed.add(existing);
+					return;
+				}
+				needed.add(mine);
+				final byte[] plain = Arrays.copyOfRange(buf, off, off + len);
 				try {
-					if (b2fv.getFileName().equals(KEYFILE_NAME)) {
-						//Do nothing.  This is your keyfile, pulled earlier.
-					} else if(IntrinsicMetadata.isIntrinsicMDName(b2fv)) {
-						final IntrinsicMetadata md = IntrinsicMetadata.fromB2FileVersion(b2fv, crypt);
-						imd.put(md.getRemoteName(), md);
-						if(deleteOrphans) toDelete.put(md.getRemoteName(), md);
-					} else if(NamefileMetadata.isNamefileMDName(b2fv)) {
-						final NamefileMetadata md = NamefileMetadata.fromB2FileVersion(b2fv, crypt);
-						//Check for duplicate local names
-						checkAndAddNamefile(nfmd, md);
-						if(deleteOrphans) toDelete.put(md.getRemoteName(), md);
-					} else {
-						//The checks above are already complementary, so currently this
-						//should never get reached; we will get an exception trying
-						//to convert.
-						throw new IllegalStateException();
-					}
-				} catch(Exception ex) {
-					//Incompatible file, presumably
-					System.out.println("incompatible file: " + b2fv.getFileName());	
-					//Delete immediately, if we're hard-syncing
-					if(deleteOrphans) {
-						client.deleteFileVersion(B2DeleteFileVersionRequest.builder(b2fv.getFileName(), b2fv.getFileId()).build());
+					inFlight.acquire();
+				} catch(InterruptedException ex) {
+					chunkUploads.remove(name, mine);
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				chunkPool.execute(() -> {
+					try {
+						planned(name);
+						final B2FileVersion uploaded = client.uploadSmallFile(ChunkMetadata.toUpload(crypt, bucketId, name, plain));
+						added(new ChunkMetadata(name, uploaded.getFileId()));
+						chunksNew.increment();
+						chunkBytesNew.add(len);
+						mine.complete(null);
+					} catch(IOException | B2Exception | RuntimeException ex) {
+						chunkUploads.remove(name, mine);
+						mine.completeExceptionally(ex);
+					} finally {
+						inFlight.release();
 					}
-				}; 
+				});
+			});
+		}
+		for(final CompletableFuture<Void> f : needed) {
+			try {
+				f.get();
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			} catch(ExecutionException ex) {
+				final Throwable cause = ex.getCause();
+				if(cause instanceof IOException) throw (IOException)cause;
+				if(cause instanceof B2Exception) throw (B2Exception)cause;
+				throw new RuntimeException(cause);
 			}
-			System.out.println(i + " files found remotely");
-		} catch(B2Exception ex) {
-			throw new RuntimeException(ex);
+		}
+		return chunks;
+	}
+	
+	//Deletes stored chunks no remaining body refers to.  Run once uploads are
+	//done, as a new body may refer to chunks of one deleted this run.  Chunk lists
+	//the manifest doesn't have are read from the bodies; if one can't be, nothing
+	//is deleted, as it might refer to any chunk.
+	private void deleteUnreferencedChunks() throws B2Exception, IOException {
+		final Set<String> referenced = new HashSet<>();
+		for(final IntrinsicMetadata md : manifest.getIntrinsics()) {
+			if(!md.isChunked()) continue;
+			if(md.getChunks() == null) {
+				try {
+					md.setChunks(ChunkList.download(client, md.getRemoteID(), crypt));
+				} catch(IOException | RuntimeException ex) {
+					System.out.println("Unreadable chunk list in " + md.getRemoteName() + ", not deleting chunks: " + ex);
+					return;
+				}
+			}
+			for(final ChunkList.Entry e : md.getChunks().getEntries()) referenced.add(e.getRemoteName());
+		}
+		int deleted = 0;
+		for(final ChunkMetadata c : manifest.getChunks()) {
+			if(referenced.contains(c.getRemoteName())) continue;
+			deleteRemote(c);
+			deleted++;
+		}
+		System.out.println(deleted + " unreferenced chunks deleted, " + referenced.size() + " in use");
+	}
+	
+	public Metrics getMetrics() { return metrics; }
+	
+	//Calling this twice will result in nothing good.  Progress is reported every
+	//few seconds while it runs, and with a state directory, also written there as
+	//JSON for monitoring.
+	public void run(boolean deleteOrphans) throws B2Exception, IOException {
+		final Path metricsFile = (stateDir == null) ? null : stateDir.resolve(bucketName).resolve("sync-metrics.json");
+		metrics.gauge("queue.uploads", uploads::size);
+		metrics.gauge("uploads.limit", () -> (uploadController == null) ? 0 : uploadController.getLimit());
+		try(final MetricsReporter reporter = MetricsReporter.start(metrics, metricsFile)) {
+			sync(deleteOrphans);
+		}
+	}
+	
+	private void sync(boolean deleteOrphans) throws B2Exception, IOException {
+		//From remote name (guaranteed unique) to MD record
+		final Map<String, IntrinsicMetadata> imd = new HashMap<>();
+		//From local name (not guaranteed unique upstream) to MD record
+		final Map<String, NamefileMetadata> nfmd = new HashMap<>();
+		if(stateDir != null) {
+			syncJournal = new SyncJournal(stateDir.resolve(bucketName).resolve("journal"), crypt);
+		}
+		manifest = loadRemote();
+		//From here until the manifest is uploaded, the remote has none, so changes
+		//are journaled for the next run to pick up from if this one is interrupted
+		if(syncJournal != null) syncJournal.begin(manifest);
+		//Split into namefiles and intrinsic files; add all of both of them
+		//to the delete lists.  Things will be removed from delete lists as they
+		//are correlated with local files, leaving only orphans to be deleted
+		for(final IntrinsicMetadata md : manifest.getIntrinsics()) {
+			imd.put(md.getRemoteName(), md);
+			if(deleteOrphans) toDelete.put(md.getRemoteName(), md);
+		}
+		for(final NamefileMetadata md : manifest.getNamefiles()) {
+			//Check for duplicate local names
+			checkAndAddNamefile(nfmd, md);
+			if(deleteOrphans) toDelete.put(md.getRemoteName(), md);
+		}
+		if(syncJournal != null) requeueNames(imd, nfmd);
+		//Incompatible files are deleted along with other leftovers, if we're hard-syncing
+		if(deleteOrphans) for(final Manifest.Other o : manifest.getOthers()) {
+			toDelete.put(o.getRemoteName(), o);
 		}
 		
 		//Correlate remote intrinsic & namefile to gen complete remote records
@@ -328,14 +1150,54 @@ public class Sync implements AutoCloseable {
 			}
 		}
 		System.out.println(i + " remote records correlated");
+		contentIndex = new ContentIndex(remoteFiles.values());
+		for(final ChunkMetadata c : manifest.getChunks()) {
+			chunkUploads.put(c.getRemoteName(), CompletableFuture.completedFuture(null));
+		}
+		if(blockStorage) {
+			chunker = new Chunker(crypt.chunkerGear());
+			chunkPool = Executors.newFixedThreadPool(maxUploadParallelism);
+		}
+		
+		if(stateDir != null) {
+			journal = new UploadJournal(stateDir.resolve(bucketName).resolve("uploads"));
+			loadUnfinished();
+		}
 		
-		//Walk local structure, could do in separate thread
-		{
-			Files.walkFileTree(baseDir, getLocalScanner());
+		//Uploads start as soon as the first file is correlated, rather than after
+		//the whole walk.  Stages are connected by bounded queues, so a fast scan
+		//can't run far ahead of uploads or fill the disk with encrypted temp files.
+		System.out.println("Uploading files");
+		uploadController = new ConcurrencyController(minUploadParallelism, maxUploadParallelism);
+		final Channel<UploadPair> toEncrypt = Channel.of(new ArrayBlockingQueue<>(maxUploadParallelism * 2));
+		final Channel<PreparedUpload> toUpload = Channel.of(new ArrayBlockingQueue<>(maxUploadParallelism * 2));
+		metrics.gauge("queue.encrypt", toEncrypt::size);
+		metrics.gauge("queue.upload", toUpload::size);
+		final List<PipelineStage<?, ?>> stages = Arrays.asList(
+				new PipelineStage<>("hash", prepareParallelism, uploads, UploadPair.QUEUE_POISON,
+						toEncrypt, UploadPair.QUEUE_POISON, this::hashForUpload),
+				new PipelineStage<>("encrypt", prepareParallelism, toEncrypt, UploadPair.QUEUE_POISON,
+						toUpload, PreparedUpload.POISON, this::encryptForUpload),
+				new PipelineStage<PreparedUpload, Void>("upload", maxUploadParallelism, toUpload, PreparedUpload.POISON,
+						null, null, this::upload));
+		for(final PipelineStage<?, ?> stage : stages) stage.start();
+		
+		//Walk local structure
+		boolean joined = false;
+		try {
+			if(stateDir != null) {
+				hashCache = new HashCache(stateDir.resolve(bucketName).resolve("hashcache"));
+			}
+			new ParallelFileWalker(scanParallelism).walk(baseDir, this::correlate);
+			if(hashCache != null) {
+				//Whole tree was scanned, so anything not seen is gone
+				hashCache.compact();
+			}
 			//Signal we are done
-			uploads.add(UploadPair.QUEUE_POISON);
+			enqueue(UploadPair.QUEUE_POISON);
 			System.out.println(totalCounter.get() + " total local files found");	
-			//File scanner handles local / remote correlation, so we can actually delete here
+			//Correlation is complete, so anything left is an orphan.  Deleting them
+			//doesn't need to wait for uploads.
 			if(deleteOrphans) {
 				System.out.println("Deleting leftover files on remote");
 				//Delete leftovers
@@ -346,57 +1208,39 @@ public class Sync implements AutoCloseable {
 					throw new RuntimeException("Delete failed", ex);
 				}
 			}
+			for(final PipelineStage<?, ?> stage : stages) stage.join();
+			joined = true;
+		} catch(InterruptedException ex) {
+			throw new RuntimeException(ex);
+		} finally {
+			//Don't leave the pipeline running, or waiting on a scan that isn't
+			//coming, once the scan or deletes have failed
+			if(!joined) for(final PipelineStage<?, ?> stage : stages) stage.interrupt();
 		}
+		//Pack first, as its names go in the segment
+		int failures = flushPack();
+		failures += flushNames();
+		for(final PipelineStage<?, ?> stage : stages) failures += stage.getFailures();
+		if(failures > 0) System.out.println(failures + " files failed to upload, and will be retried next run");
 		
-		//Upload
-		System.out.println("Uploading files");
-		final AtomicInteger uploadCounter = new AtomicInteger(0);
-		final Thread[] uploaders = new Thread[uploadParallelism];
-		for(int thread = 0; thread < uploaders.length; thread++) {
-			uploaders[thread] = new Thread(()->{
-				while(true) try {
-					final UploadPair upload = uploads.take();
-					if(upload == UploadPair.QUEUE_POISON) {
-						//Add back to the queue so other threads can die
-						uploads.put(upload);
-						break;
-					}
-					System.out.println("Uploading for local file: " + upload.getLocalName());
-					final B2UploadFileRequest namefile = upload.getNamefileUpload(crypt, bucketId);
-					final B2UploadFileRequest body = upload.getBodyUpload(crypt, bucketId);
-					if(namefile != null && body == null && skipRenames) {
-						System.out.println("Skipping rename, " + uploads.size() + " remaining, " + totalCounter.get() + " files scanned");
-						continue;						
-					}
-					if(namefile != null) {
-						System.out.println("Uploading namefile: " + namefile.getFileName());
-						client.uploadSmallFile(namefile);
-					}
-					if(body != null) {
-						System.out.println("Uploading body: " + body.getFileName());
-						if(body.getContentSource().getContentLength() > LARGE_FILE_SIZE_LIMIT) {
-							client.uploadLargeFile(body, pool);
-						} else {
-							client.uploadSmallFile(body);
-						}
-						upload.deleteTempCryptFile();
-					}
-					System.out.println(uploadCounter.incrementAndGet() + " pairs uploaded, " + uploads.size() + " remaining, " + totalCounter.get() + " files scanned");
-				} catch (IOException | B2Exception | InterruptedException ex) {
-					throw new RuntimeException(ex);
-				}
-			});
-		}
-		for(final Thread t : uploaders) t.start();
-		for(final Thread t : uploaders) {
-			try {t.join();}
-			catch(InterruptedException ex) { throw new RuntimeException(ex); }
+		//Only at end, to allow upload continuation
+		cleanUpUnfinished(deleteOrphans);
+		if(deleteOrphans) {
+			deleteUnreferencedChunks();
+			collectPacks();
+			compactNames();
 		}
-		//Also delete orphaned large files, but only at end, to allow upload continuation
-		if(deleteOrphans) for(final B2FileVersion b2fv : client.unfinishedLargeFiles(bucketId)) {
-			System.out.println("Deleting partial " + b2fv.getFileName());
-			client.deleteFileVersion(b2fv);
+		
+		System.out.println("Uploading manifest generation " + manifest.getGeneration() + ", " + manifest.size() + " remote files");
+		final Path encryptedManifest = manifest.encryptToTemp(crypt);
+		final B2FileVersion uploadedManifest;
+		try {
+			uploadedManifest = uploadFile(manifest.toUpload(encryptedManifest, bucketId));
+		} finally {
+			Files.deleteIfExists(encryptedManifest);
 		}
-
+		if(syncJournal != null) syncJournal.finish();
+		//So restores can start from it without downloading the manifest
+		if(stateDir != null) Catalog.of(manifest, uploadedManifest.getFileId()).save(stateDir.resolve(bucketName), crypt);
 	}
 }
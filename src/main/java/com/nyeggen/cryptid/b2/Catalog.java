@@ -0,0 +1,119 @@
+package com.nyeggen.cryptid.b2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import com.nyeggen.cryptid.util.KeyfileCrypter;
+
+//Local copy of a remote manifest, correlated into records by local name, so a
+//restore can pick what to fetch without downloading or listing anything.  Kept
+//encrypted under the state directory and tagged with the B2 file ID of the
+//manifest upload it's a copy of; it's current as long as the remote manifest is
+//still that upload.  Generations aren't enough for this, as a sync that falls
+//back to a listing starts them over.  Sync rewrites it whenever it uploads a
+//manifest, so a restore after a sync starts from it straight away.
+public class Catalog {
+	private static final String FILE_NAME = "catalog";
+	private static final int MAGIC = 0x43524354; //"CRCT"
+
+	private final Manifest manifest;
+	//File ID of the remote manifest, or null if this isn't a copy of one
+	private final String manifestId;
+	//By local name; of duplicates, the newest is kept, as Sync would
+	private final NavigableMap<String, RemoteRecord> records = new TreeMap<>();
+
+	private Catalog(Manifest manifest, String manifestId) {
+		this.manifest = manifest;
+		this.manifestId = manifestId;
+		final Map<String, IntrinsicMetadata> imd = new HashMap<>();
+		for(final IntrinsicMetadata md : manifest.getIntrinsics()) imd.put(md.getRemoteName(), md);
+		for(final NamefileMetadata namefile : manifest.getNamefiles()) {
+			final IntrinsicMetadata intrinsic = imd.get(namefile.getAssociatedIntrinsicFile());
+			if(intrinsic == null) continue;
+			final RemoteRecord existing = records.get(namefile.getLocalName());
+			if(existing != null && existing.getTimestamp() >= namefile.getTimestamp()) continue;
+			records.put(namefile.getLocalName(), new RemoteRecord(intrinsic, namefile));
+		}
+	}
+
+	//The manifest's file ID is that of its upload, or null if it wasn't uploaded,
+	//eg one from a listing
+	public static Catalog of(Manifest manifest, String manifestId) {
+		return new Catalog(manifest, manifestId);
+	}
+
+	public long getGeneration() { return manifest.getGeneration(); }
+	public String getManifestId() { return manifestId; }
+	public int size() { return records.size(); }
+	public Collection<RemoteRecord> getRecords() { return new ArrayList<>(records.values()); }
+	//Pack a packed body is in, or null if there's no such pack
+	public PackMetadata getPack(String remoteName) { return manifest.getPack(remoteName); }
+
+	//Records whose local name starts with the prefix, eg a directory's path and
+	//separator for everything under it, in name order
+	public Collection<RemoteRecord> getRecordsWithPrefix(String prefix) {
+		final NavigableMap<String, RemoteRecord> tail = records.tailMap(prefix, true);
+		final Collection<RemoteRecord> out = new ArrayList<>();
+		for(final Map.Entry<String, RemoteRecord> e : tail.entrySet()) {
+			if(!e.getKey().startsWith(prefix)) break;
+			out.add(e.getValue());
+		}
+		return out;
+	}
+
+	//The catalog saved in the directory, or null if there's none that can be read
+	public static Catalog loadOrNull(Path dir, KeyfileCrypter crypt) {
+		final Path p = dir.resolve(FILE_NAME);
+		if(!Files.exists(p)) return null;
+		try(final InputStream plain = crypt.decryptingStream(new BufferedInputStream(Files.newInputStream(p)))) {
+			final DataInputStream in = new DataInputStream(plain);
+			if(in.readInt() != MAGIC) throw new IOException("Not a catalog");
+			final String manifestId = in.readUTF();
+			final Manifest manifest = Manifest.readFrom(in, null);
+			Manifest.readToEnd(plain);
+			return new Catalog(manifest, manifestId);
+		} catch(IOException | RuntimeException ex) {
+			System.out.println("Unreadable catalog, ignoring: " + ex);
+			return null;
+		}
+	}
+
+	//Only a copy of an uploaded manifest can be saved, as otherwise there's
+	//nothing to tell whether it's current
+	public void save(Path dir, KeyfileCrypter crypt) throws IOException {
+		if(manifestId == null) throw new IllegalStateException("Catalog isn't of an uploaded manifest");
+		Files.createDirectories(dir);
+		final Path tmp = Files.createTempFile(dir, null, ".tmp");
+		try {
+			try(final OutputStream os = crypt.encryptingStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				final DataOutputStream out = new DataOutputStream(os);
+				out.writeInt(MAGIC);
+				out.writeUTF(manifestId);
+				out.flush();
+				manifest.writeTo(os);
+			}
+			try {
+				Files.move(tmp, dir.resolve(FILE_NAME), StandardCopyOption.ATOMIC_MOVE);
+			} catch(AtomicMoveNotSupportedException ex) {
+				Files.move(tmp, dir.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+}
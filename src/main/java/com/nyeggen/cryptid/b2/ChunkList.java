@@ -0,0 +1,108 @@
+package com.nyeggen.cryptid.b2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.backblaze.b2.client.B2StorageClient;
+import com.backblaze.b2.client.contentHandlers.B2ContentSink;
+import com.backblaze.b2.client.contentSources.B2Headers;
+import com.backblaze.b2.client.exceptions.B2Exception;
+import com.nyeggen.cryptid.util.KeyfileCrypter;
+
+//The chunks of a body stored in blocks, in order.  This is what the intrinsic
+//file holds, encrypted, in place of the content itself.  The manifest keeps a
+//copy, so most runs needn't download it.
+public class ChunkList {
+	private static final int MAGIC = 0x4352434c; //"CRCL"
+	private static final int VERSION = 1;
+	//Of KeyfileCrypter.chunkId()
+	public static final int ID_LENGTH = 32;
+
+	public static class Entry {
+		private final byte[] id;
+		private final int length;
+
+		private Entry(byte[] id, int length) {
+			this.id = id;
+			this.length = length;
+		}
+
+		public byte[] getId() { return id.clone(); }
+		public int getLength() { return length; }
+		public String getRemoteName() { return ChunkMetadata.nameFor(id); }
+	}
+
+	private final List<Entry> entries = new ArrayList<>();
+	private long totalSize = 0;
+
+	public synchronized void add(byte[] id, int length) {
+		if(id.length != ID_LENGTH) throw new IllegalArgumentException("Chunk ID of " + id.length);
+		entries.add(new Entry(id.clone(), length));
+		totalSize += length;
+	}
+
+	public synchronized List<Entry> getEntries() { return Collections.unmodifiableList(new ArrayList<>(entries)); }
+	public synchronized int size() { return entries.size(); }
+	public synchronized long getTotalSize() { return totalSize; }
+
+	public synchronized void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(entries.size());
+		for(final Entry e : entries) {
+			out.write(e.id);
+			out.writeInt(e.length);
+		}
+	}
+
+	public static ChunkList readFrom(DataInputStream in) throws IOException {
+		final ChunkList out = new ChunkList();
+		final int n = in.readInt();
+		if(n < 0) throw new IOException("Bad chunk count " + n);
+		for(int i = 0; i < n; i++) {
+			final byte[] id = new byte[ID_LENGTH];
+			in.readFully(id);
+			final int length = in.readInt();
+			if(length < 0) throw new IOException("Bad chunk length " + length);
+			out.add(id, length);
+		}
+		return out;
+	}
+
+	//Plaintext of the intrinsic file
+	public byte[] toBytes() throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(baos);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		writeTo(out);
+		out.flush();
+		return baos.toByteArray();
+	}
+
+	public static ChunkList fromBytes(byte[] b) throws IOException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(b));
+		if(in.readInt() != MAGIC) throw new IOException("Not a chunk list");
+		if(in.readInt() != VERSION) throw new IOException("Unknown chunk list version");
+		final ChunkList out = readFrom(in);
+		if(in.read() != -1) throw new IOException("Trailing bytes after chunk list");
+		return out;
+	}
+
+	//Reads the list from the intrinsic file, for when the manifest doesn't have it
+	public static ChunkList download(B2StorageClient client, String intrinsicID, KeyfileCrypter crypt) throws IOException, B2Exception {
+		final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		client.downloadById(intrinsicID, new B2ContentSink() {
+			@Override
+			public void readContent(B2Headers responseHeaders, InputStream in) throws B2Exception, IOException {
+				crypt.decryptStream(in, plain);
+			}
+		});
+		return fromBytes(plain.toByteArray());
+	}
+}
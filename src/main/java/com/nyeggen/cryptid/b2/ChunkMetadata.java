@@ -0,0 +1,59 @@
+package com.nyeggen.cryptid.b2;
+
+import java.io.IOException;
+import java.util.Base64;
+
+import com.backblaze.b2.client.contentSources.B2ByteArrayContentSource;
+import com.backblaze.b2.client.contentSources.B2ContentTypes;
+import com.backblaze.b2.client.structures.B2DeleteFileVersionRequest;
+import com.backblaze.b2.client.structures.B2FileVersion;
+import com.backblaze.b2.client.structures.B2UploadFileRequest;
+import com.nyeggen.cryptid.util.KeyfileCrypter;
+
+//A chunk of a body stored in blocks, see ChunkList.  Chunks are named by their
+//keyed content ID, so equal chunks of any files are stored once, and the name
+//is all that's needed to know a chunk is stored.  The body is the chunk in the
+//segmented format, with no metadata of its own.
+public class ChunkMetadata implements B2Deletable {
+	public static final String CHUNK_PREFIX = "c/";
+
+	private final String remoteName;
+	private final String remoteID;
+
+	public ChunkMetadata(String remoteName, String remoteID) {
+		this.remoteName = remoteName;
+		this.remoteID = remoteID;
+	}
+
+	@Override
+	public String getRemoteName() { return remoteName; }
+	public String getRemoteID() { return remoteID; }
+
+	@Override
+	public B2DeleteFileVersionRequest toDelete() {
+		return B2DeleteFileVersionRequest.builder(remoteName, remoteID).build();
+	}
+
+	public static boolean isChunkName(B2FileVersion b2fv) {
+		return b2fv.getFileName().startsWith(CHUNK_PREFIX);
+	}
+
+	public static String nameFor(byte[] chunkId) {
+		return CHUNK_PREFIX + Base64.getUrlEncoder().withoutPadding().encodeToString(chunkId);
+	}
+
+	public static ChunkMetadata fromB2FileVersion(B2FileVersion b2fv) {
+		if(!isChunkName(b2fv)) throw new IllegalArgumentException();
+		return new ChunkMetadata(b2fv.getFileName(), b2fv.getFileId());
+	}
+
+	//Chunks are at most Chunker.MAX_SIZE, so are encrypted in memory
+	public static B2UploadFileRequest toUpload(KeyfileCrypter crypt, String bucketId, String remoteName, byte[] plain) throws IOException {
+		return B2UploadFileRequest.builder(
+				bucketId,
+				remoteName,
+				B2ContentTypes.APPLICATION_OCTET,
+				B2ByteArrayContentSource.build(crypt.encryptSegmented(plain, 0, plain.length)))
+					.build();
+	}
+}
@@ -0,0 +1,44 @@
+package com.nyeggen.cryptid.b2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+//Index of remote content, by size and then by hash, so a local file can be
+//matched against remote content without comparing it to every remote record.
+//Built once, after remote records are correlated.  Hashes under different
+//schemes don't compare, so they're indexed separately, and the local file is
+//hashed under each scheme its remote candidates were.
+public class ContentIndex {
+	//Size -> hash scheme -> hash -> remote intrinsic name.  Hashes are wrapped
+	//once on insertion so that they compare by value.
+	private final Map<Long, Map<Byte, Map<ByteBuffer, String>>> bySize = new HashMap<>();
+
+	public ContentIndex(Collection<RemoteRecord> remoteFiles) {
+		for(final RemoteRecord rr : remoteFiles) add(rr);
+	}
+
+	private void add(RemoteRecord rr) {
+		final byte[] hash = rr.getHash();
+		if(hash == null) return;
+		final Map<ByteBuffer, String> byHash = bySize.computeIfAbsent(rr.getSize(), (k) -> new HashMap<>(2))
+				.computeIfAbsent(rr.getHashScheme(), (k) -> new HashMap<>(2));
+		//Multiple namefiles may point at the same content; any one of them will do
+		byHash.putIfAbsent(ByteBuffer.wrap(hash), rr.getIntrinsicMDRemoteName());
+	}
+
+	//Returns the remote intrinsic name with the same content as the local record,
+	//or null.  The local file is only hashed if some remote content has the same size.
+	public String findMatchOrNull(LocalRecord lr) throws IOException {
+		final Map<Byte, Map<ByteBuffer, String>> byScheme = bySize.get(lr.getSize());
+		if(byScheme == null) return null;
+		for(final Map.Entry<Byte, Map<ByteBuffer, String>> e : byScheme.entrySet()) {
+			final byte[] lrHash = lr.hashFor(e.getKey());
+			final String match = e.getValue().get(ByteBuffer.wrap(lrHash));
+			if(match != null) return match;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,69 @@
+package com.nyeggen.cryptid.b2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+import com.backblaze.b2.client.contentSources.B2ContentSource;
+import com.nyeggen.cryptid.util.KeyfileCrypter;
+import com.nyeggen.cryptid.util.SegmentedCrypter;
+
+//Content source that encrypts the local file as B2 reads it, instead of going
+//through an encrypted temp copy.  The ciphertext length follows from the plain
+//size, and the header is fixed when the source is created, so every stream B2
+//opens (for retries, or for each part of a large file) gives the same bytes.
+//Those streams share one context, so should the file change in between, one
+//encrypting a segment differently from before fails rather than reusing its
+//nonce on other plaintext.
+//It can also hash the file as it goes, saving a separate pass over it, when the
+//file is read through one stream from start to end, as for small uploads.
+public class EncryptingContentSource implements B2ContentSource {
+	private final KeyfileCrypter crypt;
+	private final Path path;
+	private final long plainSize;
+	private final SegmentedCrypter.FileContext ctx;
+	private final boolean hashing;
+	//Set once a stream has read the whole file
+	private volatile byte[] hash = null;
+
+	public EncryptingContentSource(KeyfileCrypter crypt, Path path, long plainSize, boolean hashing) throws IOException {
+		this(crypt, path, plainSize, crypt.newStreamHeader(), hashing);
+	}
+	
+	//Under a given header, to give the same bytes as an earlier source did
+	public EncryptingContentSource(KeyfileCrypter crypt, Path path, long plainSize, byte[] header, boolean hashing) throws IOException {
+		this.crypt = crypt;
+		this.path = path;
+		this.plainSize = plainSize;
+		this.ctx = crypt.segmentContext(header);
+		this.hashing = hashing;
+	}
+	
+	//Hash of the plaintext, as from Hasher, or null if no stream has read all of it
+	public byte[] getPlainHashOrNull() {
+		return hash;
+	}
+
+	@Override
+	public long getContentLength() throws IOException {
+		return KeyfileCrypter.encryptedLength(plainSize);
+	}
+
+	//B2 computes it as it sends
+	@Override
+	public String getSha1OrNull() throws IOException {
+		return null;
+	}
+
+	//Plaintext timestamps live in the encrypted namefile
+	@Override
+	public Long getSrcLastModifiedMillisOrNull() throws IOException {
+		return null;
+	}
+
+	@Override
+	public InputStream createInputStream() throws IOException {
+		if(!hashing) return crypt.encryptingStream(path, plainSize, ctx);
+		return crypt.encryptingStream(path, plainSize, ctx, (h) -> this.hash = h);
+	}
+}
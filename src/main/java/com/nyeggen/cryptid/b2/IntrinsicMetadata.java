@@ -16,37 +16,106 @@ import com.nyeggen.cryptid.util.KeyfileCrypter;
 //This is the structure for metadata embedded in the underlying remote file,
 //not in a replaceable metadata file.  This implies it's immutable wrt content.
 public class IntrinsicMetadata implements B2Deletable {
-	private static final String MD_KEY = "m";
+	//Legacy layout: hash + size, always with a hash
+	private static final String LEGACY_MD_KEY = "m";
+	//Current layout: layout version, flags, size, then whatever the flags say follows
+	private static final String MD_KEY = "i";
+	private static final byte LAYOUT_VERSION = 2;
+	//Hash follows the size.  Without it, the hash is in the namefile instead,
+	//having been computed while the body was uploaded.
+	private static final byte FLAG_HASH = 1;
+	//Hash is under Hasher.SCHEME_TREE rather than SCHEME_FLAT
+	private static final byte FLAG_TREE_HASH = 2;
+	//Body is a ChunkList, the content being stored in blocks
+	private static final byte FLAG_CHUNKED = 4;
+	//Body was compressed before it was encrypted.  Decryption doesn't need to
+	//know, the body's header says as much, but it's kept to report on.
+	private static final byte FLAG_COMPRESSED = 8;
 	
 	private final long size;
-	//This is the salted hash of the unencrypted file, or null if not computed yet
+	//This is the salted hash of the unencrypted file, or null if not computed yet,
+	//or if it was computed while uploading and only the namefile has it
 	private byte[] hash;
+	//Hasher scheme of the hash
+	private byte hashScheme;
 	//Name of the remote content file, may be null if it hasn't been assigned
 	private final String remoteName;
 	//ID to support deletes, may be null if it hasn't been assigned
 	private String remoteID = null;
+	//Whether the body is a chunk list, and the list, if it's been read
+	private boolean chunked = false;
+	private ChunkList chunks = null;
+	private boolean compressed = false;
+	//Pack the body is a stretch of, and where it starts, or null if the body is
+	//an object of its own.  Packed bodies are only known from the manifest or
+	//their pack's index, never from file info.
+	private String pack = null;
+	private long packOffset = 0;
 
-	private IntrinsicMetadata(byte[] hash, long size, String remoteName) {
+	private IntrinsicMetadata(byte[] hash, byte hashScheme, long size, String remoteName) {
 		this.hash = hash;
+		this.hashScheme = hashScheme;
 		this.size = size;
 		this.remoteName = remoteName;
 	}
 	
-	public IntrinsicMetadata(byte[] hash, long size) {
-		this.hash = hash;
-		this.size = size;
-		this.remoteName = UUID.randomUUID().toString();
+	IntrinsicMetadata(byte[] hash, byte hashScheme, long size, String remoteName, String remoteID) {
+		this(hash, hashScheme, size, remoteName);
+		this.remoteID = remoteID;
+	}
+	
+	public IntrinsicMetadata(byte[] hash, byte hashScheme, long size) {
+		this(hash, hashScheme, size, UUID.randomUUID().toString());
 	}
 	
 	@Override
 	public String getRemoteName() { return remoteName; }
 	public byte[] getHash() { return hash; }
+	public byte getHashScheme() { return hashScheme; }
 	public String getRemoteID() { return remoteID; }
 	
 	public long getSize() { return size; }
+	public boolean isChunked() { return chunked; }
+	public boolean isCompressed() { return compressed; }
+	public void setCompressed(boolean compressed) { this.compressed = compressed; }
+	//Null if not chunked, or the list hasn't been read yet
+	public ChunkList getChunks() { return chunks; }
+	public boolean isPacked() { return pack != null; }
+	public String getPack() { return pack; }
+	public long getPackOffset() { return packOffset; }
 	
-	public void setHash(byte[] hash) {
+	public void setHash(byte[] hash, byte hashScheme) {
 		this.hash = hash;
+		this.hashScheme = hashScheme;
+	}
+	
+	public void setChunks(ChunkList chunks) {
+		this.chunked = true;
+		this.chunks = chunks;
+	}
+	
+	//Chunked, with the list still to be read from the body
+	void setChunkedUnread() {
+		this.chunked = true;
+		this.chunks = null;
+	}
+	
+	//A copy as a member of the pack, at the offset.  Its remote ID is the pack's
+	//once that's uploaded; until then the pack's name stands in for it.
+	IntrinsicMetadata inPack(String pack, long offset) {
+		final IntrinsicMetadata out = new IntrinsicMetadata(hash, hashScheme, size, remoteName, pack);
+		out.setPacked(pack, offset);
+		return out;
+	}
+	
+	void setPacked(String pack, long offset) {
+		this.pack = pack;
+		this.packOffset = offset;
+	}
+	
+	//Assigned once uploaded
+	public void setRemoteID(String remoteID) {
+		this.remoteID = remoteID;
 	}
 	
 	@Override
@@ -55,40 +124,77 @@ public class IntrinsicMetadata implements B2Deletable {
 	}
 	
 	public static boolean isIntrinsicMDName(B2FileVersion b2fv) {
-		return !b2fv.getFileName().startsWith(NamefileMetadata.NAMEFILE_PREFIX);
+		return !b2fv.getFileName().startsWith(NamefileMetadata.NAMEFILE_PREFIX)
+				&& !ChunkMetadata.isChunkName(b2fv)
+				&& !PackMetadata.isPackName(b2fv)
+				&& !NameSegmentMetadata.isSegmentName(b2fv);
 	}
 
-	//Buffer is laid out hash + size (as long)
 	public static IntrinsicMetadata fromB2FileVersion(B2FileVersion b2fv, KeyfileCrypter crypt) {
 		if(!isIntrinsicMDName(b2fv)) throw new IllegalArgumentException();
 
 		final String remoteName = b2fv.getFileName();
 
 		final Map<String, String> info = b2fv.getFileInfo();
-		final String encoded = info.get(MD_KEY);
+		final boolean legacy = !info.containsKey(MD_KEY);
+		final String encoded = info.get(legacy ? LEGACY_MD_KEY : MD_KEY);
 		
 		final byte[] encrypted = Base64.getDecoder().decode(encoded);
-		final byte[] decrypted = crypt.decrypt(encrypted);
-		final ByteBuffer buf = ByteBuffer.wrap(decrypted).order(ByteOrder.LITTLE_ENDIAN);
+		final ByteBuffer buf = ByteBuffer.allocate(KeyfileCrypter.decryptedSize(encrypted.length)).order(ByteOrder.LITTLE_ENDIAN);
+		crypt.decrypt(ByteBuffer.wrap(encrypted), buf);
+		buf.flip();
 		
-		final byte[] hash = new byte[Hasher.OUTPUT_LENGTH];
-		buf.get(hash);
-		final long size = buf.getLong();
+		final byte[] hash;
+		byte hashScheme = Hasher.SCHEME_FLAT;
+		final long size;
+		boolean chunked = false;
+		boolean compressed = false;
+		if(legacy) {
+			//Buffer is laid out hash + size (as long)
+			hash = new byte[Hasher.OUTPUT_LENGTH];
+			buf.get(hash);
+			size = buf.getLong();
+		} else {
+			final byte version = buf.get();
+			if(version != LAYOUT_VERSION) throw new IllegalArgumentException("Unknown metadata version " + version);
+			final byte flags = buf.get();
+			size = buf.getLong();
+			if((flags & FLAG_HASH) != 0) {
+				hash = new byte[Hasher.OUTPUT_LENGTH];
+				buf.get(hash);
+				if((flags & FLAG_TREE_HASH) != 0) hashScheme = Hasher.SCHEME_TREE;
+			} else {
+				hash = null;
+			}
+			chunked = (flags & FLAG_CHUNKED) != 0;
+			compressed = (flags & FLAG_COMPRESSED) != 0;
+		}
 		
-		final IntrinsicMetadata out = new IntrinsicMetadata(hash, size, remoteName);
+		final IntrinsicMetadata out = new IntrinsicMetadata(hash, hashScheme, size, remoteName);
 		out.remoteID = b2fv.getFileId();
+		out.chunked = chunked;
+		out.compressed = compressed;
 		
 		return out;
 	}
 	
-	//This metadata is attached to the B2UploadRequest that actually has the content
+	//This metadata is attached to the B2UploadRequest that actually has the content.
+	//The hash may still be null, if it's being computed during the upload.
 	public Map<String, String> mdForUpload(KeyfileCrypter crypt) throws IOException {
 		
-		final ByteBuffer buf = ByteBuffer.allocate(Hasher.OUTPUT_LENGTH + 8).order(ByteOrder.LITTLE_ENDIAN);
-		buf.put(hash);
+		final ByteBuffer buf = ByteBuffer.allocate(2 + 8 + Hasher.OUTPUT_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		buf.put(LAYOUT_VERSION);
+		byte flags = 0;
+		if(hash != null) flags |= FLAG_HASH;
+		if(hash != null && hashScheme == Hasher.SCHEME_TREE) flags |= FLAG_TREE_HASH;
+		if(chunked) flags |= FLAG_CHUNKED;
+		if(compressed) flags |= FLAG_COMPRESSED;
+		buf.put(flags);
 		buf.putLong(size);
-		final byte[] plain = buf.array();
-		final byte[] encrypted = crypt.encrypt(plain);
+		if(hash != null) buf.put(hash);
+		buf.flip();
+		final byte[] encrypted = new byte[KeyfileCrypter.encryptedSize(buf.remaining())];
+		crypt.encrypt(buf, ByteBuffer.wrap(encrypted));
 		final String encoded = Base64.getEncoder().encodeToString(encrypted);
 		
 		final Map<String, String> out = new HashMap<>(1);
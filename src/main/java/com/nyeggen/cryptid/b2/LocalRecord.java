@@ -3,12 +3,15 @@ package com.nyeggen.cryptid.b2;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Map;
 
+import com.backblaze.b2.client.contentSources.B2ByteArrayContentSource;
 import com.backblaze.b2.client.contentSources.B2ContentSource;
 import com.backblaze.b2.client.contentSources.B2ContentTypes;
 import com.backblaze.b2.client.contentSources.B2FileContentSource;
 import com.backblaze.b2.client.structures.B2UploadFileRequest;
+import com.nyeggen.cryptid.util.HashCache;
 import com.nyeggen.cryptid.util.Hasher;
 import com.nyeggen.cryptid.util.KeyfileCrypter;
 
@@ -16,12 +19,27 @@ import com.nyeggen.cryptid.util.KeyfileCrypter;
 public class LocalRecord implements Comparable<LocalRecord> {
 	private Path path;
 	private Path cryptPath = null;
+	//Body being hashed as it's uploaded, if the hash wasn't known beforehand
+	private EncryptingContentSource hashingSource = null;
+	//Inode or equivalent, may be null.  Used to find cached hashes of moved files
+	private final Object fileKey;
+	//Consulted before hashing file contents, may be null
+	private final HashCache hashCache;
 	
 	private NamefileMetadata nameAndTimestamp;
+	//Hash is under the scheme Hasher gives for our size
 	private IntrinsicMetadata hashAndSize;
+	//Hash under another scheme, to compare with remote content hashed that way
+	private byte[] otherHash = null;
+	private byte otherHashScheme;
+	//Header the body is encrypted under, null until the body is built.  Kept so
+	//an unfinished large upload can be resumed with the same bytes.
+	private byte[] bodyHeader = null;
 	
+	public Path getPath() { return path; }
 	public long getSize() { return hashAndSize.getSize(); }
 	public byte[] getHash() { return hashAndSize.getHash(); }	
+	public byte getHashScheme() { return hashAndSize.getHashScheme(); }
 	public String getLocalName() { return nameAndTimestamp.localName; }
 	public long getTimestamp() { return nameAndTimestamp.timestamp; }
 
@@ -31,36 +49,107 @@ public class LocalRecord implements Comparable<LocalRecord> {
 	}
 	
 	public byte[] populateHash() throws IOException {
-		if(hashAndSize.getHash() == null) {
-			hashAndSize.setHash(Hasher.hash(path));			
+		if(populateCachedHash() == null) setHash(Hasher.hash(path, getHashScheme()));
+		return hashAndSize.getHash();
+	}
+	
+	//Only consults the cache, for files that will be hashed while uploading
+	public byte[] populateCachedHash() throws IOException {
+		if(hashAndSize.getHash() == null && hashCache != null) {
+			hashAndSize.setHash(hashCache.get(path, getSize(), getTimestamp(), fileKey, getHashScheme()), getHashScheme());
 		}
 		return hashAndSize.getHash();
 	}
 	
-	public LocalRecord(Path p) throws IOException {
+	//Hash under the given scheme, for comparison with remote content.  Hashes
+	//under other than our own scheme aren't cached, as remote content hashed
+	//that way is only from before that scheme was used for files our size.
+	public byte[] hashFor(byte scheme) throws IOException {
+		if(scheme == getHashScheme()) return populateHash();
+		if(otherHash == null || otherHashScheme != scheme) {
+			otherHash = Hasher.hash(path, scheme);
+			otherHashScheme = scheme;
+		}
+		return otherHash;
+	}
+	
+	private void setHash(byte[] hash) throws IOException {
+		hashAndSize.setHash(hash, getHashScheme());
+		if(hashCache != null) hashCache.put(path, getSize(), getTimestamp(), fileKey, getHashScheme(), hash);
+	}
+	
+	public LocalRecord(Path p, HashCache hashCache) throws IOException {
+		this(p, Files.readAttributes(p, BasicFileAttributes.class), hashCache);
+	}
+	
+	//Attributes as already read while scanning, to avoid another round trip
+	public LocalRecord(Path p, BasicFileAttributes attrs, HashCache hashCache) {
 		this.path = p;
+		this.hashCache = hashCache;
 		//Will be resolved as relative, which is what we want
 		final String name = p.toString();
-		final long timestamp = Files.getLastModifiedTime(p).toMillis();
-		final long size = Files.size(p);
+		final long timestamp = attrs.lastModifiedTime().toMillis();
+		final long size = attrs.size();
+		this.fileKey = attrs.fileKey();
 		
 		//Hash is initially unset
-		this.hashAndSize = new IntrinsicMetadata(null, size);
+		this.hashAndSize = new IntrinsicMetadata(null, Hasher.schemeFor(size), size);
 		this.nameAndTimestamp = new NamefileMetadata(name, timestamp, hashAndSize.getRemoteName());
 	}
 	
+	public byte[] getBodyHeader() { return (bodyHeader == null) ? null : bodyHeader.clone(); }
+	
+	//Takes over the remote name and header of an unfinished upload of this same
+	//file, so the body comes out the same and only the missing parts need uploading.
+	//The hash is what the file was checked against, under our scheme.
+	public void resumeAs(String remoteName, byte[] header, byte[] hash) throws IOException {
+		hashAndSize = new IntrinsicMetadata(null, hashAndSize.getHashScheme(), getSize(), remoteName, null);
+		setHash(hash);
+		nameAndTimestamp.associatedIntrinsicFile = remoteName;
+		bodyHeader = header.clone();
+	}
+	
+	public IntrinsicMetadata getIntrinsicMD() { return hashAndSize; }
+	public NamefileMetadata getNamefileMD() { return nameAndTimestamp; }
+	
+	//Points the namefile at existing remote content instead of our own body,
+	//for when only the name needs uploading
+	public void linkToIntrinsic(String remoteIntrinsicName) {
+		nameAndTimestamp.associatedIntrinsicFile = remoteIntrinsicName;
+	}
+	
 	public void deleteTempCryptFile() throws IOException {
 		if(cryptPath != null) Files.delete(cryptPath);
 	}
 	
-	//This is fairly expensive due to calculating the hash, and subsequently
-	//the encryption of the stream
-	public B2UploadFileRequest uploadForBody(KeyfileCrypter crypt, String bucketId) throws IOException {
-		populateHash(); //Necessary so remote file has hash
+	//The body is normally encrypted as B2 reads it; viaTemp encrypts a complete
+	//copy to the temp directory first instead, which needs that much scratch space.
+	//If the hash isn't known yet, a streamed body is hashed as it's read, and the
+	//intrinsic metadata goes up without it; see bodyUploaded().  Compressed bodies
+	//always go through the temp directory, their length not being known ahead.
+	public B2UploadFileRequest uploadForBody(KeyfileCrypter crypt, String bucketId, boolean viaTemp, boolean compress) throws IOException {
+		viaTemp |= compress;
+		//Only the flat scheme can be computed from a stream
+		if(viaTemp || getHashScheme() != Hasher.SCHEME_FLAT) populateHash();
+		final boolean hashWhileUploading = (getHash() == null);
+		hashAndSize.setCompressed(compress);
 		final Map<String, String> intrinsicMD = hashAndSize.mdForUpload(crypt);
+		if(bodyHeader == null || KeyfileCrypter.isCompressedHeader(bodyHeader) != compress) {
+			bodyHeader = crypt.newStreamHeader(compress);
+		}
 
-		this.cryptPath = crypt.encryptFileToTemp(path);
-		final B2ContentSource contentSource = B2FileContentSource.build(this.cryptPath.toFile());
+		final B2ContentSource contentSource;
+		if(compress) {
+			this.cryptPath = crypt.compressFileToTemp(path, bodyHeader);
+			contentSource = B2FileContentSource.build(this.cryptPath.toFile());
+		} else if(viaTemp) {
+			this.cryptPath = crypt.encryptFileToTemp(path, bodyHeader);
+			contentSource = B2FileContentSource.build(this.cryptPath.toFile());
+		} else {
+			final EncryptingContentSource source = new EncryptingContentSource(crypt, path, getSize(), bodyHeader, hashWhileUploading);
+			if(hashWhileUploading) this.hashingSource = source;
+			contentSource = source;
+		}
 		
 		final B2UploadFileRequest body = B2UploadFileRequest.builder(
 				bucketId,
@@ -73,8 +162,38 @@ public class LocalRecord implements Comparable<LocalRecord> {
 		return body;
 	}
 	
-	//If using for rename, we also need to delete the previous namefile
-	public B2UploadFileRequest uploadForName(KeyfileCrypter crypt, String bucketId) throws IOException {
-		return nameAndTimestamp.toUpload(crypt, bucketId);
+	//Body for content stored in blocks, once the chunks are stored: the list of
+	//them, encrypted.  The hash must already be known.
+	public B2UploadFileRequest uploadForChunkList(KeyfileCrypter crypt, String bucketId, ChunkList chunks) throws IOException {
+		populateHash();
+		hashAndSize.setChunks(chunks);
+		final Map<String, String> intrinsicMD = hashAndSize.mdForUpload(crypt);
+		final byte[] plain = chunks.toBytes();
+		
+		return B2UploadFileRequest.builder(
+				bucketId,
+				hashAndSize.getRemoteName(), 
+				B2ContentTypes.APPLICATION_OCTET, 
+				B2ByteArrayContentSource.build(crypt.encryptSegmented(plain, 0, plain.length)))
+					.setCustomFields(intrinsicMD)
+					.build();
+	}
+	
+	//Takes the hash from the upload of the body, if it was hashed along the way.
+	//Should the upload somehow not have read all of the file, it's hashed anew.
+	public void bodyUploaded() throws IOException {
+		if(hashingSource == null) return;
+		final byte[] hash = hashingSource.getPlainHashOrNull();
+		hashingSource = null;
+		if(hash != null) setHash(hash);
+		else populateHash();
+	}
+	
+	//If using for rename, we also need to delete the previous namefile.  The
+	//namefile carries the hash, for bodies uploaded without one, so it has to
+	//be taken after the body is uploaded.
+	public NamefileMetadata namefileWithHash() {
+		nameAndTimestamp.setContentHash(getHash(), getHashScheme());
+		return nameAndTimestamp;
 	}
 }
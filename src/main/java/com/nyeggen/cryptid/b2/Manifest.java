@@ -0,0 +1,565 @@
+package com.nyeggen.cryptid.b2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.backblaze.b2.client.B2StorageClient;
+import com.backblaze.b2.client.contentHandlers.B2ContentSink;
+import com.backblaze.b2.client.contentSources.B2ContentSource;
+import com.backblaze.b2.client.contentSources.B2ContentTypes;
+import com.backblaze.b2.client.contentSources.B2FileContentSource;
+import com.backblaze.b2.client.contentSources.B2Headers;
+import com.backblaze.b2.client.exceptions.B2Exception;
+import com.backblaze.b2.client.structures.B2DeleteFileVersionRequest;
+import com.backblaze.b2.client.structures.B2FileVersion;
+import com.backblaze.b2.client.structures.B2ListFileNamesRequest;
+import com.backblaze.b2.client.structures.B2UploadFileRequest;
+import com.nyeggen.cryptid.util.Hasher;
+import com.nyeggen.cryptid.util.KeyfileCrypter;
+import com.nyeggen.cryptid.util.SegmentedCrypter;
+
+//Snapshot of every remote object, so that a run can load one object instead of
+//listing and decrypting the metadata of the whole bucket.  Stored compressed and
+//encrypted next to the keyfile.  A run that changes the remote deletes the
+//manifest before changing anything and uploads a new generation when it's done,
+//so a manifest that exists is never stale; if it's missing or fails to check out,
+//callers fall back to a full listing.
+public class Manifest {
+	public static final String MANIFEST_NAME = "MANIFEST";
+	private static final String KEYFILE_NAME = "KEYFILE";
+	//Plaintext generation in file info, cross-checked against the encrypted copy
+	private static final String GENERATION_KEY = "g";
+	private static final int MAGIC = 0x43524d46; //"CRMF"
+	private static final int VERSION = 1;
+
+	private static final byte INTRINSIC = 1;
+	private static final byte NAMEFILE = 2;
+	private static final byte OTHER = 3;
+	private static final byte CHUNK = 4;
+	private static final byte PACK = 5;
+	private static final byte NAME_SEGMENT = 6;
+	//Following an intrinsic, whether it's chunked and whether the list follows,
+	//or else whether it's packed, followed by the pack and offset
+	private static final byte NOT_CHUNKED = 0;
+	private static final byte CHUNKED_WITH_LIST = 1;
+	private static final byte CHUNKED_UNREAD = 2;
+	private static final byte PACKED = 3;
+	private static final byte END = 0;
+
+	//Unrecognized remote object, kept so it can be deleted later
+	public static class Other implements B2Deletable {
+		private final String remoteName;
+		private final String remoteID;
+
+		public Other(String remoteName, String remoteID) {
+			this.remoteName = remoteName;
+			this.remoteID = remoteID;
+		}
+
+		@Override
+		public String getRemoteName() { return remoteName; }
+		@Override
+		public B2DeleteFileVersionRequest toDelete() {
+			return B2DeleteFileVersionRequest.builder(remoteName, remoteID).build();
+		}
+	}
+
+	private final long generation;
+	//ID of the remote version this was loaded from, or null if built from a listing
+	private final String remoteID;
+	//All by remote name
+	private final Map<String, IntrinsicMetadata> intrinsics = new HashMap<>();
+	private final Map<String, NamefileMetadata> namefiles = new HashMap<>();
+	private final Map<String, Other> others = new HashMap<>();
+	private final Map<String, ChunkMetadata> chunks = new HashMap<>();
+	private final Map<String, PackMetadata> packs = new HashMap<>();
+	private final Map<String, NameSegmentMetadata> nameSegments = new HashMap<>();
+
+	private Manifest(long generation, String remoteID) {
+		this.generation = generation;
+		this.remoteID = remoteID;
+	}
+
+	public long getGeneration() { return generation; }
+	public boolean isFromRemote() { return remoteID != null; }
+
+	public synchronized Collection<IntrinsicMetadata> getIntrinsics() { return new ArrayList<>(intrinsics.values()); }
+	public synchronized Collection<NamefileMetadata> getNamefiles() { return new ArrayList<>(namefiles.values()); }
+	public synchronized Collection<Other> getOthers() { return new ArrayList<>(others.values()); }
+	public synchronized Collection<ChunkMetadata> getChunks() { return new ArrayList<>(chunks.values()); }
+	public synchronized Collection<PackMetadata> getPacks() { return new ArrayList<>(packs.values()); }
+	//Null if there's no such pack
+	public synchronized PackMetadata getPack(String remoteName) { return packs.get(remoteName); }
+	public synchronized Collection<NameSegmentMetadata> getNameSegments() { return new ArrayList<>(nameSegments.values()); }
+
+	public synchronized void addIntrinsic(IntrinsicMetadata md) { intrinsics.put(md.getRemoteName(), md); }
+	public synchronized void addNamefile(NamefileMetadata md) { namefiles.put(md.getRemoteName(), md); }
+	public synchronized void addOther(Other o) { others.put(o.getRemoteName(), o); }
+	public synchronized void addChunk(ChunkMetadata c) { chunks.put(c.getRemoteName(), c); }
+	public synchronized void addPack(PackMetadata p) { packs.put(p.getRemoteName(), p); }
+	public synchronized void addNameSegment(NameSegmentMetadata s) { nameSegments.put(s.getRemoteName(), s); }
+	public synchronized void remove(String remoteName) {
+		intrinsics.remove(remoteName);
+		namefiles.remove(remoteName);
+		others.remove(remoteName);
+		chunks.remove(remoteName);
+		packs.remove(remoteName);
+		nameSegments.remove(remoteName);
+	}
+	public synchronized int size() {
+		return intrinsics.size() + namefiles.size() + others.size() + chunks.size() + packs.size() + nameSegments.size();
+	}
+
+	//The manifest for the run following this one
+	public synchronized Manifest nextGeneration() {
+		final Manifest out = new Manifest(generation + 1, null);
+		out.intrinsics.putAll(intrinsics);
+		out.namefiles.putAll(namefiles);
+		out.others.putAll(others);
+		out.chunks.putAll(chunks);
+		out.packs.putAll(packs);
+		out.nameSegments.putAll(nameSegments);
+		return out;
+	}
+
+	//Builds a manifest from a full listing of the bucket, decrypting metadata on
+	//several threads while the listing is fetched.  Objects whose metadata
+	//can't be read are kept as Others.  Chunk lists aren't downloaded, so chunked
+	//intrinsics are left without them, and packed bodies and names in segments
+	//are only found by reading the packs and segments after; see readIndexes().
+	public static Manifest fromListing(Iterable<B2FileVersion> remoteIt, KeyfileCrypter crypt, long generation) {
+		final Manifest out = new Manifest(generation, null);
+		final int n = new RemoteScanner(Runtime.getRuntime().availableProcessors())
+				.scan(remoteIt, (B2FileVersion b2fv) -> out.addFromListing(b2fv, crypt));
+		System.out.println(n + " files found remotely");
+		out.fillHashesFromNamefiles();
+		return out;
+	}
+
+	//Called concurrently by RemoteScanner's workers; the add methods synchronize
+	private void addFromListing(B2FileVersion b2fv, KeyfileCrypter crypt) {
+		try {
+			if (b2fv.getFileName().equals(KEYFILE_NAME) || b2fv.getFileName().equals(MANIFEST_NAME)) {
+				//Do nothing.  These are handled separately.
+			} else if(ChunkMetadata.isChunkName(b2fv)) {
+				addChunk(ChunkMetadata.fromB2FileVersion(b2fv));
+			} else if(PackMetadata.isPackName(b2fv)) {
+				addPack(PackMetadata.fromB2FileVersion(b2fv, crypt));
+			} else if(NameSegmentMetadata.isSegmentName(b2fv)) {
+				addNameSegment(NameSegmentMetadata.fromB2FileVersion(b2fv));
+			} else if(IntrinsicMetadata.isIntrinsicMDName(b2fv)) {
+				addIntrinsic(IntrinsicMetadata.fromB2FileVersion(b2fv, crypt));
+			} else if(NamefileMetadata.isNamefileMDName(b2fv)) {
+				addNamefile(NamefileMetadata.fromB2FileVersion(b2fv, crypt));
+			} else {
+				//The checks above are already complementary, so currently this
+				//should never get reached; we will get an exception trying
+				//to convert.
+				throw new IllegalStateException();
+			}
+		} catch(Exception ex) {
+			//Incompatible file, presumably
+			System.out.println("incompatible file: " + b2fv.getFileName());
+			addOther(new Other(b2fv.getFileName(), b2fv.getFileId()));
+		}
+	}
+
+	//For a manifest built from a listing, reads the name segments and pack
+	//indexes it found, adding the names and packed bodies in them
+	public void readIndexes(B2StorageClient client, KeyfileCrypter crypt) throws B2Exception {
+		readNameSegments(client, crypt);
+		readPackIndexes(client, crypt);
+		fillHashesFromNamefiles();
+	}
+
+	//Downloads each name segment and adds the names no other segment has a
+	//tombstone for.  Segments superseded by another are left to be deleted as
+	//Others, as are segments that can't be read.
+	private void readNameSegments(B2StorageClient client, KeyfileCrypter crypt) throws B2Exception {
+		final Map<NameSegmentMetadata, NameSegmentMetadata.Contents> read = new HashMap<>();
+		final Set<String> superseded = new HashSet<>();
+		final Set<String> tombstones = new HashSet<>();
+		for(final NameSegmentMetadata segment : getNameSegments()) {
+			try {
+				final NameSegmentMetadata.Contents contents = segment.download(client, crypt);
+				read.put(segment, contents);
+				superseded.addAll(contents.supersedes);
+			} catch(IOException | RuntimeException ex) {
+				System.out.println("Unreadable name segment: " + segment.getRemoteName() + " " + ex);
+				demote(segment.getRemoteName(), segment.getRemoteID());
+			}
+		}
+		int names = 0;
+		int live = 0;
+		for(final Map.Entry<NameSegmentMetadata, NameSegmentMetadata.Contents> e : read.entrySet()) {
+			if(superseded.contains(e.getKey().getRemoteName())) demote(e.getKey().getRemoteName(), e.getKey().getRemoteID());
+			else tombstones.addAll(e.getValue().tombstones);
+		}
+		for(final Map.Entry<NameSegmentMetadata, NameSegmentMetadata.Contents> e : read.entrySet()) {
+			if(superseded.contains(e.getKey().getRemoteName())) continue;
+			addNameSegment(e.getKey().withRecords(e.getValue().records()));
+			live++;
+			for(final NamefileMetadata md : e.getValue().names) {
+				if(tombstones.contains(md.getRemoteName())) continue;
+				addNamefile(md);
+				names++;
+			}
+		}
+		if(!read.isEmpty()) System.out.println(names + " names found in " + live + " name segments");
+	}
+
+	//Keeps an object found unusable as an Other, so it's deleted as an orphan
+	private synchronized void demote(String remoteName, String remoteID) {
+		remove(remoteName);
+		others.put(remoteName, new Other(remoteName, remoteID));
+	}
+
+	//Downloads each pack's index and adds its members.  Members have to agree
+	//with the pack they're found in; a pack whose index can't be read is kept
+	//as an Other.
+	private void readPackIndexes(B2StorageClient client, KeyfileCrypter crypt) throws B2Exception {
+		int members = 0;
+		for(final PackMetadata pack : getPacks()) {
+			try {
+				final byte[] index = pack.read(client, crypt, pack.getDataLength(), pack.getIndexLength());
+				final Manifest parsed = new Manifest(0, null);
+				final DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+				while(parsed.readNextEntry(in));
+				if(parsed.size() != parsed.intrinsics.size()) throw new IOException("Unexpected entry in pack index");
+				for(final IntrinsicMetadata md : parsed.intrinsics.values()) {
+					if(!pack.getRemoteName().equals(md.getPack())) throw new IOException("Member of another pack");
+					if(md.getPackOffset() < 0 || md.getPackOffset() + md.getSize() > pack.getDataLength()) {
+						throw new IOException("Member outside pack data");
+					}
+				}
+				for(final IntrinsicMetadata md : parsed.intrinsics.values()) {
+					md.setRemoteID(pack.getRemoteID());
+					addIntrinsic(md);
+				}
+				members += parsed.intrinsics.size();
+			} catch(IOException | RuntimeException ex) {
+				System.out.println("Unreadable pack index: " + pack.getRemoteName() + " " + ex);
+				demote(pack.getRemoteName(), pack.getRemoteID());
+			}
+		}
+		final int packCount = getPacks().size();
+		if(packCount > 0) System.out.println(members + " packed files found in " + packCount + " packs");
+	}
+
+	//Content hashed while it was uploaded has its hash in the namefile instead
+	private void fillHashesFromNamefiles() {
+		for(final NamefileMetadata nf : namefiles.values()) {
+			if(nf.getContentHash() == null) continue;
+			final IntrinsicMetadata md = intrinsics.get(nf.getAssociatedIntrinsicFile());
+			if(md != null && md.getHash() == null) md.setHash(nf.getContentHash(), nf.getContentHashScheme());
+		}
+	}
+
+	//Returns the current manifest's version, or null if there is none
+	public static B2FileVersion findRemoteOrNull(B2StorageClient client, String bucketId) throws B2Exception {
+		return findVersionOrNull(client, bucketId, MANIFEST_NAME);
+	}
+
+	//Latest version of the named file, or null if there is none
+	public static B2FileVersion findVersionOrNull(B2StorageClient client, String bucketId, String name) throws B2Exception {
+		final B2ListFileNamesRequest req = B2ListFileNamesRequest.builder(bucketId)
+				.setStartFileName(name)
+				.setMaxFileCount(1)
+				.build();
+		final Iterator<B2FileVersion> it = client.fileNames(req).iterator();
+		if(!it.hasNext()) return null;
+		final B2FileVersion b2fv = it.next();
+		return b2fv.getFileName().equals(name) ? b2fv : null;
+	}
+
+	public static long generationOf(B2FileVersion b2fv) {
+		try {
+			return Long.parseLong(b2fv.getFileInfo().get(GENERATION_KEY));
+		} catch(RuntimeException ex) {
+			return 0;
+		}
+	}
+
+	//Downloads and checks the manifest, returning null if it's unusable.  It's
+	//parsed as it's decrypted, so neither the plaintext nor the download is ever
+	//held whole, and local names and hashes never reach disk in the clear.
+	public static Manifest download(B2StorageClient client, B2FileVersion b2fv, KeyfileCrypter crypt) throws B2Exception {
+		final long expectedGeneration = generationOf(b2fv);
+		//Of the last attempt, should the client retry; parse failures are kept
+		//rather than thrown, so they aren't mistaken for download failures
+		final List<Manifest> parsed = new ArrayList<>(1);
+		final List<Exception> unreadable = new ArrayList<>(1);
+		client.downloadById(b2fv.getFileId(), new B2ContentSink() {
+			@Override
+			public void readContent(B2Headers responseHeaders, InputStream in) {
+				parsed.clear();
+				unreadable.clear();
+				try {
+					parsed.add(readEncrypted(in, crypt, b2fv.getFileId()));
+				} catch(IOException | RuntimeException ex) {
+					unreadable.add(ex);
+				}
+			}
+		});
+		if(!unreadable.isEmpty()) {
+			//Corrupt, truncated, from another key, or an unknown version
+			System.out.println("Unreadable manifest, ignoring: " + unreadable.get(0));
+			return null;
+		}
+		final Manifest out = parsed.get(0);
+		if(out.generation != expectedGeneration) {
+			System.out.println("Manifest generation mismatch, ignoring manifest");
+			return null;
+		}
+		return out;
+	}
+
+	public static B2DeleteFileVersionRequest toDelete(B2FileVersion b2fv) {
+		return B2DeleteFileVersionRequest.builder(b2fv.getFileName(), b2fv.getFileId()).build();
+	}
+
+	//Serializes the manifest straight through an encrypting stream to a new temp
+	//file, for toUpload(), so neither it nor its encryption is held in memory and
+	//nothing reaches disk in the clear.  The caller deletes the file once the
+	//upload is done.
+	public Path encryptToTemp(KeyfileCrypter crypt) throws IOException {
+		final Path out = Files.createTempFile(null, null);
+		boolean written = false;
+		try {
+			try(final OutputStream os = crypt.encryptingStream(new BufferedOutputStream(Files.newOutputStream(out)))) {
+				writeTo(os);
+			}
+			written = true;
+			return out;
+		} finally {
+			if(!written) Files.deleteIfExists(out);
+		}
+	}
+
+	//The upload of this manifest, as encrypted by encryptToTemp()
+	public B2UploadFileRequest toUpload(Path encrypted, String bucketId) {
+		final B2ContentSource contentSource = B2FileContentSource.build(encrypted.toFile());
+		final Map<String, String> info = new HashMap<>(1);
+		info.put(GENERATION_KEY, Long.toString(generation));
+
+		return B2UploadFileRequest.builder(
+				bucketId,
+				MANIFEST_NAME,
+				B2ContentTypes.APPLICATION_OCTET,
+				contentSource)
+					.setCustomFields(info)
+					.build();
+	}
+
+	//Layout is magic, version, generation, then tagged entries and an END tag
+	//followed by the entry count
+	public synchronized void writeTo(OutputStream os) throws IOException {
+		final DeflaterOutputStream dos = new DeflaterOutputStream(new BufferedOutputStream(os), new Deflater(Deflater.BEST_SPEED));
+		final DataOutputStream out = new DataOutputStream(dos);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(generation);
+		for(final IntrinsicMetadata md : intrinsics.values()) writeEntry(out, md);
+		for(final NamefileMetadata md : namefiles.values()) writeEntry(out, md);
+		for(final Other o : others.values()) {
+			out.writeByte(OTHER);
+			writeString(out, o.remoteName);
+			writeString(out, o.remoteID);
+		}
+		for(final ChunkMetadata c : chunks.values()) writeEntry(out, c);
+		for(final PackMetadata p : packs.values()) writeEntry(out, p);
+		for(final NameSegmentMetadata s : nameSegments.values()) writeEntry(out, s);
+		out.writeByte(END);
+		out.writeInt(size());
+		out.flush();
+		dos.finish();
+		dos.flush();
+	}
+
+	//Single entries, as in the manifest layout, also used by SyncJournal
+	static void writeEntry(DataOutputStream out, IntrinsicMetadata md) throws IOException {
+		out.writeByte(INTRINSIC);
+		writeString(out, md.getRemoteName());
+		writeString(out, md.getRemoteID());
+		out.writeLong(md.getSize());
+		//0 for no hash, otherwise 1 + scheme
+		out.writeByte((md.getHash() == null) ? 0 : 1 + md.getHashScheme());
+		if(md.getHash() != null) out.write(md.getHash());
+		if(md.isPacked()) {
+			out.writeByte(PACKED);
+			writeString(out, md.getPack());
+			out.writeLong(md.getPackOffset());
+		} else if(!md.isChunked()) {
+			out.writeByte(NOT_CHUNKED);
+		} else if(md.getChunks() == null) {
+			out.writeByte(CHUNKED_UNREAD);
+		} else {
+			out.writeByte(CHUNKED_WITH_LIST);
+			md.getChunks().writeTo(out);
+		}
+	}
+
+	static void writeEntry(DataOutputStream out, NamefileMetadata md) throws IOException {
+		out.writeByte(NAMEFILE);
+		writeString(out, md.remoteName);
+		writeString(out, md.remoteID);
+		writeString(out, md.localName);
+		out.writeLong(md.timestamp);
+		writeString(out, md.associatedIntrinsicFile);
+		//0 for a namefile of its own, otherwise 1 and the segment it's in
+		out.writeByte(md.isSegmented() ? 1 : 0);
+		if(md.isSegmented()) writeString(out, md.getSegment());
+	}
+
+	static void writeEntry(DataOutputStream out, ChunkMetadata c) throws IOException {
+		out.writeByte(CHUNK);
+		writeString(out, c.getRemoteName());
+		writeString(out, c.getRemoteID());
+	}
+
+	static void writeEntry(DataOutputStream out, PackMetadata p) throws IOException {
+		out.writeByte(PACK);
+		writeString(out, p.getRemoteName());
+		writeString(out, p.getRemoteID());
+		out.write(p.getHeader());
+		out.writeLong(p.getDataLength());
+		out.writeInt(p.getIndexLength());
+	}
+
+	static void writeEntry(DataOutputStream out, NameSegmentMetadata s) throws IOException {
+		out.writeByte(NAME_SEGMENT);
+		writeString(out, s.getRemoteName());
+		writeString(out, s.getRemoteID());
+		out.writeInt(s.getRecords());
+	}
+
+	//A pack's index: its members' entries, then END
+	static void writeIndex(DataOutputStream out, Collection<IntrinsicMetadata> members) throws IOException {
+		for(final IntrinsicMetadata md : members) writeEntry(out, md);
+		out.writeByte(END);
+	}
+
+	//Reads one entry into this manifest
+	synchronized void readEntry(DataInputStream in) throws IOException {
+		if(!readNextEntry(in)) throw new IOException("Unexpected end of manifest entries");
+	}
+
+	//Returns false at the END tag
+	private boolean readNextEntry(DataInputStream in) throws IOException {
+		final byte tag = in.readByte();
+		switch(tag) {
+		case END:
+			return false;
+		case INTRINSIC: {
+			final String remoteName = readString(in);
+			final String intrinsicID = readString(in);
+			final long size = in.readLong();
+			final int hashKind = in.readByte();
+			byte[] hash = null;
+			if(hashKind != 0) {
+				hash = new byte[Hasher.OUTPUT_LENGTH];
+				in.readFully(hash);
+			}
+			final byte scheme = (hashKind == 0) ? Hasher.SCHEME_FLAT : (byte)(hashKind - 1);
+			final IntrinsicMetadata md = new IntrinsicMetadata(hash, scheme, size, remoteName, intrinsicID);
+			final byte chunking = in.readByte();
+			if(chunking == CHUNKED_WITH_LIST) md.setChunks(ChunkList.readFrom(in));
+			else if(chunking == CHUNKED_UNREAD) md.setChunkedUnread();
+			else if(chunking == PACKED) md.setPacked(readString(in), in.readLong());
+			else if(chunking != NOT_CHUNKED) throw new IOException("Unknown chunking " + chunking);
+			addIntrinsic(md);
+			return true;
+		}
+		case NAMEFILE: {
+			final String remoteName = readString(in);
+			final String namefileID = readString(in);
+			final String localName = readString(in);
+			final long timestamp = in.readLong();
+			final String associated = readString(in);
+			final NamefileMetadata md = new NamefileMetadata(localName, timestamp, remoteName, associated);
+			md.remoteID = namefileID;
+			if(in.readByte() != 0) md.setSegment(readString(in), namefileID);
+			addNamefile(md);
+			return true;
+		}
+		case OTHER:
+			addOther(new Other(readString(in), readString(in)));
+			return true;
+		case CHUNK:
+			addChunk(new ChunkMetadata(readString(in), readString(in)));
+			return true;
+		case PACK: {
+			final String remoteName = readString(in);
+			final String packID = readString(in);
+			final byte[] header = new byte[SegmentedCrypter.HEADER_LENGTH];
+			in.readFully(header);
+			addPack(new PackMetadata(remoteName, packID, header, in.readLong(), in.readInt()));
+			return true;
+		}
+		case NAME_SEGMENT:
+			addNameSegment(new NameSegmentMetadata(readString(in), readString(in), in.readInt()));
+			return true;
+		default:
+			throw new IOException("Unknown manifest entry " + tag);
+		}
+	}
+
+	//Parses a manifest as it's decrypted from the segmented format.  Nothing is
+	//parsed before its segment is authenticated, and the input is read to the
+	//end, so a truncated one fails on its last segment.
+	static Manifest readEncrypted(InputStream is, KeyfileCrypter crypt, String remoteID) throws IOException {
+		final InputStream plain = crypt.decryptingStream(is);
+		final Manifest out = readFrom(plain, remoteID);
+		readToEnd(plain);
+		return out;
+	}
+
+	//For streams from decryptingStream, whose last segment is only checked at
+	//the end
+	static void readToEnd(InputStream in) throws IOException {
+		final byte[] buf = new byte[8192];
+		while(in.read(buf) >= 0);
+	}
+
+	static Manifest readFrom(InputStream is, String remoteID) throws IOException {
+		final DataInputStream in = new DataInputStream(new InflaterInputStream(new BufferedInputStream(is)));
+		if(in.readInt() != MAGIC) throw new IOException("Not a manifest");
+		if(in.readInt() != VERSION) throw new IOException("Unknown manifest version");
+		final Manifest out = new Manifest(in.readLong(), remoteID);
+		while(out.readNextEntry(in));
+		if(in.readInt() != out.size()) throw new IOException("Manifest entry count mismatch");
+		return out;
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		final byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
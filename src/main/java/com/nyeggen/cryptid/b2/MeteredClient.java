@@ -0,0 +1,160 @@
+package com.nyeggen.cryptid.b2;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+
+import com.backblaze.b2.client.B2ListFilesIterable;
+import com.backblaze.b2.client.B2StorageClient;
+import com.backblaze.b2.client.contentHandlers.B2ContentSink;
+import com.backblaze.b2.client.contentSources.B2Headers;
+import com.backblaze.b2.client.structures.B2FileVersion;
+import com.backblaze.b2.client.structures.B2UploadFileRequest;
+import com.nyeggen.cryptid.util.Metrics;
+
+//Wraps a client so every request is counted and timed under the upload,
+//download, delete and list stages of a Metrics, wherever it's made from.
+//Uploads count their bodies' length, downloads the bytes read from them.  A
+//listing is counted per file listed, each timed from asking for it to getting
+//it, so page fetches show up as the slow ones.  The wrapper is a proxy, so it
+//needn't follow every method of the SDK's interface; the rest pass through.
+public class MeteredClient {
+	private MeteredClient() {}
+
+	public static B2StorageClient wrap(B2StorageClient client, Metrics metrics) {
+		final Metrics.Stage upload = metrics.stage("upload");
+		final Metrics.Stage download = metrics.stage("download");
+		final Metrics.Stage delete = metrics.stage("delete");
+		final Metrics.Stage list = metrics.stage("list");
+		return (B2StorageClient)Proxy.newProxyInstance(B2StorageClient.class.getClassLoader(),
+				new Class<?>[] {B2StorageClient.class},
+				(proxy, method, args) -> {
+					switch(method.getName()) {
+					case "uploadSmallFile":
+					case "uploadLargeFile":
+					case "finishUploadingLargeFile":
+						return timed(upload, client, method, args, uploadLength(args));
+					case "downloadById":
+					case "downloadByName":
+						return timed(download, client, method, counting(args, download), 0);
+					case "deleteFileVersion":
+						return timed(delete, client, method, args, 0);
+					case "fileNames":
+					case "fileVersions":
+					case "unfinishedLargeFiles": {
+						final Object out = call(client, method, args);
+						return (out instanceof B2ListFilesIterable) ? timed(list, (B2ListFilesIterable)out) : out;
+					}
+					default:
+						return call(client, method, args);
+					}
+				});
+	}
+
+	private static Object call(B2StorageClient client, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(client, args);
+		} catch(InvocationTargetException ex) {
+			throw ex.getCause();
+		}
+	}
+
+	private static Object timed(Metrics.Stage stage, B2StorageClient client, Method method, Object[] args, long bytes) throws Throwable {
+		final long start = stage.start();
+		try {
+			final Object out = call(client, method, args);
+			stage.finish(start, bytes);
+			return out;
+		} catch(Throwable t) {
+			stage.fail(start);
+			throw t;
+		}
+	}
+
+	private static long uploadLength(Object[] args) {
+		for(final Object arg : args) {
+			if(!(arg instanceof B2UploadFileRequest)) continue;
+			try {
+				return ((B2UploadFileRequest)arg).getContentSource().getContentLength();
+			} catch(IOException ex) {
+				return 0;
+			}
+		}
+		return 0;
+	}
+
+	//The arguments, with the sink's stream counted into the stage as it's read
+	private static Object[] counting(Object[] args, Metrics.Stage stage) {
+		final Object[] out = args.clone();
+		for(int i = 0; i < out.length; i++) {
+			if(!(out[i] instanceof B2ContentSink)) continue;
+			final B2ContentSink sink = (B2ContentSink)out[i];
+			out[i] = (B2ContentSink)(B2Headers headers, InputStream in) -> sink.readContent(headers, new FilterInputStream(in) {
+				@Override
+				public int read() throws IOException {
+					final int b = in.read();
+					if(b >= 0) stage.add(1);
+					return b;
+				}
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					final int n = in.read(b, off, len);
+					if(n > 0) stage.add(n);
+					return n;
+				}
+			});
+		}
+		return out;
+	}
+
+	private static B2ListFilesIterable timed(Metrics.Stage stage, B2ListFilesIterable listing) {
+		return () -> {
+			final Iterator<B2FileVersion> it = listing.iterator();
+			return new Iterator<B2FileVersion>() {
+				//Start of the wait for the next file, if it's begun
+				private boolean waiting = false;
+				private long start;
+
+				@Override
+				public boolean hasNext() {
+					if(!waiting) {
+						start = stage.start();
+						waiting = true;
+					}
+					final boolean more;
+					try {
+						more = it.hasNext();
+					} catch(RuntimeException ex) {
+						waiting = false;
+						stage.fail(start);
+						throw ex;
+					}
+					if(!more) {
+						waiting = false;
+						stage.cancel();
+					}
+					return more;
+				}
+
+				@Override
+				public B2FileVersion next() {
+					hasNext();
+					waiting = false;
+					final B2FileVersion out;
+					try {
+						out = it.next();
+					} catch(RuntimeException ex) {
+						stage.fail(start);
+						throw ex;
+					}
+					stage.finish(start);
+					return out;
+				}
+			};
+		};
+	}
+}
@@ -0,0 +1,72 @@
+package com.nyeggen.cryptid.b2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.backblaze.b2.client.contentSources.B2ByteArrayContentSource;
+import com.backblaze.b2.client.contentSources.B2ContentTypes;
+import com.backblaze.b2.client.structures.B2UploadFileRequest;
+import com.nyeggen.cryptid.util.KeyfileCrypter;
+
+//Collects namefiles and tombstones for one name segment.  The body, encrypted
+//in the segmented format, is a layout version, the names of the segments this
+//one supersedes, then tagged records and an END tag: a name is its entry's
+//remote name, local name, timestamp, intrinsic and hash; a tombstone is the
+//remote name of an entry in another segment that's gone.  Not thread safe.
+public class NameSegmentBuilder {
+	private final String remoteName = NameSegmentMetadata.newRemoteName();
+	private final List<NamefileMetadata> names = new ArrayList<>();
+	private final List<NamefileMetadata> tombstones = new ArrayList<>();
+	private final List<String> supersedes = new ArrayList<>();
+
+	public String getRemoteName() { return remoteName; }
+	public int size() { return names.size() + tombstones.size(); }
+	public List<NamefileMetadata> getNames() { return new ArrayList<>(names); }
+	public List<NamefileMetadata> getTombstones() { return new ArrayList<>(tombstones); }
+
+	public void add(NamefileMetadata md) { names.add(md); }
+	public void tombstone(NamefileMetadata md) { tombstones.add(md); }
+	//Readers ignore the named segments once this one is uploaded, so it has to
+	//hold every live name of theirs, or follow segments that do
+	public void supersede(Collection<String> segments) { supersedes.addAll(segments); }
+
+	public B2UploadFileRequest toUpload(KeyfileCrypter crypt, String bucketId) throws IOException {
+		final ByteArrayOutputStream plain = new ByteArrayOutputStream(64 + names.size() * 160);
+		final DataOutputStream out = new DataOutputStream(plain);
+		out.writeByte(NameSegmentMetadata.LAYOUT_VERSION);
+		out.writeInt(supersedes.size());
+		for(final String s : supersedes) Manifest.writeString(out, s);
+		for(final NamefileMetadata md : names) {
+			out.writeByte(NameSegmentMetadata.NAME);
+			Manifest.writeString(out, md.getRemoteName());
+			Manifest.writeString(out, md.getLocalName());
+			out.writeLong(md.getTimestamp());
+			Manifest.writeString(out, md.getAssociatedIntrinsicFile());
+			out.writeByte((md.getContentHash() == null) ? 0 : 1 + md.getContentHashScheme());
+			if(md.getContentHash() != null) out.write(md.getContentHash());
+		}
+		for(final NamefileMetadata md : tombstones) {
+			out.writeByte(NameSegmentMetadata.TOMBSTONE);
+			Manifest.writeString(out, md.getRemoteName());
+		}
+		out.writeByte(NameSegmentMetadata.END);
+		out.flush();
+		final byte[] bytes = plain.toByteArray();
+		return B2UploadFileRequest.builder(
+				bucketId,
+				remoteName,
+				B2ContentTypes.APPLICATION_OCTET,
+				B2ByteArrayContentSource.build(crypt.encryptSegmented(bytes, 0, bytes.length)))
+					.build();
+	}
+
+	//Once uploaded, the names are entries in it
+	public NameSegmentMetadata uploaded(String remoteID) {
+		for(final NamefileMetadata md : names) md.setSegment(remoteName, remoteID);
+		return new NameSegmentMetadata(remoteName, remoteID, size());
+	}
+}
@@ -0,0 +1,121 @@
+package com.nyeggen.cryptid.b2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import com.backblaze.b2.client.B2StorageClient;
+import com.backblaze.b2.client.contentSources.B2Headers;
+import com.backblaze.b2.client.exceptions.B2Exception;
+import com.backblaze.b2.client.structures.B2DeleteFileVersionRequest;
+import com.backblaze.b2.client.structures.B2FileVersion;
+import com.nyeggen.cryptid.util.Hasher;
+import com.nyeggen.cryptid.util.KeyfileCrypter;
+
+//An uploaded name segment: many namefiles in one object, appended to the
+//remote as a run goes rather than changed in place.  Entries are added, or
+//removed by a tombstone in a later segment; a compacted segment names the
+//segments it replaces.  See NameSegmentBuilder for the layout.
+public class NameSegmentMetadata implements B2Deletable {
+	public static final String SEGMENT_PREFIX = "ns/";
+	static final byte LAYOUT_VERSION = 1;
+	static final byte END = 0;
+	static final byte NAME = 1;
+	static final byte TOMBSTONE = 2;
+
+	//What a segment says, once downloaded
+	static class Contents {
+		final List<NamefileMetadata> names = new ArrayList<>();
+		final Set<String> tombstones = new HashSet<>();
+		//Segments this one replaces, having all their live names
+		final Set<String> supersedes = new HashSet<>();
+
+		int records() { return names.size() + tombstones.size(); }
+	}
+
+	private final String remoteName;
+	private final String remoteID;
+	//Names and tombstones in it, for telling when it's worth compacting
+	private final int records;
+
+	NameSegmentMetadata(String remoteName, String remoteID, int records) {
+		this.remoteName = remoteName;
+		this.remoteID = remoteID;
+		this.records = records;
+	}
+
+	@Override
+	public String getRemoteName() { return remoteName; }
+	public String getRemoteID() { return remoteID; }
+	public int getRecords() { return records; }
+
+	@Override
+	public B2DeleteFileVersionRequest toDelete() {
+		return B2DeleteFileVersionRequest.builder(remoteName, remoteID).build();
+	}
+
+	public static boolean isSegmentName(B2FileVersion b2fv) {
+		return b2fv.getFileName().startsWith(SEGMENT_PREFIX);
+	}
+
+	static String newRemoteName() {
+		return SEGMENT_PREFIX + UUID.randomUUID().toString();
+	}
+
+	//Record count is unknown until the segment is read
+	public static NameSegmentMetadata fromB2FileVersion(B2FileVersion b2fv) {
+		if(!isSegmentName(b2fv)) throw new IllegalArgumentException();
+		return new NameSegmentMetadata(b2fv.getFileName(), b2fv.getFileId(), 0);
+	}
+
+	NameSegmentMetadata withRecords(int records) {
+		return new NameSegmentMetadata(remoteName, remoteID, records);
+	}
+
+	Contents download(B2StorageClient client, KeyfileCrypter crypt) throws IOException, B2Exception {
+		final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		client.downloadById(remoteID, (B2Headers responseHeaders, InputStream in) -> crypt.decryptStream(in, plain));
+		return parse(new DataInputStream(new ByteArrayInputStream(plain.toByteArray())));
+	}
+
+	private Contents parse(DataInputStream in) throws IOException {
+		final byte version = in.readByte();
+		if(version != LAYOUT_VERSION) throw new IOException("Unknown name segment version " + version);
+		final Contents out = new Contents();
+		for(int n = in.readInt(); n > 0; n--) out.supersedes.add(Manifest.readString(in));
+		for(byte tag = in.readByte(); tag != END; tag = in.readByte()) {
+			switch(tag) {
+			case NAME: {
+				final String name = Manifest.readString(in);
+				final String localName = Manifest.readString(in);
+				final long timestamp = in.readLong();
+				final String associated = Manifest.readString(in);
+				final NamefileMetadata md = new NamefileMetadata(localName, timestamp, name, associated);
+				//0 for no hash, otherwise 1 + scheme
+				final int hashKind = in.readByte();
+				if(hashKind != 0) {
+					final byte[] hash = new byte[Hasher.OUTPUT_LENGTH];
+					in.readFully(hash);
+					md.setContentHash(hash, (byte)(hashKind - 1));
+				}
+				md.setSegment(remoteName, remoteID);
+				out.names.add(md);
+				break;
+			}
+			case TOMBSTONE:
+				out.tombstones.add(Manifest.readString(in));
+				break;
+			default:
+				throw new IOException("Unknown name segment record " + tag);
+			}
+		}
+		return out;
+	}
+}
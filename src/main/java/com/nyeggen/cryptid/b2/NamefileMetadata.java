@@ -1,21 +1,20 @@
 package com.nyeggen.cryptid.b2;
 
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 
-import com.backblaze.b2.client.contentSources.B2ByteArrayContentSource;
-import com.backblaze.b2.client.contentSources.B2ContentTypes;
 import com.backblaze.b2.client.structures.B2DeleteFileVersionRequest;
 import com.backblaze.b2.client.structures.B2FileVersion;
-import com.backblaze.b2.client.structures.B2UploadFileRequest;
+import com.nyeggen.cryptid.util.Hasher;
 import com.nyeggen.cryptid.util.KeyfileCrypter;
 
 //This is replaceable remote metadata to support rename / move / touch
-//semantics, or anything else that doesn't affect content.
+//semantics, or anything else that doesn't affect content.  Originally each was
+//an object of its own; now they're entries in name segments, see
+//NameSegmentBuilder, and the remote name only identifies the entry.
 
 public class NamefileMetadata implements B2Deletable {
 	public static final String NAMEFILE_PREFIX = "md/";
@@ -29,18 +28,51 @@ public class NamefileMetadata implements B2Deletable {
 	String remoteID;
 	//Name of the remote intrinsic file to which this refers
 	String associatedIntrinsicFile;
+	//Hash of the content, for intrinsic files uploaded without one, or null
+	byte[] contentHash = null;
+	byte contentHashScheme = Hasher.SCHEME_FLAT;
+	//Name segment the entry is in, or null if it's an object of its own
+	String segment = null;
 
 	@Override
 	public String getRemoteName() { return remoteName; }
 	public String getAssociatedIntrinsicFile() { return associatedIntrinsicFile; }
 	public String getLocalName() { return localName; }
 	public long getTimestamp() { return timestamp; }
+	public byte[] getContentHash() { return contentHash; }
+	public byte getContentHashScheme() { return contentHashScheme; }
+	public boolean isSegmented() { return segment != null; }
+	public String getSegment() { return segment; }
+	
+	public void setContentHash(byte[] hash, byte scheme) {
+		this.contentHash = hash;
+		this.contentHashScheme = scheme;
+	}
+	
+	//Assigned once uploaded
+	public void setRemoteID(String remoteID) {
+		this.remoteID = remoteID;
+	}
+	
+	//Once in an uploaded segment, its remote ID is the segment's
+	void setSegment(String segment, String remoteID) {
+		this.segment = segment;
+		this.remoteID = remoteID;
+	}
+	
+	//The same name under a new remote name, for moving a standalone namefile
+	//into a segment
+	public NamefileMetadata copy() {
+		final NamefileMetadata out = new NamefileMetadata(localName, timestamp, associatedIntrinsicFile);
+		out.setContentHash(contentHash, contentHashScheme);
+		return out;
+	}
 	
 	public static boolean isNamefileMDName(B2FileVersion b2fv) {
 		return b2fv.getFileName().startsWith(NAMEFILE_PREFIX);
 	}
 	
-	private NamefileMetadata(String localName, long timestamp, String remoteName, String associatedIntrinsic) {
+	NamefileMetadata(String localName, long timestamp, String remoteName, String associatedIntrinsic) {
 		this.localName = localName;
 		this.timestamp = timestamp;
 		this.remoteName = remoteName;
@@ -50,31 +82,6 @@ public class NamefileMetadata implements B2Deletable {
 		this(localName, timestamp, NAMEFILE_PREFIX + UUID.randomUUID().toString(), associatedIntrinsic);
 	}
 	
-	public B2UploadFileRequest toUpload(KeyfileCrypter crypt, String bucketId) throws IOException{
-		//Use existing timestamp field, non encrypted
-		final Map<String, String> meta = new HashMap<>(2);
-		meta.put("src_last_modified_millis", Long.toString(timestamp));
-		
-		//Encrypt the local name
-		final byte[] nameBytes = localName.getBytes(StandardCharsets.UTF_8);
-		final byte[] encrypted = crypt.encrypt(nameBytes);
-		final String encoded = Base64.getEncoder().encodeToString(encrypted);
-		meta.put("m", encoded);
-		
-		//Associated intrinsic file in plaintext, since it's random
-		meta.put("a", associatedIntrinsicFile);
-		
-		final B2UploadFileRequest out = B2UploadFileRequest.builder(
-				bucketId, 
-				remoteName,
-				B2ContentTypes.APPLICATION_OCTET, 
-				B2ByteArrayContentSource.build(crypt.getRandomBytes(16)))
-					.setCustomFields(meta)
-					.build();
-		
-		return out;
-	}
-	
 	@Override
 	public B2DeleteFileVersionRequest toDelete(){
 		return B2DeleteFileVersionRequest.builder(remoteName, remoteID).build();
@@ -89,13 +96,24 @@ public class NamefileMetadata implements B2Deletable {
 		
 		final String encoded = meta.get("m");
 		final byte[] encrypted = Base64.getDecoder().decode(encoded);
-		final byte[] nameBytes = crypt.decrypt(encrypted);
-		final String localName = new String(nameBytes, StandardCharsets.UTF_8);
+		final ByteBuffer nameBytes = ByteBuffer.allocate(KeyfileCrypter.decryptedSize(encrypted.length));
+		crypt.decrypt(ByteBuffer.wrap(encrypted), nameBytes);
+		final String localName = new String(nameBytes.array(), 0, nameBytes.position(), StandardCharsets.UTF_8);
 		
 		final String associated = meta.get("a");
 				
 		final NamefileMetadata out = new NamefileMetadata(localName, timestamp, remoteName, associated);
 		out.remoteID = b2fv.getFileId();
+		final String encodedHash = meta.get("h");
+		if(encodedHash != null) {
+			final byte[] encryptedHash = Base64.getDecoder().decode(encodedHash);
+			final ByteBuffer schemeAndHash = ByteBuffer.allocate(KeyfileCrypter.decryptedSize(encryptedHash.length));
+			crypt.decrypt(ByteBuffer.wrap(encryptedHash), schemeAndHash);
+			schemeAndHash.flip();
+			out.contentHashScheme = schemeAndHash.get();
+			out.contentHash = new byte[schemeAndHash.remaining()];
+			schemeAndHash.get(out.contentHash);
+		}
 		return out;
 	}
 	
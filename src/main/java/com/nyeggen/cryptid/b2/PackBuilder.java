@@ -0,0 +1,72 @@
+package com.nyeggen.cryptid.b2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.backblaze.b2.client.contentSources.B2ByteArrayContentSource;
+import com.backblaze.b2.client.contentSources.B2ContentSource;
+import com.backblaze.b2.client.contentSources.B2ContentTypes;
+import com.backblaze.b2.client.structures.B2UploadFileRequest;
+import com.nyeggen.cryptid.util.KeyfileCrypter;
+import com.nyeggen.cryptid.util.SegmentedCrypter;
+
+//Collects small bodies into a pack in memory, then encrypts it for upload.
+//Members are laid end to end, followed by an index of them as manifest entries
+//and an END tag, so the pack can be made sense of without a manifest; see
+//Manifest.readIndexes().  Not thread safe.
+public class PackBuilder {
+	private final String remoteName = PackMetadata.newRemoteName();
+	private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+	private final List<IntrinsicMetadata> members = new ArrayList<>();
+	//Set by toUpload()
+	private byte[] header = null;
+	private int indexLength = 0;
+
+	public String getRemoteName() { return remoteName; }
+	public long getDataLength() { return data.size(); }
+	public List<IntrinsicMetadata> getMembers() { return new ArrayList<>(members); }
+	public boolean isEmpty() { return members.isEmpty(); }
+
+	//Appends the body, returning its metadata as a member of this pack.  The
+	//hash is needed up front, since the index is written before any namefile.
+	public IntrinsicMetadata add(IntrinsicMetadata md, byte[] b, int off) {
+		if(header != null) throw new IllegalStateException("Pack already built");
+		if(md.getHash() == null) throw new IllegalArgumentException("Packed body without a hash");
+		if(md.isChunked()) throw new IllegalArgumentException("Packed body can't be chunked");
+		final IntrinsicMetadata out = md.inPack(remoteName, data.size());
+		data.write(b, off, (int)md.getSize());
+		members.add(out);
+		return out;
+	}
+
+	public B2UploadFileRequest toUpload(KeyfileCrypter crypt, String bucketId) throws IOException {
+		final ByteArrayOutputStream plain = new ByteArrayOutputStream(data.size() + members.size() * 128);
+		data.writeTo(plain);
+		final DataOutputStream out = new DataOutputStream(plain);
+		Manifest.writeIndex(out, members);
+		out.flush();
+		indexLength = plain.size() - data.size();
+		final byte[] bytes = plain.toByteArray();
+		final byte[] encrypted = crypt.encryptSegmented(bytes, 0, bytes.length);
+		header = Arrays.copyOf(encrypted, SegmentedCrypter.HEADER_LENGTH);
+		final B2ContentSource contentSource = B2ByteArrayContentSource.build(encrypted);
+		return B2UploadFileRequest.builder(
+				bucketId,
+				remoteName,
+				B2ContentTypes.APPLICATION_OCTET,
+				contentSource)
+					.setCustomFields(PackMetadata.mdForUpload(crypt, header, data.size(), indexLength))
+					.build();
+	}
+
+	//Once uploaded, the members' remote ID is the pack's
+	public PackMetadata uploaded(String remoteID) {
+		if(header == null) throw new IllegalStateException("Pack not built");
+		for(final IntrinsicMetadata md : members) md.setRemoteID(remoteID);
+		return new PackMetadata(remoteName, remoteID, header, data.size(), indexLength);
+	}
+}
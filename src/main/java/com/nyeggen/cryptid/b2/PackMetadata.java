@@ -0,0 +1,131 @@
+package com.nyeggen.cryptid.b2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import com.backblaze.b2.client.B2StorageClient;
+import com.backblaze.b2.client.contentSources.B2Headers;
+import com.backblaze.b2.client.exceptions.B2Exception;
+import com.backblaze.b2.client.structures.B2ByteRange;
+import com.backblaze.b2.client.structures.B2DeleteFileVersionRequest;
+import com.backblaze.b2.client.structures.B2DownloadByIdRequest;
+import com.backblaze.b2.client.structures.B2FileVersion;
+import com.nyeggen.cryptid.util.KeyfileCrypter;
+import com.nyeggen.cryptid.util.SegmentedCrypter;
+
+//Small bodies concatenated into one object, so each costs a share of an upload
+//rather than one of its own.  The body is the members' content, then an index
+//of their intrinsic metadata as manifest entries, encrypted together in the
+//segmented format; see PackBuilder.  A member is read with a ranged download of
+//just the segments it's in.  File info holds the header and the lengths of data
+//and index, encrypted, so a listing alone says where to find the index.
+public class PackMetadata implements B2Deletable {
+	public static final String PACK_PREFIX = "p/";
+	private static final String MD_KEY = "k";
+	private static final byte LAYOUT_VERSION = 1;
+
+	private final String remoteName;
+	private final String remoteID;
+	//Of the segmented body, which its per-file key comes from
+	private final byte[] header;
+	private final long dataLength;
+	private final int indexLength;
+
+	PackMetadata(String remoteName, String remoteID, byte[] header, long dataLength, int indexLength) {
+		this.remoteName = remoteName;
+		this.remoteID = remoteID;
+		this.header = header.clone();
+		this.dataLength = dataLength;
+		this.indexLength = indexLength;
+	}
+
+	@Override
+	public String getRemoteName() { return remoteName; }
+	public String getRemoteID() { return remoteID; }
+	byte[] getHeader() { return header.clone(); }
+	public long getDataLength() { return dataLength; }
+	public int getIndexLength() { return indexLength; }
+
+	@Override
+	public B2DeleteFileVersionRequest toDelete() {
+		return B2DeleteFileVersionRequest.builder(remoteName, remoteID).build();
+	}
+
+	public static boolean isPackName(B2FileVersion b2fv) {
+		return b2fv.getFileName().startsWith(PACK_PREFIX);
+	}
+
+	static String newRemoteName() {
+		return PACK_PREFIX + UUID.randomUUID().toString();
+	}
+
+	public static PackMetadata fromB2FileVersion(B2FileVersion b2fv, KeyfileCrypter crypt) {
+		if(!isPackName(b2fv)) throw new IllegalArgumentException();
+		final byte[] encrypted = Base64.getDecoder().decode(b2fv.getFileInfo().get(MD_KEY));
+		final ByteBuffer buf = ByteBuffer.allocate(KeyfileCrypter.decryptedSize(encrypted.length));
+		crypt.decrypt(ByteBuffer.wrap(encrypted), buf);
+		buf.flip();
+		final byte version = buf.get();
+		if(version != LAYOUT_VERSION) throw new IllegalArgumentException("Unknown pack metadata version " + version);
+		final byte[] header = new byte[SegmentedCrypter.HEADER_LENGTH];
+		buf.get(header);
+		final long dataLength = buf.getLong();
+		final int indexLength = buf.getInt();
+		return new PackMetadata(b2fv.getFileName(), b2fv.getFileId(), header, dataLength, indexLength);
+	}
+
+	static Map<String, String> mdForUpload(KeyfileCrypter crypt, byte[] header, long dataLength, int indexLength) {
+		final ByteBuffer buf = ByteBuffer.allocate(1 + SegmentedCrypter.HEADER_LENGTH + 8 + 4);
+		buf.put(LAYOUT_VERSION);
+		buf.put(header);
+		buf.putLong(dataLength);
+		buf.putInt(indexLength);
+		buf.flip();
+		final byte[] encrypted = new byte[KeyfileCrypter.encryptedSize(buf.remaining())];
+		crypt.encrypt(buf, ByteBuffer.wrap(encrypted));
+		final Map<String, String> out = new HashMap<>(1);
+		out.put(MD_KEY, Base64.getEncoder().encodeToString(encrypted));
+		return out;
+	}
+
+	//Downloads and decrypts length bytes of the pack's plaintext from offset,
+	//fetching only the segments they fall in
+	public byte[] read(B2StorageClient client, KeyfileCrypter crypt, long offset, int length) throws IOException, B2Exception {
+		final long plainSize = dataLength + indexLength;
+		if(offset < 0 || length < 0 || offset + length > plainSize) throw new IOException("Range outside pack " + remoteName);
+		final byte[] out = new byte[length];
+		if(length == 0) return out;
+		final SegmentedCrypter.FileContext ctx = crypt.segmentContext(header);
+		if(ctx.isCompressed()) throw new IOException("Compressed pack " + remoteName);
+		final long segments = ctx.segmentCount(plainSize);
+		final int segmentSize = ctx.getSegmentSize();
+		final int segmentOut = segmentSize + SegmentedCrypter.TAG_LENGTH;
+		final long first = offset / segmentSize;
+		final long last = (offset + length - 1) / segmentSize;
+		final long start = SegmentedCrypter.HEADER_LENGTH + first * segmentOut;
+		final long end = Math.min(ctx.encryptedLength(plainSize), SegmentedCrypter.HEADER_LENGTH + (last + 1) * segmentOut) - 1;
+		final B2DownloadByIdRequest req = B2DownloadByIdRequest.builder(remoteID)
+				.setRange(B2ByteRange.between(start, end))
+				.build();
+		client.downloadById(req, (B2Headers responseHeaders, java.io.InputStream in) -> {
+			final byte[] buf = new byte[segmentOut];
+			final byte[] plain = new byte[segmentOut];
+			for(long index = first; index <= last; index++) {
+				final boolean isLast = index == segments - 1;
+				final int len = isLast ? (int)(plainSize - index * segmentSize) + SegmentedCrypter.TAG_LENGTH : segmentOut;
+				if(in.readNBytes(buf, 0, len) < len) throw new IOException("Truncated pack " + remoteName);
+				final int n = ctx.decryptSegment(index, isLast, buf, 0, len, plain, 0);
+				//Overlap of this segment with the range wanted
+				final long segmentStart = index * segmentSize;
+				final long from = Math.max(offset, segmentStart);
+				final long to = Math.min(offset + length, segmentStart + n);
+				System.arraycopy(plain, (int)(from - segmentStart), out, (int)(from - offset), (int)(to - from));
+			}
+		});
+		return out;
+	}
+}
@@ -11,6 +11,7 @@ public class RemoteRecord {
 	}
 		
 	public byte[] getHash() { return intrinsicMD.getHash(); }
+	public byte getHashScheme() { return intrinsicMD.getHashScheme(); }
 	public long getSize() { return intrinsicMD.getSize(); }
 	public long getTimestamp() { return namefileMD.timestamp; }
 	public String getLocalName() { return namefileMD.localName; }	
@@ -0,0 +1,78 @@
+package com.nyeggen.cryptid.b2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.backblaze.b2.client.structures.B2FileVersion;
+
+//Decodes a bucket listing on several threads.  The listing is fetched a page at
+//a time as it's iterated, which happens on the calling thread; file versions
+//go to the workers in batches through a bounded queue, so the next page is
+//fetched while the last is decrypted, and a slow decode holds the listing back
+//rather than the whole bucket piling up in memory.
+class RemoteScanner {
+	//A listing page, by default
+	private static final int BATCH_SIZE = 1000;
+	private static final List<B2FileVersion> POISON = new ArrayList<>();
+
+	private final int parallelism;
+
+	RemoteScanner(int parallelism) {
+		if(parallelism < 1) throw new IllegalArgumentException("Parallelism must be at least 1");
+		this.parallelism = parallelism;
+	}
+
+	//Passes every version listed to decode, from the worker threads, and
+	//returns how many there were once all have been decoded
+	int scan(Iterable<B2FileVersion> listing, Consumer<B2FileVersion> decode) {
+		final BlockingQueue<List<B2FileVersion>> queue = new ArrayBlockingQueue<>(parallelism * 2);
+		final ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+		final List<Future<?>> running = new ArrayList<>();
+		for(int i = 0; i < parallelism; i++) {
+			running.add(workers.submit(() -> {
+				for(List<B2FileVersion> batch = queue.take(); batch != POISON; batch = queue.take()) {
+					for(final B2FileVersion b2fv : batch) decode.accept(b2fv);
+				}
+				return null;
+			}));
+		}
+		int count = 0;
+		try {
+			List<B2FileVersion> batch = new ArrayList<>(BATCH_SIZE);
+			for(final B2FileVersion b2fv : listing) {
+				batch.add(b2fv);
+				if(++count % BATCH_SIZE == 0) {
+					put(queue, batch, running);
+					batch = new ArrayList<>(BATCH_SIZE);
+				}
+			}
+			if(!batch.isEmpty()) put(queue, batch, running);
+			for(int i = 0; i < parallelism; i++) put(queue, POISON, running);
+			for(final Future<?> f : running) f.get();
+			return count;
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		} catch(ExecutionException ex) {
+			throw new RuntimeException(ex.getCause());
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	//Waits for room, unless a worker has died, which would leave the queue full
+	private static void put(BlockingQueue<List<B2FileVersion>> queue, List<B2FileVersion> batch, List<Future<?>> running)
+			throws InterruptedException, ExecutionException {
+		while(!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+			for(final Future<?> f : running) if(f.isDone()) f.get();
+		}
+	}
+}
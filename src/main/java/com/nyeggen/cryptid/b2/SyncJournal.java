@@ -0,0 +1,370 @@
+package com.nyeggen.cryptid.b2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.nyeggen.cryptid.util.Hasher;
+import com.nyeggen.cryptid.util.KeyfileCrypter;
+
+//Local record of a sync in progress, so a run that dies part way can be picked
+//up by the next.  The remote manifest is deleted as a run starts, so otherwise
+//the next run falls back to a full listing, and uploads again whatever went up
+//without its namefile.
+//
+//At the start of a run, the manifest it loaded is written out as an encrypted
+//snapshot, and an empty log started next to it.  Each remote change is appended
+//to the log once made, and each upload is also logged as planned before it
+//starts, so one interrupted in between can be found and cleaned up.  Names are
+//logged as they wait for their segment, so those whose segment never went up
+//can go in the next run's.  Records are encrypted one by one and written as
+//they come, so they survive the process dying.  Forcing them to disk is
+//grouped: a planned upload waits for its record to be forced before starting,
+//sharing the force with any other uploads waiting, and other records are forced
+//at most a second after being written, or on close.  A torn last record fails
+//to authenticate, and replay stops there.  Once the run's manifest has been
+//uploaded, both are deleted.
+public class SyncJournal implements AutoCloseable {
+	private static final String SNAPSHOT_NAME = "snapshot";
+	private static final String LOG_NAME = "log";
+	//Bounds a record length read from a corrupt log
+	private static final int MAX_RECORD_LENGTH = 256 * 1024 * 1024;
+
+	private static final byte START = 1;
+	private static final byte ADDED = 2;
+	private static final byte PLANNED = 3;
+	private static final byte DELETED = 4;
+	private static final byte NAMED = 5;
+	private static final long FORCE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final Path dir;
+	private final KeyfileCrypter crypt;
+	private FileChannel log = null;
+	//Guarded by this: bytes written to the log, how many of those are known to
+	//be on disk, and whether a thread is forcing it now
+	private long written = 0;
+	private long forced = 0;
+	private boolean forcing = false;
+	private long lastForced = System.nanoTime();
+	//Uploads logged as planned without a record of finishing, as of loadOrNull()
+	private final Set<String> unresolved = new HashSet<>();
+	//Names logged as waiting for a segment without a record of it going up, as
+	//of loadOrNull(), by remote name in the order logged
+	private final Map<String, NamefileMetadata> pending = new LinkedHashMap<>();
+
+	public SyncJournal(Path dir, KeyfileCrypter crypt) throws IOException {
+		this.dir = dir;
+		this.crypt = crypt;
+		Files.createDirectories(dir);
+	}
+
+	//The manifest as of the last change logged by an interrupted run, or null if
+	//there's no interrupted run to pick up
+	public Manifest loadOrNull() throws IOException {
+		final Path snapshot = dir.resolve(SNAPSHOT_NAME);
+		if(!Files.exists(snapshot)) return null;
+		final Manifest out;
+		try(final InputStream in = new BufferedInputStream(Files.newInputStream(snapshot))) {
+			out = Manifest.readEncrypted(in, crypt, null);
+		} catch(IOException | RuntimeException ex) {
+			System.out.println("Unreadable sync journal snapshot, ignoring: " + ex);
+			return null;
+		}
+		unresolved.clear();
+		pending.clear();
+		final Path logPath = dir.resolve(LOG_NAME);
+		if(!Files.exists(logPath)) return out;
+		int records = 0;
+		try(final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath)))) {
+			for(byte[] record = readRecord(in); record != null; record = readRecord(in)) {
+				if(!apply(out, record)) {
+					System.out.println("Sync journal log is from another run, ignoring it");
+					return out;
+				}
+				records++;
+			}
+		}
+		System.out.println(records + " sync journal records replayed, " + unresolved.size() + " uploads to check, "
+				+ pending.size() + " names pending");
+		return out;
+	}
+
+	//Remote names of uploads that were started but not logged as finished.  They
+	//may or may not exist remotely.
+	public Collection<String> getUnresolved() {
+		return new ArrayList<>(unresolved);
+	}
+
+	//Names that were waiting for a segment that wasn't uploaded.  Their bodies'
+	//entries are in the manifest, unless they were deleted since.
+	public Collection<NamefileMetadata> getPendingNames() {
+		return new ArrayList<>(pending.values());
+	}
+
+	//Snapshots the manifest and starts an empty log on top of it
+	public synchronized void begin(Manifest manifest) throws IOException {
+		close();
+		final Path tmp = Files.createTempFile(dir, null, ".tmp");
+		try {
+			try(final OutputStream os = crypt.encryptingStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				manifest.writeTo(os);
+			}
+			try(final FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				fc.force(true);
+			}
+			try {
+				Files.move(tmp, dir.resolve(SNAPSHOT_NAME), StandardCopyOption.ATOMIC_MOVE);
+			} catch(AtomicMoveNotSupportedException ex) {
+				Files.move(tmp, dir.resolve(SNAPSHOT_NAME), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		log = FileChannel.open(dir.resolve(LOG_NAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		written = 0;
+		forced = 0;
+		lastForced = System.nanoTime();
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(baos);
+		out.writeByte(START);
+		out.writeLong(manifest.getGeneration());
+		append(baos, false);
+	}
+
+	//Returns once the record is on disk, so the upload can start
+	public void planned(String remoteName) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(baos);
+		out.writeByte(PLANNED);
+		Manifest.writeString(out, remoteName);
+		append(baos, true);
+	}
+
+	public void added(IntrinsicMetadata md) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final DataOutputStream out = added(baos, md.getRemoteName());
+		Manifest.writeEntry(out, md);
+		append(baos, false);
+	}
+
+	public void added(NamefileMetadata md) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final DataOutputStream out = added(baos, md.getRemoteName());
+		Manifest.writeEntry(out, md);
+		append(baos, false);
+	}
+
+	public void added(ChunkMetadata c) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final DataOutputStream out = added(baos, c.getRemoteName());
+		Manifest.writeEntry(out, c);
+		append(baos, false);
+	}
+
+	public void added(PackMetadata p) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final DataOutputStream out = added(baos, p.getRemoteName());
+		Manifest.writeEntry(out, p);
+		append(baos, false);
+	}
+
+	public void added(NameSegmentMetadata s) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final DataOutputStream out = added(baos, s.getRemoteName());
+		Manifest.writeEntry(out, s);
+		append(baos, false);
+	}
+
+	//A name added to the open segment; once the segment is up, the name is
+	//logged as added
+	public void named(NamefileMetadata md) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(baos);
+		out.writeByte(NAMED);
+		Manifest.writeString(out, md.getRemoteName());
+		Manifest.writeString(out, md.getLocalName());
+		out.writeLong(md.getTimestamp());
+		Manifest.writeString(out, md.getAssociatedIntrinsicFile());
+		//0 for no hash, otherwise 1 + scheme
+		out.writeByte((md.getContentHash() == null) ? 0 : 1 + md.getContentHashScheme());
+		if(md.getContentHash() != null) out.write(md.getContentHash());
+		append(baos, false);
+	}
+
+	public void deleted(String remoteName) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(baos);
+		out.writeByte(DELETED);
+		Manifest.writeString(out, remoteName);
+		append(baos, false);
+	}
+
+	//The run finished and its manifest is uploaded, so there's nothing to pick up
+	public synchronized void finish() throws IOException {
+		close();
+		Files.deleteIfExists(dir.resolve(LOG_NAME));
+		Files.deleteIfExists(dir.resolve(SNAPSHOT_NAME));
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if(log == null) return;
+		try {
+			log.force(false);
+			forced = written;
+		} finally {
+			log.close();
+			log = null;
+		}
+	}
+
+	private static DataOutputStream added(ByteArrayOutputStream baos, String remoteName) throws IOException {
+		final DataOutputStream out = new DataOutputStream(baos);
+		out.writeByte(ADDED);
+		Manifest.writeString(out, remoteName);
+		return out;
+	}
+
+	//Length, then the record encrypted.  Durable records are forced to disk
+	//before returning, the rest once the interval since the last force is up.
+	private void append(ByteArrayOutputStream record, boolean durable) throws IOException {
+		final byte[] enc = crypt.encrypt(record.toByteArray());
+		final ByteBuffer bb = ByteBuffer.allocate(4 + enc.length);
+		bb.putInt(enc.length);
+		bb.put(enc);
+		bb.flip();
+		final long end;
+		synchronized(this) {
+			if(log == null) throw new IllegalStateException("Sync journal not started");
+			while(bb.hasRemaining()) log.write(bb);
+			written += bb.limit();
+			end = written;
+			if(!durable && System.nanoTime() - lastForced < FORCE_INTERVAL_NANOS) return;
+		}
+		force(end);
+	}
+
+	//Waits until the log is on disk up to the given length.  One thread forces at
+	//a time, outside the lock, and covers everything written before it started,
+	//so appends carry on meanwhile and those waiting mostly share one force.
+	private void force(long upTo) throws IOException {
+		final FileChannel fc;
+		final long target;
+		synchronized(this) {
+			try {
+				while(forcing && forced < upTo) wait();
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for the sync journal");
+			}
+			if(forced >= upTo) return;
+			if(log == null) throw new IllegalStateException("Sync journal not started");
+			forcing = true;
+			fc = log;
+			target = written;
+		}
+		boolean success = false;
+		try {
+			fc.force(false);
+			success = true;
+		} finally {
+			synchronized(this) {
+				forcing = false;
+				if(success) {
+					forced = Math.max(forced, target);
+					lastForced = System.nanoTime();
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	//Null at the end of the log, or at a torn or corrupt record
+	private byte[] readRecord(DataInputStream in) throws IOException {
+		final int length;
+		try {
+			length = in.readInt();
+		} catch(EOFException ex) {
+			return null;
+		}
+		if(length <= 0 || length > MAX_RECORD_LENGTH) {
+			System.out.println("Corrupt sync journal record, stopping replay there");
+			return null;
+		}
+		final byte[] enc = new byte[length];
+		try {
+			in.readFully(enc);
+			return crypt.decrypt(enc);
+		} catch(EOFException | RuntimeException ex) {
+			System.out.println("Torn sync journal record, stopping replay there");
+			return null;
+		}
+	}
+
+	//Returns false if the log doesn't go with the snapshot
+	private boolean apply(Manifest manifest, byte[] record) throws IOException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		final byte tag = in.readByte();
+		switch(tag) {
+		case START:
+			return in.readLong() == manifest.getGeneration();
+		case ADDED: {
+			final String remoteName = Manifest.readString(in);
+			unresolved.remove(remoteName);
+			pending.remove(remoteName);
+			manifest.readEntry(in);
+			return true;
+		}
+		case PLANNED:
+			unresolved.add(Manifest.readString(in));
+			return true;
+		case DELETED: {
+			final String remoteName = Manifest.readString(in);
+			unresolved.remove(remoteName);
+			pending.remove(remoteName);
+			manifest.remove(remoteName);
+			return true;
+		}
+		case NAMED: {
+			final String remoteName = Manifest.readString(in);
+			final String localName = Manifest.readString(in);
+			final long timestamp = in.readLong();
+			final String associated = Manifest.readString(in);
+			final NamefileMetadata md = new NamefileMetadata(localName, timestamp, remoteName, associated);
+			final int hashKind = in.readByte();
+			if(hashKind != 0) {
+				final byte[] hash = new byte[Hasher.OUTPUT_LENGTH];
+				in.readFully(hash);
+				md.setContentHash(hash, (byte)(hashKind - 1));
+			}
+			pending.put(remoteName, md);
+			return true;
+		}
+		default:
+			throw new IOException("Unknown sync journal record " + tag);
+		}
+	}
+}
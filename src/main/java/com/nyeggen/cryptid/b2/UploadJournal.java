@@ -0,0 +1,156 @@
+package com.nyeggen.cryptid.b2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.nyeggen.cryptid.util.KeyfileCrypter;
+
+//Large uploads in progress, kept under the state directory so that a run after
+//a crash or dropped connection can finish an unfinished large file rather than
+//starting it over.  B2 keeps the parts already uploaded; what's kept here is
+//what's needed to produce the same bytes again: the local file, as of its size,
+//timestamp and content hash, and the remote name and header it was being
+//encrypted under.  Content can change without the timestamp, so only the hash
+//says whether re-encrypting under the header gives what B2 has.  One small file
+//per upload, named for the remote name, written atomically.
+public class UploadJournal {
+	private static final int MAGIC = 0x43524a4c; //"CRJL"
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".upload";
+
+	public static class Entry {
+		private final String remoteName;
+		private final String localName;
+		private final long size;
+		private final long timestamp;
+		private final byte[] header;
+		//Of the content, as from Hasher under the scheme
+		private final byte[] hash;
+		private final byte hashScheme;
+
+		public Entry(String remoteName, String localName, long size, long timestamp, byte[] header, byte[] hash, byte hashScheme) {
+			this.remoteName = remoteName;
+			this.localName = localName;
+			this.size = size;
+			this.timestamp = timestamp;
+			this.header = header.clone();
+			this.hash = hash.clone();
+			this.hashScheme = hashScheme;
+		}
+
+		public String getRemoteName() { return remoteName; }
+		public String getLocalName() { return localName; }
+		public long getSize() { return size; }
+		public long getTimestamp() { return timestamp; }
+		public byte[] getHeader() { return header.clone(); }
+		public byte[] getHash() { return hash.clone(); }
+		public byte getHashScheme() { return hashScheme; }
+		public boolean isCompressed() { return KeyfileCrypter.isCompressedHeader(header); }
+	}
+
+	private final Path dir;
+	//By local name; a file has at most one upload in progress
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	//Unreadable entries are dropped, as they can't be resumed anyway
+	public UploadJournal(Path dir) throws IOException {
+		this.dir = dir;
+		Files.createDirectories(dir);
+		try(final DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+			for(final Path p : ds) {
+				try(final InputStream is = Files.newInputStream(p)) {
+					final Entry e = read(new DataInputStream(is));
+					final Entry previous = entries.put(e.localName, e);
+					if(previous != null) Files.deleteIfExists(pathFor(previous));
+				} catch(IOException ex) {
+					System.out.println("Dropping unreadable upload journal entry " + p.getFileName() + ": " + ex);
+					Files.deleteIfExists(p);
+				}
+			}
+		}
+	}
+
+	//The upload in progress of this version of the local file, or null
+	public Entry find(String localName, long size, long timestamp) {
+		final Entry e = entries.get(localName);
+		if(e == null || e.size != size || e.timestamp != timestamp) return null;
+		return e;
+	}
+
+	public Collection<Entry> getEntries() {
+		return new ArrayList<>(entries.values());
+	}
+
+	//Recorded before the upload starts, replacing any for an older version of the file
+	public void record(Entry e) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(baos);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(e.remoteName);
+		out.writeUTF(e.localName);
+		out.writeLong(e.size);
+		out.writeLong(e.timestamp);
+		out.writeInt(e.header.length);
+		out.write(e.header);
+		out.writeByte(e.hashScheme);
+		out.writeInt(e.hash.length);
+		out.write(e.hash);
+		out.flush();
+
+		final Path tmp = Files.createTempFile(dir, null, ".tmp");
+		try {
+			Files.write(tmp, baos.toByteArray());
+			try {
+				Files.move(tmp, pathFor(e), StandardCopyOption.ATOMIC_MOVE);
+			} catch(AtomicMoveNotSupportedException ex) {
+				Files.move(tmp, pathFor(e), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		final Entry previous = entries.put(e.localName, e);
+		if(previous != null && !previous.remoteName.equals(e.remoteName)) Files.deleteIfExists(pathFor(previous));
+	}
+
+	//Once the upload has finished, or been given up on
+	public void remove(Entry e) throws IOException {
+		entries.remove(e.localName, e);
+		Files.deleteIfExists(pathFor(e));
+	}
+
+	private Path pathFor(Entry e) {
+		return dir.resolve(e.remoteName + SUFFIX);
+	}
+
+	private static Entry read(DataInputStream in) throws IOException {
+		if(in.readInt() != MAGIC) throw new IOException("Not an upload journal entry");
+		if(in.readInt() != VERSION) throw new IOException("Unknown upload journal version");
+		final String remoteName = in.readUTF();
+		final String localName = in.readUTF();
+		final long size = in.readLong();
+		final long timestamp = in.readLong();
+		final int headerLength = in.readInt();
+		if(headerLength < 0 || headerLength > 1024) throw new IOException("Bad header length " + headerLength);
+		final byte[] header = new byte[headerLength];
+		in.readFully(header);
+		final byte hashScheme = in.readByte();
+		final int hashLength = in.readInt();
+		if(hashLength < 0 || hashLength > 1024) throw new IOException("Bad hash length " + hashLength);
+		final byte[] hash = new byte[hashLength];
+		in.readFully(hash);
+		return new Entry(remoteName, localName, size, timestamp, header, hash, hashScheme);
+	}
+}
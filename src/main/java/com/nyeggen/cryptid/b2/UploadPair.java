@@ -1,6 +1,8 @@
 package com.nyeggen.cryptid.b2;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import com.backblaze.b2.client.structures.B2UploadFileRequest;
 import com.nyeggen.cryptid.util.KeyfileCrypter;
@@ -14,6 +16,8 @@ public class UploadPair implements Comparable<UploadPair> {
 	private final LocalRecord rec;
 	private final boolean uploadBody;
 	private final long uploadSize;
+	//Compress the body before encrypting it
+	private boolean compress = false;
 	
 	public static UploadPair contentUpload(LocalRecord rec) {
 		return new UploadPair(rec, true);
@@ -33,12 +37,72 @@ public class UploadPair implements Comparable<UploadPair> {
 	public String getLocalName() { 
 		return rec.getLocalName(); 
 	}
-	public B2UploadFileRequest getBodyUpload(KeyfileCrypter crypt, String bucketId) throws IOException {
+	public boolean hasBody() {
+		return uploadBody;
+	}
+	public long getBodySize() {
+		return uploadSize;
+	}
+	public byte[] populateHash() throws IOException {
+		return rec.populateHash();
+	}
+	public byte[] populateCachedHash() throws IOException {
+		return rec.populateCachedHash();
+	}
+	//Null until populated or hashed while uploading
+	public byte[] getHash() {
+		return rec.getHash();
+	}
+	public byte getHashScheme() {
+		return rec.getHashScheme();
+	}
+	public boolean isCompressed() {
+		return compress;
+	}
+	public void setCompressed(boolean compress) {
+		this.compress = compress;
+	}
+	public B2UploadFileRequest getBodyUpload(KeyfileCrypter crypt, String bucketId, boolean viaTemp) throws IOException {
 		if(!uploadBody) return null;
-		return rec.uploadForBody(crypt, bucketId);
+		return rec.uploadForBody(crypt, bucketId, viaTemp, compress);
+	}
+	public Path getPath() {
+		return rec.getPath();
+	}
+	public long getTimestamp() {
+		return rec.getTimestamp();
+	}
+	public byte[] getBodyHeader() {
+		return rec.getBodyHeader();
+	}
+	public void resumeAs(String remoteName, byte[] header, byte[] hash) throws IOException {
+		rec.resumeAs(remoteName, header, hash);
+	}
+	public B2UploadFileRequest getChunkListUpload(KeyfileCrypter crypt, String bucketId, ChunkList chunks) throws IOException {
+		return rec.uploadForChunkList(crypt, bucketId, chunks);
+	}
+	//The namefile, to go in a name segment once the body is stored
+	public NamefileMetadata getNamefile() {
+		return rec.namefileWithHash();
+	}
+	//Records the remote ID of what was uploaded, returning the completed metadata
+	public IntrinsicMetadata bodyUploaded(String fileId) throws IOException {
+		rec.bodyUploaded();
+		final IntrinsicMetadata md = rec.getIntrinsicMD();
+		md.setRemoteID(fileId);
+		return md;
+	}
+	//Whole body, for packing; it's small.  Fails if the file's size changed
+	//since it was scanned.
+	public byte[] readBody() throws IOException {
+		final byte[] b = Files.readAllBytes(rec.getPath());
+		if(b.length != getBodySize()) throw new IOException("File changed size since scanned: " + getLocalName());
+		return b;
 	}
-	public B2UploadFileRequest getNamefileUpload(KeyfileCrypter crypt, String bucketId) throws IOException {
-		return rec.uploadForName(crypt, bucketId);
+	//Appends the body to the pack instead of uploading it on its own, returning
+	//its metadata as a member
+	public IntrinsicMetadata addToPack(PackBuilder pack, byte[] body) {
+		return pack.add(rec.getIntrinsicMD(), body, 0);
 	}
 	public void deleteTempCryptFile() throws IOException {
 		rec.deleteTempCryptFile();
@@ -0,0 +1,39 @@
+package com.nyeggen.cryptid.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Reuses fixed size byte arrays, so streams working a buffer at a time don't
+//allocate one per file.  At most maxPooled are kept; beyond that, released
+//buffers are left for the GC and acquire() allocates as needed.
+public class BufferPool {
+	private final int size;
+	private final int maxPooled;
+	private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooled = new AtomicInteger(0);
+
+	public BufferPool(int size, int maxPooled) {
+		this.size = size;
+		this.maxPooled = maxPooled;
+	}
+
+	public int getSize() { return size; }
+
+	public byte[] acquire() {
+		final byte[] b = free.poll();
+		if(b == null) return new byte[size];
+		pooled.decrementAndGet();
+		return b;
+	}
+
+	//Buffers of another size are ignored, so callers can release whatever they
+	//acquired or allocated themselves
+	public void release(byte[] b) {
+		if(b == null || b.length != size) return;
+		if(pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+		free.offer(b);
+	}
+}
@@ -0,0 +1,22 @@
+package com.nyeggen.cryptid.util;
+
+import java.util.concurrent.BlockingQueue;
+
+//The part of a blocking queue that pipeline stages need, so they can be fed by
+//queues with different orderings
+public interface Channel<T> {
+	public void put(T t) throws InterruptedException;
+	public T take() throws InterruptedException;
+	public int size();
+
+	public static <T> Channel<T> of(BlockingQueue<T> q) {
+		return new Channel<T>() {
+			@Override
+			public void put(T t) throws InterruptedException { q.put(t); }
+			@Override
+			public T take() throws InterruptedException { return q.take(); }
+			@Override
+			public int size() { return q.size(); }
+		};
+	}
+}
@@ -0,0 +1,95 @@
+package com.nyeggen.cryptid.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+//Content defined chunking, after FastCDC.  A gear hash rolls over the bytes,
+//and a chunk ends where the hash's top bits are all zero, so boundaries follow
+//the content rather than offsets: an insertion or deletion moves the chunks
+//around it, but the rest come out the same and dedupe against what's stored.
+//Bytes are only hashed past the minimum size, and the mask is harder before
+//the average size and easier after, which keeps sizes near the average.
+public class Chunker {
+	public static final int GEAR_LENGTH = 256;
+	public static final int MIN_SIZE = 256 * 1024;
+	public static final int AVG_SIZE = 1024 * 1024;
+	public static final int MAX_SIZE = 4 * 1024 * 1024;
+
+	public interface ChunkVisitor {
+		//The buffer is reused once this returns, so copy whatever is kept
+		public void chunk(byte[] buf, int off, int len) throws IOException;
+	}
+
+	private final long[] gear;
+	private final int minSize;
+	private final int avgSize;
+	private final int maxSize;
+	//Mask used before the average size, and after it
+	private final long maskSmall;
+	private final long maskLarge;
+
+	public Chunker(long[] gear) {
+		this(gear, MIN_SIZE, AVG_SIZE, MAX_SIZE);
+	}
+
+	public Chunker(long[] gear, int minSize, int avgSize, int maxSize) {
+		if(gear.length != GEAR_LENGTH) throw new IllegalArgumentException("Gear table of " + gear.length);
+		if(Integer.bitCount(avgSize) != 1 || minSize >= avgSize || avgSize >= maxSize) {
+			throw new IllegalArgumentException(minSize + "/" + avgSize + "/" + maxSize);
+		}
+		this.gear = gear.clone();
+		this.minSize = minSize;
+		this.avgSize = avgSize;
+		this.maxSize = maxSize;
+		final int bits = Integer.numberOfTrailingZeros(avgSize);
+		this.maskSmall = -1L << (64 - (bits + 2));
+		this.maskLarge = -1L << (64 - (bits - 2));
+	}
+
+	//Length of the chunk starting at off, given len bytes are available there.
+	//Fewer than the maximum are only passed at the end of the input.
+	public int cut(byte[] b, int off, int len) {
+		if(len <= minSize) return len;
+		final int n = Math.min(len, maxSize);
+		final int normal = Math.min(n, avgSize);
+		long fp = 0;
+		int i = minSize;
+		for(; i < normal; i++) {
+			fp = (fp << 1) + gear[b[off + i] & 0xff];
+			if((fp & maskSmall) == 0) return i + 1;
+		}
+		for(; i < n; i++) {
+			fp = (fp << 1) + gear[b[off + i] & 0xff];
+			if((fp & maskLarge) == 0) return i + 1;
+		}
+		return n;
+	}
+
+	//Splits the first size bytes of the channel, in order.  An empty file has
+	//no chunks.
+	public void split(FileChannel in, long size, ChunkVisitor visitor) throws IOException {
+		final byte[] buf = new byte[maxSize * 2];
+		long read = 0;
+		int start = 0;
+		int end = 0;
+		while(true) {
+			if(end - start < maxSize && read < size) {
+				System.arraycopy(buf, start, buf, 0, end - start);
+				end -= start;
+				start = 0;
+				while(end < buf.length && read < size) {
+					final int want = (int)Math.min(buf.length - end, size - read);
+					final int n = in.read(ByteBuffer.wrap(buf, end, want), read);
+					if(n < 0) throw new IOException("File shrank while chunking");
+					end += n;
+					read += n;
+				}
+			}
+			if(start == end) return;
+			final int len = cut(buf, start, end - start);
+			visitor.chunk(buf, start, len);
+			start += len;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.nyeggen.cryptid.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+//Deflate at its fastest level, for compressing segments before they're
+//encrypted, and a cheap check of whether a file is worth compressing at all.
+//Already compressed data (media, archives) only costs CPU to deflate again.
+public class Compression {
+	//Samples spread over the file, compressed to estimate the whole
+	private static final int SAMPLE_COUNT = 8;
+	private static final int SAMPLE_SIZE = 64 * 1024;
+	//Compressing must save at least a tenth to be worth it
+	private static final double MAX_RATIO = 0.9;
+
+	//Deflaters hold native memory until ended, so are kept per thread and reset
+	private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+	private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+	//Compresses len bytes into out, returning the compressed length, or -1 if
+	//it wouldn't fit in outMax bytes
+	public static int deflate(byte[] in, int off, int len, byte[] out, int outOff, int outMax) {
+		final Deflater d = DEFLATERS.get();
+		d.reset();
+		d.setInput(in, off, len);
+		d.finish();
+		int n = 0;
+		while(!d.finished() && n < outMax) n += d.deflate(out, outOff + n, outMax - n);
+		return d.finished() ? n : -1;
+	}
+
+	//Decompresses len bytes into out, which must hold all of the output,
+	//returning its length
+	public static int inflate(byte[] in, int off, int len, byte[] out, int outOff, int outMax) throws IOException {
+		final Inflater i = INFLATERS.get();
+		i.reset();
+		i.setInput(in, off, len);
+		try {
+			int n = 0;
+			while(!i.finished() && n < outMax) {
+				final int got = i.inflate(out, outOff + n, outMax - n);
+				if(got == 0 && (i.needsInput() || i.needsDictionary())) break;
+				n += got;
+			}
+			if(!i.finished() || i.getRemaining() != 0) throw new IOException("Bad compressed data");
+			return n;
+		} catch(DataFormatException ex) {
+			throw new IOException("Bad compressed data", ex);
+		}
+	}
+
+	//Compresses a few samples spread over the file, and says whether they came
+	//out enough smaller.  Reads at most SAMPLE_COUNT * SAMPLE_SIZE bytes.
+	public static boolean worthCompressing(Path p) throws IOException {
+		final byte[] sample = new byte[SAMPLE_SIZE];
+		final byte[] out = new byte[SAMPLE_SIZE];
+		long plain = 0;
+		long compressed = 0;
+		try(final FileChannel in = FileChannel.open(p, StandardOpenOption.READ)) {
+			final long size = in.size();
+			if(size == 0) return false;
+			final int samples = (int)Math.min(SAMPLE_COUNT, (size + SAMPLE_SIZE - 1) / SAMPLE_SIZE);
+			for(int s = 0; s < samples; s++) {
+				final long position = (samples == 1) ? 0 : s * ((size - SAMPLE_SIZE) / (samples - 1));
+				final ByteBuffer bb = ByteBuffer.wrap(sample);
+				while(bb.hasRemaining() && in.read(bb, position + bb.position()) > 0);
+				final int len = bb.position();
+				final int n = deflate(sample, 0, len, out, 0, out.length);
+				plain += len;
+				compressed += (n < 0) ? len : n;
+			}
+		}
+		return compressed <= plain * MAX_RATIO;
+	}
+}
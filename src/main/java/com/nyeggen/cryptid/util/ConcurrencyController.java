@@ -0,0 +1,127 @@
+package com.nyeggen.cryptid.util;
+
+import java.util.concurrent.TimeUnit;
+
+//Decides how many uploads run at once, within fixed bounds.  Workers call
+//acquire() before a request and release() or releaseFailed() after, and those
+//above the current limit wait.  Every interval, the achieved bytes per second
+//and latency per byte are compared with the previous interval's, AIMD style:
+//- remote failures halve the limit; local ones, eg a file that can't be read,
+//  say nothing about the link and are ignored
+//- latency per byte well up without more throughput means we're queueing
+//  rather than filling the link, and the limit is cut by a quarter.  Per byte,
+//  since uploads go smallest first and whole-request latency rises with size.
+//- otherwise, if throughput held up, the limit grows by one to probe for more,
+//  or doubles until the first decrease, like TCP slow start
+//Many small files need many requests in flight to fill the link, while a few
+//large ones need few, so a fixed limit is wrong for one or the other.
+public class ConcurrencyController {
+	private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+	private static final double LATENCY_CONGESTED = 1.5;
+	private static final double THROUGHPUT_GAIN = 1.05;
+	private static final double THROUGHPUT_HELD = 0.95;
+
+	private final int min;
+	private final int max;
+	private int limit;
+	private int inFlight = 0;
+
+	//Current interval
+	private long windowStart = System.nanoTime();
+	private long windowBytes = 0;
+	private long windowLatencyNanos = 0;
+	private int windowRequests = 0;
+	private int windowFailures = 0;
+
+	//Previous interval with any completions; latency is per byte, 0 if none moved
+	private double lastThroughput = 0;
+	private double lastLatencyNanos = 0;
+	private String lastDecision = "initial";
+	private boolean slowStart = true;
+
+	public ConcurrencyController(int min, int max) {
+		if(min < 1 || max < min) throw new IllegalArgumentException(min + ".." + max);
+		this.min = min;
+		this.max = max;
+		this.limit = min;
+	}
+
+	public boolean isAdaptive() { return min != max; }
+
+	public synchronized void acquire() throws InterruptedException {
+		while(inFlight >= limit) wait();
+		inFlight++;
+	}
+
+	//Records a successful request
+	public synchronized void release(long bytes, long latencyNanos) {
+		windowBytes += bytes;
+		windowLatencyNanos += latencyNanos;
+		windowRequests++;
+		finished();
+	}
+
+	//Records a failed request.  Only remote failures, such as errors from the
+	//service or the connection, count against the limit.
+	public synchronized void releaseFailed(boolean remote) {
+		if(remote) windowFailures++;
+		finished();
+	}
+
+	private void finished() {
+		inFlight--;
+		final long now = System.nanoTime();
+		if(now - windowStart >= INTERVAL_NANOS) adjust(now);
+		notifyAll();
+	}
+
+	private void adjust(long now) {
+		final double seconds = (now - windowStart) / 1e9;
+		final double throughput = windowBytes / seconds;
+		final double latency = (windowBytes == 0) ? 0 : (double)windowLatencyNanos / windowBytes;
+		final int previous = limit;
+
+		if(windowFailures > 0) {
+			limit = Math.max(min, limit / 2);
+			slowStart = false;
+			lastDecision = "decrease after " + windowFailures + " failures";
+		} else if(windowRequests == 0) {
+			//Nothing finished, eg all large files in flight; no information
+			lastDecision = "hold, no completions";
+		} else if(lastLatencyNanos > 0 && latency > 0 && latency > lastLatencyNanos * LATENCY_CONGESTED
+				&& throughput < lastThroughput * THROUGHPUT_GAIN) {
+			limit = Math.max(min, (limit * 3) / 4);
+			slowStart = false;
+			lastDecision = "decrease, latency up without throughput";
+		} else if(throughput >= lastThroughput * THROUGHPUT_HELD) {
+			limit = Math.min(max, slowStart ? limit * 2 : limit + 1);
+			lastDecision = "increase, throughput held";
+		} else {
+			lastDecision = "hold, throughput down";
+		}
+		if(windowRequests > 0) {
+			lastThroughput = throughput;
+			lastLatencyNanos = latency;
+		}
+		if(limit != previous) {
+			System.out.println("Upload concurrency " + previous + " -> " + limit + ": " + this);
+		}
+
+		windowStart = now;
+		windowBytes = 0;
+		windowLatencyNanos = 0;
+		windowRequests = 0;
+		windowFailures = 0;
+	}
+
+	public synchronized int getLimit() { return limit; }
+	public synchronized int getInFlight() { return inFlight; }
+	public synchronized double getThroughput() { return lastThroughput; }
+	public synchronized String getLastDecision() { return lastDecision; }
+
+	@Override
+	public synchronized String toString() {
+		return String.format("limit %d (%d..%d), %d in flight, %.0f bytes/s, %.1f ns/byte latency, %s",
+				limit, min, max, inFlight, lastThroughput, lastLatencyNanos, lastDecision);
+	}
+}
@@ -0,0 +1,354 @@
+package com.nyeggen.cryptid.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+//Persistent cache of content hashes for local files, so unchanged files don't
+//need to be re-read on every run.  Entries are keyed on the path, size, last
+//modified time and file key (inode, where the filesystem has one); a moved file
+//keeps its file key, size and timestamp, so it can still be found by those.
+//The backing file is memory mapped and laid out as a header followed by fixed
+//length entries.  Entries not touched, looked up or stored since opening are
+//dropped on compaction, so compaction should only be requested after a complete
+//scan that touched every file it found.
+public class HashCache implements AutoCloseable {
+	private static final long MAGIC = 0x4352595054484331L; //"CRYPTHC1"
+	private static final int VERSION = 1;
+	//magic + version + entry count
+	private static final int HEADER_LENGTH = 16;
+
+	//Entry is laid out path digest + size + mtime + file key digest + hash + flags + crc.
+	//Flags hold the hash scheme.
+	private static final int PATH_OFFSET = 0;
+	private static final int SIZE_OFFSET = 20;
+	private static final int MTIME_OFFSET = 28;
+	private static final int FILEKEY_OFFSET = 36;
+	private static final int HASH_OFFSET = 44;
+	private static final int FLAGS_OFFSET = 64;
+	private static final int CRC_OFFSET = 68;
+	private static final int ENTRY_LENGTH = 72;
+	private static final int PATH_DIGEST_LENGTH = 20;
+
+	private static final int INITIAL_CAPACITY = 1024;
+	//A single mapping is limited to 2GB; past this, new entries just aren't cached
+	private static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_LENGTH) / ENTRY_LENGTH;
+	//Compact when fewer than this fraction of entries were seen this run
+	private static final double COMPACT_LIVE_FRACTION = 0.75;
+	//Digests are taken outside the lock, so scanning threads only queue on it
+	//for the probe itself
+	private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA1");
+		} catch(NoSuchAlgorithmException ex) {
+			throw new RuntimeException(ex);
+		}
+	});
+
+	private final Path file;
+	private FileChannel channel;
+	private MappedByteBuffer map;
+	private int capacity;
+	private int count;
+
+	//Open addressing tables of (slot + 1), 0 meaning empty.  The first is keyed on
+	//the path, the second on file key + size + mtime to find moved files.
+	private int[] byPath;
+	private int[] byFileKey;
+	//Number of occupied cells in byFileKey, including ones left stale by updates
+	private int fileKeyCells;
+	//Entries touched, looked up or stored since opening
+	private final BitSet seen = new BitSet();
+
+	public HashCache(Path file) throws IOException {
+		this.file = file;
+		Files.createDirectories(file.toAbsolutePath().getParent());
+		open();
+	}
+
+	private void open() throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		final long existing = channel.size();
+		count = 0;
+		if(existing >= HEADER_LENGTH) {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(header, 0);
+			header.flip();
+			if(header.getLong() == MAGIC && header.getInt() == VERSION) {
+				count = header.getInt();
+			}
+		}
+		//Anything unrecognized is discarded; it's only a cache
+		if(count < 0 || HEADER_LENGTH + (long)count * ENTRY_LENGTH > existing) count = 0;
+		capacity = (int)Math.min(MAX_CAPACITY, Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, count)) * 2L));
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH + (long)capacity * ENTRY_LENGTH);
+		map.order(ByteOrder.LITTLE_ENDIAN);
+		map.putLong(0, MAGIC);
+		map.putInt(8, VERSION);
+
+		//Drop entries that fail their checksum, eg from a crash mid-write
+		final int stored = count;
+		count = 0;
+		for(int slot = 0; slot < stored; slot++) {
+			if(checksum(slot) != map.getInt(entryOffset(slot) + CRC_OFFSET)) continue;
+			if(slot != count) copyEntry(slot, count);
+			count++;
+		}
+		map.putInt(12, count);
+		rebuildTables();
+	}
+
+	private static int entryOffset(int slot) {
+		return HEADER_LENGTH + slot * ENTRY_LENGTH;
+	}
+
+	private void copyEntry(int from, int to) {
+		for(int i = 0; i < ENTRY_LENGTH; i++) {
+			map.put(entryOffset(to) + i, map.get(entryOffset(from) + i));
+		}
+	}
+
+	private int checksum(int slot) {
+		final CRC32 crc = new CRC32();
+		final ByteBuffer entry = map.duplicate();
+		entry.position(entryOffset(slot)).limit(entryOffset(slot) + CRC_OFFSET);
+		crc.update(entry);
+		return (int)crc.getValue();
+	}
+
+	private void rebuildTables() {
+		final int tableSize = Integer.highestOneBit(capacity) * 4;
+		byPath = new int[tableSize];
+		byFileKey = new int[tableSize];
+		fileKeyCells = 0;
+		for(int slot = 0; slot < count; slot++) index(slot);
+	}
+
+	private void index(int slot) {
+		insert(byPath, pathBucket(slot), slot);
+		if(map.getLong(entryOffset(slot) + FILEKEY_OFFSET) != 0) {
+			insert(byFileKey, fileKeyBucket(map.getLong(entryOffset(slot) + FILEKEY_OFFSET),
+					map.getLong(entryOffset(slot) + SIZE_OFFSET),
+					map.getLong(entryOffset(slot) + MTIME_OFFSET)), slot);
+			fileKeyCells++;
+		}
+	}
+
+	private static void insert(int[] table, int bucket, int slot) {
+		final int mask = table.length - 1;
+		int i = bucket & mask;
+		while(table[i] != 0) i = (i + 1) & mask;
+		table[i] = slot + 1;
+	}
+
+	private int pathBucket(int slot) {
+		return map.getInt(entryOffset(slot) + PATH_OFFSET);
+	}
+
+	private static int pathBucket(byte[] pathDigest) {
+		return ByteBuffer.wrap(pathDigest).order(ByteOrder.LITTLE_ENDIAN).getInt(0);
+	}
+
+	private static int fileKeyBucket(long fileKey, long size, long mtime) {
+		return Long.hashCode(fileKey * 31 + size) * 31 + Long.hashCode(mtime);
+	}
+
+	private boolean pathMatches(int slot, byte[] pathDigest) {
+		final int off = entryOffset(slot) + PATH_OFFSET;
+		for(int i = 0; i < PATH_DIGEST_LENGTH; i++) {
+			if(map.get(off + i) != pathDigest[i]) return false;
+		}
+		return true;
+	}
+
+	private int findByPath(byte[] pathDigest) {
+		final int mask = byPath.length - 1;
+		for(int i = pathBucket(pathDigest) & mask; byPath[i] != 0; i = (i + 1) & mask) {
+			final int slot = byPath[i] - 1;
+			if(pathMatches(slot, pathDigest)) return slot;
+		}
+		return -1;
+	}
+
+	private int findByFileKey(long fileKey, long size, long mtime) {
+		final int mask = byFileKey.length - 1;
+		for(int i = fileKeyBucket(fileKey, size, mtime) & mask; byFileKey[i] != 0; i = (i + 1) & mask) {
+			final int slot = byFileKey[i] - 1;
+			if(matches(slot, size, mtime, fileKey)) return slot;
+		}
+		return -1;
+	}
+
+	private boolean matches(int slot, long size, long mtime, long fileKey) {
+		final int off = entryOffset(slot);
+		return map.getLong(off + SIZE_OFFSET) == size
+				&& map.getLong(off + MTIME_OFFSET) == mtime
+				&& map.getLong(off + FILEKEY_OFFSET) == fileKey;
+	}
+
+	private byte[] hashAt(int slot) {
+		final byte[] out = new byte[Hasher.OUTPUT_LENGTH];
+		final ByteBuffer entry = map.duplicate();
+		entry.position(entryOffset(slot) + HASH_OFFSET);
+		entry.get(out);
+		return out;
+	}
+
+	private int schemeAt(int slot) {
+		return map.getInt(entryOffset(slot) + FLAGS_OFFSET);
+	}
+
+	private static byte[] pathDigest(String path) {
+		return DIGESTS.get().digest(path.getBytes(StandardCharsets.UTF_8));
+	}
+
+	//Null file keys (eg on filesystems without inodes) are stored as 0, and
+	//not used to find moved files
+	private static long fileKeyDigest(Object fileKey) {
+		if(fileKey == null) return 0;
+		final byte[] digest = pathDigest(fileKey.toString());
+		final long out = ByteBuffer.wrap(digest).getLong();
+		return out == 0 ? 1 : out;
+	}
+
+	//Returns the cached hash, or null if there is none, the file has changed, or
+	//it was hashed under another scheme
+	public byte[] get(Path path, long size, long mtime, Object fileKey, byte scheme) throws IOException {
+		final byte[] pathDigest = pathDigest(path.toAbsolutePath().toString());
+		final long fk = fileKeyDigest(fileKey);
+
+		synchronized(this) {
+			final int slot = findByPath(pathDigest);
+			if(slot >= 0) {
+				seen.set(slot);
+				//Stale entries are left to be overwritten by put()
+				if(matches(slot, size, mtime, fk) && schemeAt(slot) == scheme) return hashAt(slot);
+			}
+			if(fk != 0) {
+				//Moved or renamed
+				final int moved = findByFileKey(fk, size, mtime);
+				if(moved >= 0 && schemeAt(moved) == scheme) {
+					final byte[] hash = hashAt(moved);
+					store(pathDigest, size, mtime, fk, scheme, hash);
+					return hash;
+				}
+			}
+			return null;
+		}
+	}
+
+	//Marks the path's entry, if any, as still in use, for files that didn't need
+	//their hash looked up because they matched by name, size and timestamp
+	public void touch(Path path) {
+		final byte[] pathDigest = pathDigest(path.toAbsolutePath().toString());
+		synchronized(this) {
+			final int slot = findByPath(pathDigest);
+			if(slot >= 0) seen.set(slot);
+		}
+	}
+
+	public void put(Path path, long size, long mtime, Object fileKey, byte scheme, byte[] hash) throws IOException {
+		final byte[] pathDigest = pathDigest(path.toAbsolutePath().toString());
+		final long fk = fileKeyDigest(fileKey);
+		store(pathDigest, size, mtime, fk, scheme, hash);
+	}
+
+	private synchronized void store(byte[] pathDigest, long size, long mtime, long fk, byte scheme, byte[] hash) throws IOException {
+		int slot = findByPath(pathDigest);
+		final boolean existing = (slot >= 0);
+		if(!existing) {
+			if(count == MAX_CAPACITY) return;
+			if(count == capacity) grow();
+			slot = count;
+		}
+		final int off = entryOffset(slot);
+		for(int i = 0; i < PATH_DIGEST_LENGTH; i++) map.put(off + PATH_OFFSET + i, pathDigest[i]);
+		map.putLong(off + SIZE_OFFSET, size);
+		map.putLong(off + MTIME_OFFSET, mtime);
+		map.putLong(off + FILEKEY_OFFSET, fk);
+		for(int i = 0; i < Hasher.OUTPUT_LENGTH; i++) map.put(off + HASH_OFFSET + i, hash[i]);
+		map.putInt(off + FLAGS_OFFSET, scheme);
+		map.putInt(off + CRC_OFFSET, checksum(slot));
+		seen.set(slot);
+
+		if(existing) {
+			//The path cell is unchanged.  The old file key cell now fails to match
+			//on lookup, so only a new one is needed.
+			if(fk != 0) {
+				insert(byFileKey, fileKeyBucket(fk, size, mtime), slot);
+				fileKeyCells++;
+			}
+		} else {
+			count++;
+			map.putInt(12, count);
+			index(slot);
+		}
+		if(fileKeyCells > byFileKey.length / 2) rebuildTables();
+	}
+
+	private void grow() throws IOException {
+		map.force();
+		capacity = (int)Math.min(MAX_CAPACITY, capacity * 2L);
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH + (long)capacity * ENTRY_LENGTH);
+		map.order(ByteOrder.LITTLE_ENDIAN);
+		rebuildTables();
+	}
+
+	//Rewrites the cache with only the entries seen since opening, if enough are
+	//unseen to be worth it.  Scanned files must be touched even if they didn't
+	//need their hash, or an unchanged tree compacts to nothing.  Unseen entries
+	//belong to files that no longer exist (or were moved), assuming the whole
+	//tree was scanned.
+	public synchronized void compact() throws IOException {
+		final int live = seen.cardinality();
+		if(live >= count * COMPACT_LIVE_FRACTION) return;
+
+		final Path temp = file.resolveSibling(file.getFileName() + ".compact");
+		try(final FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+			header.putLong(MAGIC).putInt(VERSION).putInt(live).flip();
+			while(header.hasRemaining()) out.write(header);
+			for(int slot = seen.nextSetBit(0); slot >= 0; slot = seen.nextSetBit(slot + 1)) {
+				final ByteBuffer entry = map.duplicate();
+				entry.position(entryOffset(slot)).limit(entryOffset(slot) + ENTRY_LENGTH);
+				while(entry.hasRemaining()) out.write(entry);
+			}
+			out.force(true);
+		}
+		map.force();
+		channel.close();
+		map = null;
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		seen.clear();
+		open();
+		//Everything remaining was live
+		seen.set(0, count);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		map.force();
+		channel.close();
+		map = null;
+		byPath = null;
+		byFileKey = null;
+	}
+
+	@Override
+	public String toString() {
+		return "HashCache " + file + ": " + count + " entries, " + seen.cardinality() + " seen";
+	}
+}
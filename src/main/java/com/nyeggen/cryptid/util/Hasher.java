@@ -2,34 +2,125 @@ package com.nyeggen.cryptid.util;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+//Files are hashed under one of two schemes, which give different hashes for the
+//same content, so a hash is always kept with its scheme:
+//- SCHEME_FLAT is a salted SHA1 of the whole file, computed in one pass
+//- SCHEME_TREE is a salted SHA1 over the file length and the SHA1s of fixed size
+//  leaves.  Leaves are hashed in parallel from memory mapped regions, so large
+//  files hash at the speed of the disk rather than of one core.
+//New hashes use the scheme schemeFor() gives for the file's size.
 public class Hasher {
 	public static final int OUTPUT_LENGTH = 20;
 	//Should this be here?
 	public static final byte[] HASH_SALT = new byte[] {102, 38, -75, -38, 28, 1, -40, 108, 72, -57};
 	
-	public static byte[] hash(Path in) throws IOException {
+	public static final byte SCHEME_FLAT = 0;
+	public static final byte SCHEME_TREE = 1;
+	//Files at least this large are tree hashed
+	public static final long TREE_MIN_SIZE = 256L * 1024 * 1024;
+	private static final int LEAF_SIZE = 4 * 1024 * 1024;
+	//Leaves mapped at once.  This bounds address space more than memory, as
+	//mapped pages are only read and can be dropped.
+	private static final int LEAVES_PER_REGION = 64;
+	//Prefixes keeping leaf and root hashes distinct
+	private static final byte LEAF_PREFIX = 0;
+	private static final byte ROOT_PREFIX = 1;
+	//Daemon threads, like all ForkJoinPool workers
+	private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+	
+	public static byte schemeFor(long size) {
+		return (size >= TREE_MIN_SIZE) ? SCHEME_TREE : SCHEME_FLAT;
+	}
+	
+	public static byte[] hash(Path in, byte scheme) throws IOException {
+		switch(scheme) {
+		case SCHEME_FLAT: return hash(in);
+		case SCHEME_TREE: return treeHash(in);
+		default: throw new IllegalArgumentException("Unknown hash scheme " + scheme);
+		}
+	}
+	
+	//Salted, ready for the file contents
+	public static MessageDigest newDigest() {
 		try {
-			MessageDigest mDigest = MessageDigest.getInstance("SHA1");
+			final MessageDigest mDigest = MessageDigest.getInstance("SHA1");
 			mDigest.update(HASH_SALT);
-			
-			final byte[] buf = new byte[8192];
-			//No point in buffering since we read predictable chunks anyway
-			try(final InputStream is = Files.newInputStream(in, StandardOpenOption.READ)){
-				int read = is.read(buf);
-				while(read != -1) {
-					mDigest.update(buf, 0, read);
-					read = is.read(buf);
-				}
-			}
-			return mDigest.digest();
+			return mDigest;
 		} catch(NoSuchAlgorithmException e) {
 			throw new RuntimeException(e);
 		}
 	}
+	
+	//Flat scheme
+	public static byte[] hash(Path in) throws IOException {
+		final MessageDigest mDigest = newDigest();
+		
+		final byte[] buf = new byte[8192];
+		//No point in buffering since we read predictable chunks anyway
+		try(final InputStream is = Files.newInputStream(in, StandardOpenOption.READ)){
+			int read = is.read(buf);
+			while(read != -1) {
+				mDigest.update(buf, 0, read);
+				read = is.read(buf);
+			}
+		}
+		return mDigest.digest();
+	}
+	
+	public static byte[] treeHash(Path in) throws IOException {
+		try(final FileChannel channel = FileChannel.open(in, StandardOpenOption.READ)) {
+			final long size = channel.size();
+			final int leaves = (int)Math.max(1, (size + LEAF_SIZE - 1) / LEAF_SIZE);
+			final byte[][] leafHashes = new byte[leaves][];
+			for(int first = 0; first < leaves; first += LEAVES_PER_REGION) {
+				final int last = Math.min(leaves, first + LEAVES_PER_REGION);
+				final long start = (long)first * LEAF_SIZE;
+				final MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(size - start, (long)(last - first) * LEAF_SIZE));
+				final List<Callable<Void>> tasks = new ArrayList<>(last - first);
+				for(int i = first; i < last; i++) {
+					final int leaf = i;
+					final int off = (i - first) * LEAF_SIZE;
+					tasks.add(() -> {
+						final ByteBuffer bb = region.duplicate();
+						bb.position(off).limit(Math.min(bb.capacity(), off + LEAF_SIZE));
+						final MessageDigest leafDigest = newDigest();
+						leafDigest.update(LEAF_PREFIX);
+						leafDigest.update(bb);
+						leafHashes[leaf] = leafDigest.digest();
+						return null;
+					});
+				}
+				for(final Future<Void> f : POOL.invokeAll(tasks)) f.get();
+			}
+			
+			final MessageDigest root = newDigest();
+			root.update(ROOT_PREFIX);
+			root.update(ByteBuffer.allocate(8).putLong(0, size));
+			for(final byte[] leafHash : leafHashes) root.update(leafHash);
+			return root.digest();
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while hashing " + in);
+		} catch(ExecutionException ex) {
+			//Mapped reads fault with an InternalError if the file is truncated under us
+			throw new IOException("Failed hashing " + in, ex.getCause());
+		}
+	}
 }
@@ -5,6 +5,10 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
@@ -12,10 +16,13 @@ import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.KeySpec;
+import java.util.Arrays;
+import java.util.function.Consumer;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.GCMParameterSpec;
@@ -25,11 +32,13 @@ import javax.crypto.spec.SecretKeySpec;
 public class KeyfileCrypter {
 	//If you encrypt 1000 bytes, output will be length IVS_LENGTH + 1000 + STREAM_PAD_LENGTH
 	private static final int STREAM_PAD_LENGTH = 16;
+	//Legacy file format, still read but no longer written.
 	//The SunJCE providers only support processing 2GB of data before they throw,
 	//regardless of the underlying cipher semantics.  Therefore we need to reset them
 	//with new IVs and new ciphers every N bytes.  N must be somewhat small, due to the
 	//need to fit the buffer in memory to call doFinal() on the entire buffer instead of
 	//update() on segments; the former is far faster.
+	//Files are now written by SegmentedCrypter instead, in small segments.
 	private static final int RESET_ENC_CIPHER_EVERY = 500 * 1000 * 1000; //500M bytes
 	private static final int RESET_DEC_CIPHER_EVERY = RESET_ENC_CIPHER_EVERY + STREAM_PAD_LENGTH;
 	private static final int IVS_LENGTH = 16;
@@ -40,6 +49,26 @@ public class KeyfileCrypter {
 	
 	private static final String CRYPT_MODE = "AES/GCM/NoPadding";
 	private static final String KEY_SPEC = "PBKDF2WithHmacSHA256";
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	//Labels of keys derived from the underlying key, for uses other than encryption
+	private static final String CHUNK_ID_LABEL = "cryptid chunk id";
+	private static final String CHUNKER_LABEL = "cryptid chunker";
+	
+	private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+		try {
+			return Cipher.getInstance(CRYPT_MODE);
+		} catch(GeneralSecurityException ex) {
+			throw new RuntimeException(ex);
+		}
+	});
+	private static final ThreadLocal<byte[]> IVS = ThreadLocal.withInitial(() -> new byte[IVS_LENGTH]);
+	private static final ThreadLocal<Mac> MACS = ThreadLocal.withInitial(() -> {
+		try {
+			return Mac.getInstance(MAC_ALGORITHM);
+		} catch(GeneralSecurityException ex) {
+			throw new RuntimeException(ex);
+		}
+	});
 	
 	//This passphrase is used to encrypt the underlying key, to support changing passphrases
 	private final char[] password;
@@ -48,6 +77,10 @@ public class KeyfileCrypter {
 		
 	private final SecureRandom rng;
 	private final SecretKeySpec secretKeySpec;
+	//File contents, in the segmented format
+	private final SegmentedCrypter segments;
+	//Names chunks by their content, without revealing a hash of it
+	private final SecretKeySpec chunkIdKey;
 	
 	private SecretKey secretKeyFromPassword(final byte[] salt, final char[] pw) {
 		try {
@@ -65,18 +98,6 @@ public class KeyfileCrypter {
 		return new GCMParameterSpec(GCM_TAG_LENGTH * 8, ivs);
 	}
 	
-	private Cipher encryptionCipherForSecret(byte[] ivs) {
-		try {
-			final AlgorithmParameterSpec aps = getAlgoParamSpec(ivs);
-			
-			Cipher cipher = Cipher.getInstance(CRYPT_MODE);
-			cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, aps);
-			return cipher;
-		} catch(GeneralSecurityException ex) {
-			throw new RuntimeException(ex);
-		}
-	}
-	
 	private Cipher decryptionCipherForSecret(byte[] ivs) {
 		try {
 			final AlgorithmParameterSpec aps = getAlgoParamSpec(ivs);
@@ -124,6 +145,8 @@ public class KeyfileCrypter {
 		this.key = new byte[AES_BITS / 8];
 		rng.nextBytes(this.key);
 		secretKeySpec = new SecretKeySpec(key, "AES");
+		segments = new SegmentedCrypter(key, rng);
+		chunkIdKey = new SecretKeySpec(mac(new SecretKeySpec(key, MAC_ALGORITHM), label(CHUNK_ID_LABEL, 0)), MAC_ALGORITHM);
 	}
 	
 	public KeyfileCrypter(byte[] encryptedKeyfile, char[] passphrase) {
@@ -144,6 +167,8 @@ public class KeyfileCrypter {
 		}
 		
 		secretKeySpec = new SecretKeySpec(key, "AES");
+		segments = new SegmentedCrypter(key, rng);
+		chunkIdKey = new SecretKeySpec(mac(new SecretKeySpec(key, MAC_ALGORITHM), label(CHUNK_ID_LABEL, 0)), MAC_ALGORITHM);
 	}
 	
 	public byte[] encryptKeyfile(char[] newPassphrase) throws IOException {
@@ -162,85 +187,260 @@ public class KeyfileCrypter {
 		}
 	}
 	
+	private static byte[] mac(SecretKeySpec macKey, byte[] in) {
+		return mac(macKey, in, 0, in.length);
+	}
+	
+	private static byte[] mac(SecretKeySpec macKey, byte[] in, int off, int len) {
+		final Mac mac = MACS.get();
+		try {
+			mac.init(macKey);
+		} catch(GeneralSecurityException ex) {
+			throw new RuntimeException(ex);
+		}
+		mac.update(in, off, len);
+		return mac.doFinal();
+	}
+	
+	private static byte[] label(String label, int counter) {
+		final byte[] l = label.getBytes(StandardCharsets.UTF_8);
+		final byte[] out = Arrays.copyOf(l, l.length + 4);
+		ByteBuffer.wrap(out, l.length, 4).putInt(counter);
+		return out;
+	}
+	
+	//Keyed hash identifying a chunk by its content.  Equal content gives equal
+	//IDs under one key, but the IDs say nothing about content to anyone without it.
+	public byte[] chunkId(byte[] in, int off, int len) {
+		return mac(chunkIdKey, in, off, len);
+	}
+	
+	//Gear table for Chunker, derived from the key, so that where chunk boundaries
+	//fall (and so the sizes of chunk objects) doesn't reveal content either
+	public long[] chunkerGear() {
+		final SecretKeySpec macKey = new SecretKeySpec(key, MAC_ALGORITHM);
+		final long[] gear = new long[Chunker.GEAR_LENGTH];
+		for(int i = 0; i < gear.length; i += 4) {
+			final ByteBuffer bb = ByteBuffer.wrap(mac(macKey, label(CHUNKER_LABEL, i)));
+			for(int j = 0; j < 4; j++) gear[i + j] = bb.getLong();
+		}
+		return gear;
+	}
+	
 	public byte[] getRandomBytes(int n) {
 		final byte[] out = new byte[n];
 		rng.nextBytes(out);
 		return out;
 	}
 	
+	//Encrypts to a new temp file in the segmented format, large files on
+	//several cores
 	public Path encryptFileToTemp(Path in) throws IOException{
-		long inputSize = Files.size(in);
-		final byte[] buf = new byte[Math.min(RESET_ENC_CIPHER_EVERY, (int)Math.min(Integer.MAX_VALUE, inputSize))];
-		
+		return encryptFileToTemp(in, newStreamHeader());
+	}
+	
+	//As above under the given header, as from newStreamHeader(false)
+	public Path encryptFileToTemp(Path in, byte[] header) throws IOException{
 		final Path out = Files.createTempFile(null, null);
-		try(final InputStream is = Files.newInputStream(in, StandardOpenOption.READ);
-			final OutputStream os = Files.newOutputStream(out, StandardOpenOption.WRITE);){
-			
-			while(true) {
-				int read = is.read(buf);
-				if(read == -1) {
-					return out;
-				} else {
-					byte[] ivs = getRandomBytes(IVS_LENGTH);
-					Cipher c = encryptionCipherForSecret(ivs);
-					os.write(ivs);
-					final byte[] toWrite = c.doFinal(buf, 0, read);
-					os.write(toWrite);
-				}
-			}
-		} catch(BadPaddingException | IllegalBlockSizeException ex) {
-			throw new IOException(ex);
+		try(final FileChannel is = FileChannel.open(in, StandardOpenOption.READ);
+			final FileChannel os = FileChannel.open(out, StandardOpenOption.WRITE);){
+			segments.encryptToChannel(is, is.size(), header, os);
 		}
+		return out;
+	}
+	
+	//As encryptFileToTemp, compressing each segment first.  The output length
+	//can't be known before it's written, so this is only done to a file.
+	public Path compressFileToTemp(Path in) throws IOException {
+		return compressFileToTemp(in, newStreamHeader(true));
+	}
+	
+	//As above under the given header, as from newStreamHeader(true).  The same
+	//file under the same header gives the same bytes.
+	public Path compressFileToTemp(Path in, byte[] header) throws IOException {
+		final Path out = Files.createTempFile(null, null);
+		try(final FileChannel is = FileChannel.open(in, StandardOpenOption.READ);
+			final FileChannel os = FileChannel.open(out, StandardOpenOption.WRITE);){
+			segments.encryptCompressedToChannel(is, is.size(), header, os);
+		}
+		return out;
+	}
+	
+	//Segments of a single file encrypted at once, shared by all files.  1 means
+	//encrypting on the calling thread.
+	public void setEncryptionParallelism(int n) {
+		segments.setParallelism(n);
+	}
+	
+	//Length of the output of encryptFileToTemp, or of an encrypting stream, for
+	//an input of the given length
+	public static long encryptedLength(long plainSize) {
+		return SegmentedCrypter.encryptedLength(plainSize);
+	}
+	
+	//A header to be passed to encryptingStream.  Fixing it up front means every
+	//stream over the same file gives the same bytes, so a retried or partial read
+	//matches what was read before.
+	public byte[] newStreamHeader() {
+		return segments.newHeader();
+	}
+	
+	//For compressFileToTemp if compressed, otherwise as above
+	public byte[] newStreamHeader(boolean compressed) {
+		return segments.newHeader(compressed);
+	}
+	
+	//For working on segments of a body directly, eg decrypting ranges of it as
+	//they're downloaded in parallel
+	public SegmentedCrypter.FileContext segmentContext(byte[] header) throws IOException {
+		return segments.context(header);
+	}
+
+	public static boolean isCompressedHeader(byte[] header) {
+		return header.length > SegmentedCrypter.MAGIC.length
+				&& header[SegmentedCrypter.MAGIC.length] == SegmentedCrypter.COMPRESSED_VERSION;
+	}
+	
+	//Encrypts the file as it's read, in the segmented format.  Exactly plainSize
+	//bytes of the file are read; if it's shorter, the stream fails rather than
+	//producing output of the wrong length.  Streams over the same file share a
+	//context, from segmentContext(), which fails any of them that would encrypt
+	//a segment differently from before; see SegmentedCrypter.
+	public InputStream encryptingStream(Path in, long plainSize, SegmentedCrypter.FileContext ctx) throws IOException {
+		return segments.encryptingStream(FileChannel.open(in, StandardOpenOption.READ), plainSize, ctx, null, null);
+	}
+	
+	//As above, passing the file's hash, as from Hasher, to onHash once the
+	//whole file has been read through the stream
+	public InputStream encryptingStream(Path in, long plainSize, SegmentedCrypter.FileContext ctx, Consumer<byte[]> onHash) throws IOException {
+		return segments.encryptingStream(FileChannel.open(in, StandardOpenOption.READ), plainSize, ctx,
+				Hasher.newDigest(), onHash);
+	}
+	
+	//Encrypts a buffer in the segmented format, as encryptFileToTemp would a file
+	public byte[] encryptSegmented(byte[] in, int off, int len) throws IOException {
+		return segments.encrypt(in, off, len);
+	}
+	
+	//Encrypts in the segmented format as it's written, for serializing something
+	//large without holding it, or its encryption, in memory.  Closing it writes
+	//the last segment and closes out.
+	public OutputStream encryptingStream(OutputStream out) throws IOException {
+		return segments.encryptingStream(out);
+	}
+	
+	//Decrypts the segmented format as it's read; see SegmentedCrypter.  Only for
+	//what's known to have been written segmented, such as by encryptSegmented.
+	public InputStream decryptingStream(InputStream in) throws IOException {
+		return segments.decryptingStream(in);
 	}
 	
 	public void decryptFile(Path in, Path out) throws IOException {
-		final long inputSize = Files.size(in);
-		final byte[] ivs = new byte[IVS_LENGTH];
-		
 		try(final InputStream is = Files.newInputStream(in, StandardOpenOption.READ);
 			final OutputStream os = Files.newOutputStream(out, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+			decryptStream(is, os);
+		}
+	}
+	
+	//Decrypts as the input arrives, in either format.  Whatever is written has
+	//been authenticated, though a failure part way leaves what came before it
+	//in the output.
+	public void decryptStream(InputStream in, OutputStream out) throws IOException {
+		final PushbackInputStream pin = new PushbackInputStream(in, SegmentedCrypter.MAGIC.length);
+		final byte[] magic = new byte[SegmentedCrypter.MAGIC.length];
+		final int read = pin.readNBytes(magic, 0, magic.length);
+		pin.unread(magic, 0, read);
+		//Legacy files start with a random IV, which is as likely to match
+		//the magic as to collide with another 64 bit random value
+		if(SegmentedCrypter.isMagic(magic, read)) segments.decrypt(pin, out);
+		else decryptLegacyStream(pin, out);
+	}
+	
+	//The legacy format is chunked, IV + ciphertext + tag per chunk.  The JCE
+	//holds up to a chunk of ciphertext until doFinal(), because GCM decryption
+	//doesn't release plaintext before authenticating.
+	private void decryptLegacyStream(InputStream in, OutputStream out) throws IOException {
+		final byte[] ivs = new byte[IVS_LENGTH];
+		final byte[] buf = new byte[64 * 1024];
+		while(true) {
+			final int ivRead = in.readNBytes(ivs, 0, IVS_LENGTH);
+			if(ivRead == 0) return;
+			if(ivRead < IVS_LENGTH) throw new IOException("Truncated encrypted stream");
 			
-			while(true) {
-				is.read(ivs);
-				Cipher c = decryptionCipherForSecret(ivs);
-				//This needs to be huge for performance reasons
-				//Java AEAD decryption is completely non performant for update() calls thru Java 10,
-				//due to not accelerating w/ hardware, and buffering the output 
-				final byte[] buf = new byte[Math.min(RESET_DEC_CIPHER_EVERY, (int)Math.min(Integer.MAX_VALUE, inputSize))];
-				int read = is.read(buf);
-				if(read == -1) {
-					return;
-				} else {
-					final byte[] toWrite = c.doFinal(buf, 0, read);
-					os.write(toWrite);
-				}
+			final Cipher c = decryptionCipherForSecret(ivs);
+			int chunkRead = 0;
+			while(chunkRead < RESET_DEC_CIPHER_EVERY) {
+				final int read = in.read(buf, 0, Math.min(buf.length, RESET_DEC_CIPHER_EVERY - chunkRead));
+				if(read == -1) break;
+				chunkRead += read;
+				final byte[] plain = c.update(buf, 0, read);
+				if(plain != null) out.write(plain);
 			}
-		} catch(IllegalBlockSizeException | BadPaddingException ex ) {
-			throw new RuntimeException(ex);
+			try {
+				out.write(c.doFinal());
+			} catch(IllegalBlockSizeException | BadPaddingException ex) {
+				throw new IOException("Failed to authenticate encrypted stream", ex);
+			}
+			//A short chunk is the last one
+			if(chunkRead < RESET_DEC_CIPHER_EVERY) return;
 		}
 	}
 		
-	public byte[] encrypt(byte[] in) {
-		final byte[] ivs = getRandomBytes(IVS_LENGTH);
-		final Cipher cipher = encryptionCipherForSecret(ivs);
-		
-		try(final ByteArrayOutputStream baos = new ByteArrayOutputStream()){
-			baos.write(ivs);
-			baos.write(cipher.doFinal(in));
-			return baos.toByteArray();
-		} catch(IOException  | BadPaddingException | IllegalBlockSizeException ex) {
+	//Metadata sized encrypt and decrypt run for every remote object, so each
+	//thread keeps a Cipher and IV buffer rather than making new ones per call.
+	//GCM must be initialized afresh each time anyway, with a new IV.
+	//Output is IV + ciphertext + tag.
+	public static int encryptedSize(int plainLength) {
+		return IVS_LENGTH + plainLength + GCM_TAG_LENGTH;
+	}
+	
+	public static int decryptedSize(int encryptedLength) {
+		return Math.max(0, encryptedLength - IVS_LENGTH - GCM_TAG_LENGTH);
+	}
+	
+	//Encrypts the rest of src into dst, which needs encryptedSize() room, and
+	//returns the bytes written.  Either may be direct.
+	public int encrypt(ByteBuffer src, ByteBuffer dst) {
+		final byte[] ivs = IVS.get();
+		rng.nextBytes(ivs);
+		final int start = dst.position();
+		dst.put(ivs);
+		try {
+			final Cipher cipher = CIPHERS.get();
+			cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, getAlgoParamSpec(ivs));
+			cipher.doFinal(src, dst);
+			return dst.position() - start;
+		} catch(GeneralSecurityException ex) {
 			throw new RuntimeException(ex);
 		}
 	}
 	
-	public byte[] decrypt(byte[] in) {
-		final byte[] ivs = new byte[IVS_LENGTH];
-		try (final ByteArrayInputStream bais = new ByteArrayInputStream(in)) {
-			bais.read(ivs);
-			final Cipher cipher = decryptionCipherForSecret(ivs);
-			return cipher.doFinal(bais.readAllBytes());
-		} catch(IOException | BadPaddingException | IllegalBlockSizeException ex) {
+	//Decrypts and authenticates the rest of src into dst, which needs
+	//decryptedSize() room, and returns the bytes written
+	public int decrypt(ByteBuffer src, ByteBuffer dst) {
+		if(src.remaining() < IVS_LENGTH + GCM_TAG_LENGTH) throw new RuntimeException("Truncated encrypted data");
+		final byte[] ivs = IVS.get();
+		src.get(ivs);
+		final int start = dst.position();
+		try {
+			final Cipher cipher = CIPHERS.get();
+			cipher.init(Cipher.DECRYPT_MODE, secretKeySpec, getAlgoParamSpec(ivs));
+			cipher.doFinal(src, dst);
+			return dst.position() - start;
+		} catch(GeneralSecurityException ex) {
 			throw new RuntimeException(ex);
 		}
 	}
+	
+	public byte[] encrypt(byte[] in) {
+		final byte[] out = new byte[encryptedSize(in.length)];
+		encrypt(ByteBuffer.wrap(in), ByteBuffer.wrap(out));
+		return out;
+	}
+	
+	public byte[] decrypt(byte[] in) {
+		final byte[] out = new byte[decryptedSize(in.length)];
+		decrypt(ByteBuffer.wrap(in), ByteBuffer.wrap(out));
+		return out;
+	}
 }
@@ -0,0 +1,190 @@
+package com.nyeggen.cryptid.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+//Counters, latency histograms and gauges for the stages of one sync or
+//restore, cheap enough to update from hot loops.  Readers take a snapshot, a
+//flat map of names such as "upload.bytes" or "upload.latency.p99Nanos" to
+//values, for the console, JMX and JSON alike; see MetricsReporter.
+public class Metrics implements MetricsMXBean {
+	//Operations of one kind: how many finished and failed, bytes moved, how many
+	//are in flight, and how long they took
+	public static class Stage {
+		private final String name;
+		private final LongAdder count = new LongAdder();
+		private final LongAdder failures = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final AtomicInteger inFlight = new AtomicInteger(0);
+		private final Histogram latency = new Histogram();
+
+		Stage(String name) {
+			this.name = name;
+		}
+
+		public String getName() { return name; }
+
+		//Returns the start time to pass to finish() or fail()
+		public long start() {
+			inFlight.incrementAndGet();
+			return System.nanoTime();
+		}
+
+		public void finish(long start) {
+			inFlight.decrementAndGet();
+			count.increment();
+			latency.record(System.nanoTime() - start);
+		}
+
+		public void finish(long start, long bytes) {
+			add(bytes);
+			finish(start);
+		}
+
+		public void fail(long start) {
+			inFlight.decrementAndGet();
+			failures.increment();
+			latency.record(System.nanoTime() - start);
+		}
+
+		//Started, but turned out to be nothing to count
+		public void cancel() {
+			inFlight.decrementAndGet();
+		}
+
+		//Bytes moved, as they go rather than when the operation finishes
+		public void add(long n) {
+			bytes.add(n);
+		}
+
+		//Something that happened, not timed
+		public void count() {
+			count.increment();
+		}
+
+		void snapshot(Map<String, Long> out, double seconds) {
+			final long b = bytes.sum();
+			out.put(name + ".count", count.sum());
+			out.put(name + ".failures", failures.sum());
+			out.put(name + ".bytes", b);
+			out.put(name + ".bytesPerSecond", (long)(b / seconds));
+			out.put(name + ".inFlight", (long)inFlight.get());
+			latency.snapshot(out, name + ".latency.");
+		}
+	}
+
+	//Latencies in power of two buckets of nanoseconds, so percentiles are only
+	//good to within a factor of two, but recording is a single add
+	static class Histogram {
+		private static final int BUCKETS = 64;
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder total = new LongAdder();
+
+		void record(long nanos) {
+			final long n = Math.max(1, nanos);
+			buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(n));
+			total.add(n);
+		}
+
+		//Upper bound of the bucket the percentile falls in, or 0 if empty
+		long percentile(double p) {
+			final long[] counts = new long[BUCKETS];
+			long n = 0;
+			for(int i = 0; i < BUCKETS; i++) n += counts[i] = buckets.get(i);
+			if(n == 0) return 0;
+			final long rank = (long)Math.ceil(p * n);
+			long seen = 0;
+			for(int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if(seen >= rank) return (i >= 63) ? Long.MAX_VALUE : (1L << i) - 1;
+			}
+			return Long.MAX_VALUE;
+		}
+
+		void snapshot(Map<String, Long> out, String prefix) {
+			long n = 0;
+			for(int i = 0; i < BUCKETS; i++) n += buckets.get(i);
+			out.put(prefix + "meanNanos", (n == 0) ? 0 : total.sum() / n);
+			out.put(prefix + "p50Nanos", percentile(0.5));
+			out.put(prefix + "p99Nanos", percentile(0.99));
+		}
+	}
+
+	private final String name;
+	private final long startNanos = System.nanoTime();
+	//Guarded by this; kept in order of creation, which is the order they're shown
+	private final Map<String, Stage> stages = new LinkedHashMap<>();
+	private final Map<String, LongAdder> counters = new LinkedHashMap<>();
+	private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+	public Metrics(String name) {
+		this.name = name;
+	}
+
+	public String getName() { return name; }
+
+	public synchronized Stage stage(String name) {
+		return stages.computeIfAbsent(name, Stage::new);
+	}
+
+	public synchronized LongAdder counter(String name) {
+		return counters.computeIfAbsent(name, (k) -> new LongAdder());
+	}
+
+	//Sampled when a snapshot is taken, eg a queue's size
+	public synchronized void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	public synchronized List<Stage> getStages() {
+		return new ArrayList<>(stages.values());
+	}
+
+	public double getElapsedSeconds() {
+		return Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+	}
+
+	public Map<String, Long> snapshot() {
+		final double seconds = getElapsedSeconds();
+		final Map<String, Long> out = new LinkedHashMap<>();
+		out.put("elapsedMillis", (long)(seconds * 1000));
+		final List<Stage> stageList;
+		final Map<String, LongAdder> counterMap;
+		final Map<String, LongSupplier> gaugeMap;
+		synchronized(this) {
+			stageList = new ArrayList<>(stages.values());
+			counterMap = new LinkedHashMap<>(counters);
+			gaugeMap = new LinkedHashMap<>(gauges);
+		}
+		for(final Stage s : stageList) s.snapshot(out, seconds);
+		for(final Map.Entry<String, LongAdder> e : counterMap.entrySet()) out.put(e.getKey(), e.getValue().sum());
+		for(final Map.Entry<String, LongSupplier> e : gaugeMap.entrySet()) out.put(e.getKey(), e.getValue().getAsLong());
+		return out;
+	}
+
+	//A single JSON object of the snapshot
+	public static String toJson(String name, Map<String, Long> snapshot) {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("{\"name\": \"").append(name).append("\", \"timestampMillis\": ").append(System.currentTimeMillis());
+		for(final Map.Entry<String, Long> e : snapshot.entrySet()) {
+			sb.append(", \"").append(e.getKey()).append("\": ").append(e.getValue());
+		}
+		return sb.append('}').toString();
+	}
+
+	@Override
+	public Map<String, Long> getValues() {
+		return snapshot();
+	}
+
+	@Override
+	public String getJson() {
+		return toJson(name, snapshot());
+	}
+}
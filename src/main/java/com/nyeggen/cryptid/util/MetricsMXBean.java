@@ -0,0 +1,10 @@
+package com.nyeggen.cryptid.util;
+
+import java.util.Map;
+
+//What JMX clients such as jconsole see of a Metrics, registered while a sync
+//or restore runs
+public interface MetricsMXBean {
+	public Map<String, Long> getValues();
+	public String getJson();
+}
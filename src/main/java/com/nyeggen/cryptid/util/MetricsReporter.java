@@ -0,0 +1,142 @@
+package com.nyeggen.cryptid.util;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+//Reports a Metrics while a sync or restore runs: registered with JMX for the
+//duration, and every interval written as a JSON snapshot to a file, if given
+//one, and rendered as a line of console progress.  Progress is only printed
+//here, at most once an interval, rather than per file from the threads doing
+//the work.  Closing prints a final line of totals and writes a last snapshot.
+public class MetricsReporter implements AutoCloseable {
+	private static final long INTERVAL_SECONDS = 5;
+	private static final String JMX_DOMAIN = "com.nyeggen.cryptid";
+
+	private final Metrics metrics;
+	//Null for no snapshots
+	private Path jsonFile;
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor((r) -> {
+		final Thread t = new Thread(r, "metrics");
+		t.setDaemon(true);
+		return t;
+	});
+	//Null if registration failed
+	private ObjectName registered = null;
+	//As of the last line, for rates over the interval
+	private Map<String, Long> last = null;
+	private double lastSeconds = 0;
+
+	private MetricsReporter(Metrics metrics, Path jsonFile) {
+		this.metrics = metrics;
+		this.jsonFile = jsonFile;
+	}
+
+	public static MetricsReporter start(Metrics metrics, Path jsonFile) {
+		final MetricsReporter out = new MetricsReporter(metrics, jsonFile);
+		out.register();
+		out.timer.scheduleAtFixedRate(out::report, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+		return out;
+	}
+
+	private void register() {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = new ObjectName(JMX_DOMAIN + ":type=Metrics,name=" + ObjectName.quote(metrics.getName()));
+			server.registerMBean(metrics, name);
+			registered = name;
+		} catch(JMException ex) {
+			System.out.println("Metrics not registered with JMX: " + ex);
+		}
+	}
+
+	private synchronized void report() {
+		final Map<String, Long> now = metrics.snapshot();
+		final double seconds = metrics.getElapsedSeconds();
+		System.out.println(render(now, last, seconds - lastSeconds, seconds));
+		writeJson(now);
+		last = now;
+		lastSeconds = seconds;
+	}
+
+	private void writeJson(Map<String, Long> snapshot) {
+		if(jsonFile == null) return;
+		try {
+			final Path tmp = jsonFile.resolveSibling(jsonFile.getFileName() + ".tmp");
+			Files.createDirectories(jsonFile.toAbsolutePath().getParent());
+			Files.write(tmp, (Metrics.toJson(metrics.getName(), snapshot) + "\n").getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp, jsonFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException ex) {
+			System.out.println("Can't write metrics to " + jsonFile + ", not trying again: " + ex);
+			jsonFile = null;
+		}
+	}
+
+	//Eg "35s: scan 12000, upload 310 52.1 MB/s 8 in flight, queue.uploads 4000".
+	//Rates are over the interval since the previous line, or the whole run for
+	//the final one.
+	private String render(Map<String, Long> now, Map<String, Long> previous, double interval, double seconds) {
+		final StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%.0fs:", seconds));
+		boolean first = true;
+		for(final Metrics.Stage stage : metrics.getStages()) {
+			final String name = stage.getName();
+			//Created since the snapshot
+			if(!now.containsKey(name + ".count")) continue;
+			final long count = now.get(name + ".count");
+			final long failures = now.get(name + ".failures");
+			final long inFlight = now.get(name + ".inFlight");
+			if(count == 0 && failures == 0 && inFlight == 0) continue;
+			sb.append(first ? " " : ", ").append(name).append(' ').append(count);
+			first = false;
+			if(failures > 0) sb.append(" (").append(failures).append(" failed)");
+			final long bytes = now.get(name + ".bytes");
+			final long before = (previous == null || !previous.containsKey(name + ".bytes")) ? 0 : previous.get(name + ".bytes");
+			if(bytes > 0) sb.append(String.format(" %.1f MB/s", (bytes - before) / 1e6 / Math.max(1e-3, interval)));
+			if(inFlight > 0) sb.append(' ').append(inFlight).append(" in flight");
+		}
+		for(final Map.Entry<String, Long> e : now.entrySet()) {
+			final String key = e.getKey();
+			if(key.equals("elapsedMillis") || e.getValue() == 0) continue;
+			if(isStageKey(key)) continue;
+			sb.append(first ? " " : ", ").append(key).append(' ').append(e.getValue());
+			first = false;
+		}
+		return sb.toString();
+	}
+
+	private boolean isStageKey(String key) {
+		for(final Metrics.Stage stage : metrics.getStages()) {
+			if(key.startsWith(stage.getName() + ".")) return true;
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized void close() {
+		timer.shutdownNow();
+		final Map<String, Long> now = metrics.snapshot();
+		final double seconds = metrics.getElapsedSeconds();
+		System.out.println(render(now, null, seconds, seconds));
+		writeJson(now);
+		if(registered != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+			} catch(JMException ex) {
+				//Already gone
+			}
+			registered = null;
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package com.nyeggen.cryptid.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//Walks a directory tree on a work stealing pool, handing each regular file and
+//its attributes to the visitor.  Directories are split off as separate tasks as
+//they're found, and large directories are visited in batches, so both deep and
+//flat trees spread across threads.  Walking is latency bound on network and
+//flash storage, so this scales with threads rather than bandwidth.
+//Like Files.walkFileTree without FOLLOW_LINKS, links to directories aren't
+//followed, and links to files are visited with the attributes of the target.
+public class ParallelFileWalker {
+	private static final int FILE_BATCH = 256;
+
+	public interface Visitor {
+		//Called concurrently from pool threads
+		public void visitFile(Path file, BasicFileAttributes attrs) throws IOException;
+	}
+
+	private final int parallelism;
+
+	public ParallelFileWalker(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	//Exceptions from the visitor end the walk and are rethrown here.  Tasks already
+	//queued check a shared flag and stop rather than walking on.  Unreadable
+	//directories and files are skipped.
+	public void walk(Path root, Visitor visitor) throws IOException {
+		final ForkJoinPool pool = new ForkJoinPool(parallelism);
+		final AtomicBoolean cancelled = new AtomicBoolean(false);
+		try {
+			pool.invoke(new DirectoryTask(root, visitor, cancelled));
+		} catch(UncheckedIOException ex) {
+			throw ex.getCause();
+		} finally {
+			cancelled.set(true);
+			pool.shutdownNow();
+		}
+	}
+
+	private static class DirectoryTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Path dir;
+		private final Visitor visitor;
+		private final AtomicBoolean cancelled;
+
+		DirectoryTask(Path dir, Visitor visitor, AtomicBoolean cancelled) {
+			this.dir = dir;
+			this.visitor = visitor;
+			this.cancelled = cancelled;
+		}
+
+		@Override
+		protected void compute() {
+			if(cancelled.get()) return;
+			final List<ForkJoinTask<?>> forked = new ArrayList<>();
+			List<Path> batch = new ArrayList<>(FILE_BATCH);
+			List<BasicFileAttributes> batchAttrs = new ArrayList<>(FILE_BATCH);
+			try(final DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+				for(final Path p : entries) {
+					if(cancelled.get()) break;
+					BasicFileAttributes attrs;
+					try {
+						attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+						if(attrs.isDirectory()) {
+							forked.add(new DirectoryTask(p, visitor, cancelled).fork());
+							continue;
+						}
+						if(attrs.isSymbolicLink()) {
+							attrs = Files.readAttributes(p, BasicFileAttributes.class);
+						}
+					} catch(IOException ex) {
+						//Vanished, unreadable or a broken link
+						continue;
+					}
+					if(!attrs.isRegularFile()) continue;
+
+					batch.add(p);
+					batchAttrs.add(attrs);
+					if(batch.size() == FILE_BATCH) {
+						forked.add(new FileBatchTask(batch, batchAttrs, visitor, cancelled).fork());
+						batch = new ArrayList<>(FILE_BATCH);
+						batchAttrs = new ArrayList<>(FILE_BATCH);
+					}
+				}
+			} catch(IOException | DirectoryIteratorException ex) {
+				//Unreadable directory; whatever we got from it is still visited
+			}
+			new FileBatchTask(batch, batchAttrs, visitor, cancelled).compute();
+			for(final ForkJoinTask<?> t : forked) t.join();
+		}
+	}
+
+	private static class FileBatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<Path> files;
+		private final List<BasicFileAttributes> attrs;
+		private final Visitor visitor;
+		private final AtomicBoolean cancelled;
+
+		FileBatchTask(List<Path> files, List<BasicFileAttributes> attrs, Visitor visitor, AtomicBoolean cancelled) {
+			this.files = files;
+			this.attrs = attrs;
+			this.visitor = visitor;
+			this.cancelled = cancelled;
+		}
+
+		@Override
+		protected void compute() {
+			for(int i = 0; i < files.size() && !cancelled.get(); i++) {
+				try {
+					visitor.visitFile(files.get(i), attrs.get(i));
+				} catch(IOException ex) {
+					cancelled.set(true);
+					throw new UncheckedIOException(ex);
+				} catch(RuntimeException | Error ex) {
+					cancelled.set(true);
+					throw ex;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.nyeggen.cryptid.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+//A stage of a pipeline: a fixed number of threads taking from one channel,
+//applying a step, and putting results on the next.  End of input is signalled
+//by a poison element, which is passed downstream once every thread in the
+//stage has seen it.  A failing step is reported and its element dropped, so
+//one bad file can't stall the stages around it.  A thread killed by an Error
+//still counts as done, so the poison isn't held up, and join() rethrows it.
+public class PipelineStage<I, O> {
+	public interface Step<I, O> {
+		//Returns what to pass downstream, or null to pass nothing
+		public O apply(I in) throws Exception;
+	}
+
+	private final String name;
+	private final Channel<I> in;
+	//Null for the last stage
+	private final Channel<O> out;
+	private final I poisonIn;
+	private final O poisonOut;
+	private final Step<I, O> step;
+	private final Thread[] threads;
+	private final AtomicInteger alive;
+	private final AtomicInteger failures = new AtomicInteger(0);
+	//First Error to kill a thread, if any
+	private volatile Error died = null;
+
+	public PipelineStage(String name, int parallelism, Channel<I> in, I poisonIn, Channel<O> out, O poisonOut, Step<I, O> step) {
+		this.name = name;
+		this.in = in;
+		this.out = out;
+		this.poisonIn = poisonIn;
+		this.poisonOut = poisonOut;
+		this.step = step;
+		this.threads = new Thread[parallelism];
+		this.alive = new AtomicInteger(parallelism);
+		for(int i = 0; i < parallelism; i++) {
+			threads[i] = new Thread(this::work, name + "-" + i);
+		}
+	}
+
+	public PipelineStage<I, O> start() {
+		for(final Thread t : threads) t.start();
+		return this;
+	}
+
+	private void work() {
+		boolean tornDown = false;
+		try {
+			while(true) {
+				final I item = in.take();
+				if(item == poisonIn) {
+					//Put back so the other threads in this stage see it too
+					in.put(item);
+					break;
+				}
+				final O result;
+				try {
+					result = step.apply(item);
+				} catch(InterruptedException ex) {
+					throw ex;
+				} catch(Exception ex) {
+					failures.incrementAndGet();
+					System.out.println(name + " failed: " + ex);
+					continue;
+				}
+				if(result != null && out != null) out.put(result);
+			}
+		} catch(InterruptedException ex) {
+			//Pipeline is being torn down, so nothing downstream is waiting on us
+			tornDown = true;
+		} catch(Error ex) {
+			if(died == null) died = ex;
+			throw ex;
+		} finally {
+			if(alive.decrementAndGet() == 0 && out != null && !tornDown) {
+				try {
+					out.put(poisonOut);
+				} catch(InterruptedException ex) {
+					//Torn down meanwhile
+				}
+			}
+		}
+	}
+
+	public void join() throws InterruptedException {
+		for(final Thread t : threads) t.join();
+		if(died != null) throw died;
+	}
+
+	public void interrupt() {
+		for(final Thread t : threads) t.interrupt();
+	}
+
+	public int getFailures() { return failures.get(); }
+	public String getName() { return name; }
+}
@@ -0,0 +1,849 @@
+package com.nyeggen.cryptid.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+//Version 2 file format.  A 32 byte header:
+//  magic (8) | version (1) | reserved (3) | segment size (4) | salt (16)
+//followed by the plaintext in fixed size segments, each encrypted separately with
+//AES-GCM and followed by its tag.  The last segment may be short or empty, and
+//there's always at least one.
+//
+//Each file gets its own key, an HMAC of the header under the master key, so
+//nonces only need to be unique within a file: the segment index, and a flag
+//marking the last segment.  Reordered segments fail on the index, and truncation
+//or extension fails on the flag, since the reader takes the segment at EOF as the
+//last one.  Changing the header changes the key, so nothing decrypts.
+//
+//Segments are small, so encryption and decryption each need two segment sized
+//buffers however large the file, and they're pooled across files.
+//
+//Segments are independent, so those of one large file can be encrypted on several
+//cores at once, on a pool shared by every file.  The output is the same either way.
+//
+//A segment may be encrypted more than once under the same header, when a stream
+//is retried or two parts of a large file share it.  That's only safe if its
+//plaintext is the same each time, so a FileContext remembers the tag of each
+//segment it has encrypted, and output whose tag differs, from a file changed
+//in between, is never handed out.
+//
+//Version 3 compresses each segment before encrypting it.  Segment plaintext is a
+//method byte (stored or deflated) and the data, and each encrypted segment is
+//preceded by its length as a 4 byte int, the top bit of which marks the last
+//one.  That's authenticated through the nonce like the EOF is for version 2.
+//Lengths aren't known ahead, so version 3 is only written to files.
+public class SegmentedCrypter {
+	public static final byte[] MAGIC = { 'C', 'R', 'Y', 'P', 'T', 'S', 'E', 'G' };
+	public static final int VERSION = 2;
+	public static final int COMPRESSED_VERSION = 3;
+	public static final int HEADER_LENGTH = 32;
+	public static final int SEGMENT_SIZE = 1024 * 1024;
+	public static final int TAG_LENGTH = 16;
+	//Largest segment size accepted from a header, so a corrupt one can't make us
+	//allocate gigabytes
+	private static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+	private static final int SALT_OFFSET = 16;
+	private static final int SALT_LENGTH = 16;
+	private static final int NONCE_LENGTH = 12;
+	//No segment's, their indexes not being negative; see encryptSegment()
+	private static final GCMParameterSpec UNUSED_NONCE = nonce(-1, false);
+
+	//Compressed segment framing
+	private static final int LENGTH_PREFIX = 4;
+	private static final int LAST_SEGMENT_BIT = 0x80000000;
+	private static final byte STORED = 0;
+	private static final byte DEFLATED = 1;
+	//Big enough for a default segment and its tag, plus a byte of lookahead, or
+	//the framing of a compressed segment
+	private static final BufferPool BUFFERS = new BufferPool(SEGMENT_SIZE + TAG_LENGTH + LENGTH_PREFIX + 1, 64);
+
+	//Ciphers and MACs are costly to create, but can be reinitialized freely
+	private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(SegmentedCrypter::newCipher);
+	private static final ThreadLocal<Mac> MACS = ThreadLocal.withInitial(() -> {
+		try {
+			return Mac.getInstance("HmacSHA256");
+		} catch(GeneralSecurityException ex) {
+			throw new RuntimeException(ex);
+		}
+	});
+
+	private final SecretKeySpec masterKey;
+	private final SecureRandom rng;
+	//Segments of one file encrypted at once; 1 encrypts on the calling thread
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	//Created on first use, and shared by all files
+	private ExecutorService pool = null;
+
+	public SegmentedCrypter(byte[] key, SecureRandom rng) {
+		this.masterKey = new SecretKeySpec(key, "HmacSHA256");
+		this.rng = rng;
+	}
+
+	public synchronized void setParallelism(int n) {
+		if(n < 1) throw new IllegalArgumentException(Integer.toString(n));
+		if(n == parallelism) return;
+		parallelism = n;
+		if(pool != null) pool.shutdown();
+		pool = null;
+	}
+
+	public synchronized int getParallelism() { return parallelism; }
+
+	private synchronized ExecutorService getPool() {
+		if(pool == null) {
+			final AtomicInteger threadCount = new AtomicInteger(0);
+			pool = Executors.newFixedThreadPool(parallelism, r -> {
+				final Thread t = new Thread(r, "encrypt-" + threadCount.incrementAndGet());
+				//Idle workers shouldn't hold the JVM open
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return pool;
+	}
+
+	private static Cipher newCipher() {
+		try {
+			return Cipher.getInstance("AES/GCM/NoPadding");
+		} catch(GeneralSecurityException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	//Everything needed to work on the segments of one file
+	public class FileContext {
+		private final byte[] header;
+		private final int segmentSize;
+		private final boolean compressed;
+		private final SecretKeySpec key;
+		//Tag of each segment encrypted under this context so far, by index
+		private final ConcurrentHashMap<Long, byte[]> tags = new ConcurrentHashMap<>();
+
+		private FileContext(byte[] header) {
+			this.header = header;
+			this.segmentSize = ByteBuffer.wrap(header, 12, 4).getInt();
+			this.compressed = header[MAGIC.length] == COMPRESSED_VERSION;
+			final Mac mac = MACS.get();
+			try {
+				mac.init(masterKey);
+			} catch(GeneralSecurityException ex) {
+				throw new RuntimeException(ex);
+			}
+			this.key = new SecretKeySpec(mac.doFinal(header), "AES");
+		}
+
+		public byte[] getHeader() { return header.clone(); }
+		public int getSegmentSize() { return segmentSize; }
+		public boolean isCompressed() { return compressed; }
+		public long segmentCount(long plainSize) { return SegmentedCrypter.segmentCount(plainSize, segmentSize); }
+		public long encryptedLength(long plainSize) { return SegmentedCrypter.encryptedLength(plainSize, segmentSize); }
+
+		//Encrypts len bytes into out, returning the output length, len + TAG_LENGTH.
+		//A segment encrypted before under this context must come out the same, or
+		//this fails without the output being used.  That check is ours to make: the
+		//JCE refuses to init a Cipher with the key and nonce it last encrypted under,
+		//which contexts sharing a header can hit on the same thread for the same
+		//content, so the Cipher is first inited under a nonce no segment uses.
+		public int encryptSegment(long index, boolean last, byte[] in, int off, int len, byte[] out, int outOff) throws IOException {
+			final byte[] previous = tags.get(index);
+			final Cipher c = CIPHERS.get();
+			final int n;
+			try {
+				c.init(Cipher.ENCRYPT_MODE, key, UNUSED_NONCE);
+				c.init(Cipher.ENCRYPT_MODE, key, nonce(index, last));
+				n = c.doFinal(in, off, len, out, outOff);
+			} catch(GeneralSecurityException ex) {
+				throw new IOException(ex);
+			}
+			final byte[] tag = Arrays.copyOfRange(out, outOff + n - TAG_LENGTH, outOff + n);
+			//Two threads may race to encrypt it first; the loser is checked the same way
+			final byte[] first = (previous != null) ? previous : tags.putIfAbsent(index, tag);
+			if(first != null && !MessageDigest.isEqual(first, tag)) {
+				throw new IOException("Segment " + index + " changed since it was first encrypted, not reusing its nonce");
+			}
+			return n;
+		}
+
+		//Decrypts and authenticates len bytes of segment and tag into out,
+		//returning the plaintext length
+		public int decryptSegment(long index, boolean last, byte[] in, int off, int len, byte[] out, int outOff) throws IOException {
+			final Cipher c = CIPHERS.get();
+			try {
+				c.init(Cipher.DECRYPT_MODE, key, nonce(index, last));
+				return c.doFinal(in, off, len, out, outOff);
+			} catch(AEADBadTagException ex) {
+				throw new IOException("Failed to authenticate segment " + index, ex);
+			} catch(GeneralSecurityException ex) {
+				throw new IOException(ex);
+			}
+		}
+	}
+
+	private static GCMParameterSpec nonce(long index, boolean last) {
+		final byte[] nonce = new byte[NONCE_LENGTH];
+		ByteBuffer.wrap(nonce).putLong(index);
+		nonce[NONCE_LENGTH - 1] = (byte)(last ? 1 : 0);
+		return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+	}
+
+	public static long segmentCount(long plainSize, int segmentSize) {
+		return Math.max(1, (plainSize + segmentSize - 1) / segmentSize);
+	}
+
+	public static long encryptedLength(long plainSize, int segmentSize) {
+		return HEADER_LENGTH + plainSize + segmentCount(plainSize, segmentSize) * TAG_LENGTH;
+	}
+
+	public static long encryptedLength(long plainSize) {
+		return encryptedLength(plainSize, SEGMENT_SIZE);
+	}
+
+	public static boolean isMagic(byte[] b, int len) {
+		return len >= MAGIC.length && Arrays.equals(b, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+	}
+
+	//A header with a fresh salt, for a new file
+	public byte[] newHeader() {
+		return newHeader(false);
+	}
+	
+	public byte[] newHeader(boolean compressed) {
+		final byte[] header = new byte[HEADER_LENGTH];
+		final ByteBuffer bb = ByteBuffer.wrap(header);
+		bb.put(MAGIC);
+		bb.put((byte)(compressed ? COMPRESSED_VERSION : VERSION));
+		bb.position(12);
+		bb.putInt(SEGMENT_SIZE);
+		final byte[] salt = new byte[SALT_LENGTH];
+		rng.nextBytes(salt);
+		bb.put(salt);
+		return header;
+	}
+
+	public FileContext context(byte[] header) throws IOException {
+		if(header.length != HEADER_LENGTH || !isMagic(header, header.length)) throw new IOException("Not a segmented file");
+		if(header[MAGIC.length] != VERSION && header[MAGIC.length] != COMPRESSED_VERSION) throw new IOException("Unknown segmented file version " + header[MAGIC.length]);
+		final int segmentSize = ByteBuffer.wrap(header, 12, 4).getInt();
+		if(segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) throw new IOException("Bad segment size " + segmentSize);
+		return new FileContext(header.clone());
+	}
+
+	//Reads and checks the header at the start of the stream
+	public FileContext readContext(InputStream in) throws IOException {
+		final byte[] header = new byte[HEADER_LENGTH];
+		if(in.readNBytes(header, 0, HEADER_LENGTH) < HEADER_LENGTH) throw new IOException("Truncated encrypted stream");
+		return context(header);
+	}
+
+	private static byte[] acquire(int size) {
+		return (size <= BUFFERS.getSize()) ? BUFFERS.acquire() : new byte[size];
+	}
+
+	//Decrypts a whole stream, header included.  Each segment is written once it's
+	//authenticated, so everything written is authentic, but a failure part way
+	//leaves the earlier segments in the output.
+	public void decrypt(InputStream in, OutputStream out) throws IOException {
+		final FileContext ctx = readContext(in);
+		if(ctx.compressed) {
+			decryptCompressed(ctx, in, out);
+			return;
+		}
+		final int segmentOut = ctx.segmentSize + TAG_LENGTH;
+		final byte[] buf = acquire(segmentOut + 1);
+		final byte[] plain = acquire(segmentOut + 1);
+		try {
+			//Bytes of the next segment already read, as lookahead
+			int have = 0;
+			for(long index = 0; ; index++) {
+				final int n = have + in.readNBytes(buf, have, segmentOut + 1 - have);
+				final boolean last = n <= segmentOut;
+				final int len = last ? n : segmentOut;
+				if(len < TAG_LENGTH) throw new IOException("Truncated encrypted stream");
+				final int plainLen = ctx.decryptSegment(index, last, buf, 0, len, plain, 0);
+				out.write(plain, 0, plainLen);
+				if(last) return;
+				buf[0] = buf[segmentOut];
+				have = 1;
+			}
+		} finally {
+			BUFFERS.release(buf);
+			BUFFERS.release(plain);
+		}
+	}
+
+	//Every segment but the last must decompress to a full segment
+	private static void decryptCompressed(FileContext ctx, InputStream in, OutputStream out) throws IOException {
+		final int maxLen = ctx.segmentSize + 1 + TAG_LENGTH;
+		final byte[] buf = acquire(maxLen);
+		final byte[] framed = acquire(maxLen);
+		final byte[] plain = acquire(ctx.segmentSize);
+		final byte[] prefix = new byte[LENGTH_PREFIX];
+		try {
+			for(long index = 0; ; index++) {
+				if(in.readNBytes(prefix, 0, LENGTH_PREFIX) < LENGTH_PREFIX) throw new IOException("Truncated encrypted stream");
+				final int word = ByteBuffer.wrap(prefix).getInt();
+				final boolean last = (word & LAST_SEGMENT_BIT) != 0;
+				final int len = word & ~LAST_SEGMENT_BIT;
+				if(len < 1 + TAG_LENGTH || len > maxLen) throw new IOException("Bad segment length " + len);
+				if(in.readNBytes(buf, 0, len) < len) throw new IOException("Truncated encrypted stream");
+				final int framedLen = ctx.decryptSegment(index, last, buf, 0, len, framed, 0);
+				final int plainLen;
+				if(framed[0] == STORED) {
+					plainLen = framedLen - 1;
+					if(plainLen > ctx.segmentSize) throw new IOException("Bad segment length " + plainLen);
+					out.write(framed, 1, plainLen);
+				} else if(framed[0] == DEFLATED) {
+					plainLen = Compression.inflate(framed, 1, framedLen - 1, plain, 0, ctx.segmentSize);
+					out.write(plain, 0, plainLen);
+				} else {
+					throw new IOException("Unknown segment compression " + framed[0]);
+				}
+				if(!last && plainLen != ctx.segmentSize) throw new IOException("Short segment " + index);
+				if(last) {
+					if(in.read() != -1) throw new IOException("Data after last segment");
+					return;
+				}
+			}
+		} finally {
+			BUFFERS.release(buf);
+			BUFFERS.release(framed);
+			BUFFERS.release(plain);
+		}
+	}
+
+	//Encrypts the file as it's read.  Exactly plainSize bytes of the file are
+	//read; if it's shorter, the stream fails rather than producing output of the
+	//wrong length.  The channel is closed with the stream.
+	public InputStream encryptingStream(FileChannel channel, long plainSize, byte[] header) throws IOException {
+		return encryptingStream(channel, plainSize, header, null, null);
+	}
+
+	//As above, also feeding the plaintext to the digest.  Once all of it has
+	//been read, the digest is finished and passed to onHash, so the file is
+	//hashed in the same pass.  Nothing is passed on if the stream skips, as it
+	//won't have seen everything.
+	public InputStream encryptingStream(FileChannel channel, long plainSize, byte[] header,
+			MessageDigest digest, Consumer<byte[]> onHash) throws IOException {
+		return encryptingStream(channel, plainSize, context(header), digest, onHash);
+	}
+
+	//Under an existing context, so segments encrypted by earlier streams over the
+	//same file are checked to come out the same
+	public InputStream encryptingStream(FileChannel channel, long plainSize, FileContext ctx,
+			MessageDigest digest, Consumer<byte[]> onHash) throws IOException {
+		return new EncryptingInputStream(channel, plainSize, ctx, digest, onHash);
+	}
+
+	//Encrypts what's written to it under a new header, a segment at a time, for
+	//output whose length isn't known ahead.  A full segment is held back until
+	//more is written, since only close() says which is last, so the output is
+	//the same as encrypt() would give.  Closing it closes out.
+	public OutputStream encryptingStream(OutputStream out) throws IOException {
+		return new EncryptingOutputStream(context(newHeader()), out);
+	}
+
+	//Decrypts a stream in the uncompressed format as it's read, header included.
+	//Nothing of a segment is handed out until it's authenticated, and the end of
+	//the input is only reported once the last segment has checked out as last,
+	//so a reader that gets to the end has read the whole file as written.
+	public InputStream decryptingStream(InputStream in) throws IOException {
+		final FileContext ctx = readContext(in);
+		if(ctx.compressed) throw new IOException("Compressed segments can only be decrypted whole");
+		return new DecryptingInputStream(ctx, in);
+	}
+
+	//Reads the plaintext of one segment, failing if the file has shrunk
+	static int readSegment(FileChannel channel, FileContext ctx, long plainSize, long index, byte[] buf) throws IOException {
+		final long start = index * ctx.segmentSize;
+		final int len = (int)Math.min(ctx.segmentSize, plainSize - start);
+		final ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+		while(bb.hasRemaining()) {
+			if(channel.read(bb, start + bb.position()) == -1) throw new IOException("File shrank while encrypting");
+		}
+		return len;
+	}
+
+	//Compresses and encrypts the file into out in version 3, header included,
+	//starting at position 0, returning the length written.  Segments are done
+	//up to two per core ahead on the pool, and written in order.
+	public long encryptCompressedToChannel(FileChannel in, long plainSize, byte[] header, FileChannel out) throws IOException {
+		final FileContext ctx = context(header);
+		if(!ctx.compressed) throw new IllegalArgumentException("Not a compressed header");
+		writeFully(out, ByteBuffer.wrap(ctx.header), 0);
+		long position = HEADER_LENGTH;
+		final long segments = ctx.segmentCount(plainSize);
+		final boolean inline = getParallelism() == 1;
+		final int readahead = inline ? 1 : getParallelism() * 2;
+		final ArrayDeque<Future<Encrypted>> ahead = new ArrayDeque<>();
+		long next = 0;
+		try {
+			for(long i = 0; i < segments; i++) {
+				while(next < segments && ahead.size() < readahead) {
+					final long index = next++;
+					if(inline) {
+						ahead.add(CompletableFuture.completedFuture(compressSegment(in, ctx, plainSize, index, segments)));
+					} else {
+						ahead.add(getPool().submit(() -> compressSegment(in, ctx, plainSize, index, segments)));
+					}
+				}
+				final Encrypted e = await(ahead.poll());
+				try {
+					writeFully(out, ByteBuffer.wrap(e.buf, 0, e.len), position);
+					position += e.len;
+				} finally {
+					e.release();
+				}
+			}
+		} finally {
+			for(final Future<Encrypted> f : ahead) {
+				try {
+					await(f).release();
+				} catch(IOException ex) {
+					//Already failing
+				}
+			}
+		}
+		return position;
+	}
+
+	//Length prefix and encrypted segment, compressed unless that doesn't save anything
+	private static Encrypted compressSegment(FileChannel channel, FileContext ctx, long plainSize, long index, long segments) throws IOException {
+		final byte[] plain = acquire(ctx.segmentSize);
+		final byte[] framed = acquire(ctx.segmentSize + 1);
+		final byte[] out = acquire(LENGTH_PREFIX + ctx.segmentSize + 1 + TAG_LENGTH);
+		boolean done = false;
+		try {
+			final int len = readSegment(channel, ctx, plainSize, index, plain);
+			int framedLen = Compression.deflate(plain, 0, len, framed, 1, len - 1);
+			if(framedLen < 0) {
+				framed[0] = STORED;
+				System.arraycopy(plain, 0, framed, 1, len);
+				framedLen = 1 + len;
+			} else {
+				framed[0] = DEFLATED;
+				framedLen += 1;
+			}
+			final boolean last = index == segments - 1;
+			final int encLen = ctx.encryptSegment(index, last, framed, 0, framedLen, out, LENGTH_PREFIX);
+			ByteBuffer.wrap(out, 0, LENGTH_PREFIX).putInt(encLen | (last ? LAST_SEGMENT_BIT : 0));
+			done = true;
+			return new Encrypted(out, LENGTH_PREFIX + encLen, null, len);
+		} finally {
+			BUFFERS.release(plain);
+			BUFFERS.release(framed);
+			if(!done) BUFFERS.release(out);
+		}
+	}
+
+	//Encrypts a whole buffer, header included, for objects small enough to be
+	//held in memory
+	public byte[] encrypt(byte[] in, int off, int len) throws IOException {
+		final FileContext ctx = context(newHeader());
+		final long segments = ctx.segmentCount(len);
+		final byte[] out = new byte[(int)ctx.encryptedLength(len)];
+		System.arraycopy(ctx.header, 0, out, 0, HEADER_LENGTH);
+		int outPos = HEADER_LENGTH;
+		for(long i = 0; i < segments; i++) {
+			final int segOff = (int)(i * ctx.segmentSize);
+			final int segLen = Math.min(ctx.segmentSize, len - segOff);
+			outPos += ctx.encryptSegment(i, i == segments - 1, in, off + segOff, segLen, out, outPos);
+		}
+		return out;
+	}
+
+	//Encrypts the file into out, header included, starting at position 0.
+	//Workers each take the next unclaimed segment and write it in place, so
+	//they never wait on each other.
+	public void encryptToChannel(FileChannel in, long plainSize, byte[] header, FileChannel out) throws IOException {
+		final FileContext ctx = context(header);
+		writeFully(out, ByteBuffer.wrap(ctx.header), 0);
+		final long segments = ctx.segmentCount(plainSize);
+		final AtomicLong nextSegment = new AtomicLong(0);
+		final Worker worker = () -> {
+			final byte[] plain = acquire(ctx.segmentSize + TAG_LENGTH + 1);
+			final byte[] enc = acquire(ctx.segmentSize + TAG_LENGTH + 1);
+			try {
+				for(long i = nextSegment.getAndIncrement(); i < segments; i = nextSegment.getAndIncrement()) {
+					final int len = readSegment(in, ctx, plainSize, i, plain);
+					final int encLen = ctx.encryptSegment(i, i == segments - 1, plain, 0, len, enc, 0);
+					writeFully(out, ByteBuffer.wrap(enc, 0, encLen), HEADER_LENGTH + i * (ctx.segmentSize + TAG_LENGTH));
+				}
+			} finally {
+				BUFFERS.release(plain);
+				BUFFERS.release(enc);
+			}
+			return null;
+		};
+		final int workers = (int)Math.min(segments, getParallelism());
+		if(workers <= 1) {
+			worker.call();
+			return;
+		}
+		final List<Future<Void>> futures = new ArrayList<>(workers);
+		for(int i = 0; i < workers; i++) futures.add(getPool().submit(worker::call));
+		IOException failure = null;
+		for(final Future<Void> f : futures) {
+			try {
+				await(f);
+			} catch(IOException ex) {
+				//Stop the others claiming segments, but let them finish theirs
+				nextSegment.set(segments);
+				if(failure == null) failure = ex;
+			}
+		}
+		if(failure != null) throw failure;
+	}
+
+	private interface Worker {
+		public Void call() throws IOException;
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer bb, long position) throws IOException {
+		while(bb.hasRemaining()) position += out.write(bb, position);
+	}
+
+	private static <T> T await(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while encrypting");
+		} catch(ExecutionException ex) {
+			if(ex.getCause() instanceof IOException) throw (IOException)ex.getCause();
+			throw new IOException(ex.getCause());
+		}
+	}
+
+	//One encrypted segment in a pooled buffer, and its plaintext if it's wanted
+	//for hashing
+	private static class Encrypted {
+		final byte[] buf;
+		final int len;
+		final byte[] plain;
+		final int plainLen;
+
+		Encrypted(byte[] buf, int len, byte[] plain, int plainLen) {
+			this.buf = buf;
+			this.len = len;
+			this.plain = plain;
+			this.plainLen = plainLen;
+		}
+
+		void release() {
+			BUFFERS.release(buf);
+			BUFFERS.release(plain);
+		}
+	}
+
+	private static Encrypted encryptSegment(FileChannel channel, FileContext ctx, long plainSize, long index, long segments, boolean keepPlain) throws IOException {
+		final byte[] plain = acquire(ctx.segmentSize + TAG_LENGTH + 1);
+		final byte[] out = acquire(ctx.segmentSize + TAG_LENGTH + 1);
+		boolean kept = false;
+		try {
+			final int len = readSegment(channel, ctx, plainSize, index, plain);
+			final int outLen = ctx.encryptSegment(index, index == segments - 1, plain, 0, len, out, 0);
+			kept = keepPlain;
+			return new Encrypted(out, outLen, keepPlain ? plain : null, len);
+		} catch(IOException | RuntimeException ex) {
+			BUFFERS.release(out);
+			throw ex;
+		} finally {
+			if(!kept) BUFFERS.release(plain);
+		}
+	}
+
+	//Encrypts up to readahead segments ahead of the reader on the pool, and
+	//hands them out in order.  With a digest, the plaintext is hashed in order as
+	//it's handed out, and the hash is passed on once the last segment is.
+	private class EncryptingInputStream extends InputStream {
+		private final FileChannel channel;
+		private final long plainSize;
+		private final FileContext ctx;
+		//Null if not hashing, or if a skip means we haven't seen all of the file
+		private MessageDigest digest;
+		private final Consumer<byte[]> onHash;
+		private final long segments;
+		private final long length;
+		private final int readahead;
+		private final byte[] single = new byte[1];
+		private final ArrayDeque<Future<Encrypted>> ahead = new ArrayDeque<>();
+		private boolean closed = false;
+
+		//Output that's been produced but not read yet
+		private byte[] out;
+		private int outPos = 0;
+		private int outLen = 0;
+		//Next segment to encrypt
+		private long next = 0;
+		//Position in the output
+		private long pos = 0;
+
+		EncryptingInputStream(FileChannel channel, long plainSize, FileContext ctx, MessageDigest digest, Consumer<byte[]> onHash) {
+			this.channel = channel;
+			this.plainSize = plainSize;
+			this.ctx = ctx;
+			this.digest = digest;
+			this.onHash = onHash;
+			this.segments = ctx.segmentCount(plainSize);
+			this.length = ctx.encryptedLength(plainSize);
+			this.readahead = (int)Math.min(segments, getParallelism());
+			this.out = ctx.header.clone();
+			this.outLen = HEADER_LENGTH;
+		}
+
+		//Produces more output, returning false at the end
+		private boolean fill() throws IOException {
+			final Encrypted e;
+			final boolean keepPlain = (digest != null);
+			if(readahead <= 1) {
+				if(next >= segments) return false;
+				e = encryptSegment(channel, ctx, plainSize, next++, segments, keepPlain);
+			} else {
+				while(ahead.size() < readahead && next < segments) {
+					final long index = next++;
+					ahead.add(getPool().submit(() -> encryptSegment(channel, ctx, plainSize, index, segments, keepPlain)));
+				}
+				if(ahead.isEmpty()) return false;
+				e = await(ahead.poll());
+			}
+			if(e.plain != null) {
+				digest.update(e.plain, 0, e.plainLen);
+				BUFFERS.release(e.plain);
+				//Everything is handed out, the last segment being encrypted last
+				if(next == segments && ahead.isEmpty()) {
+					onHash.accept(digest.digest());
+					digest = null;
+				}
+			}
+			BUFFERS.release(out);
+			out = e.buf;
+			outLen = e.len;
+			outPos = 0;
+			return true;
+		}
+
+		//Waits out segments encrypted ahead, returning their buffers
+		private void discardAhead() {
+			for(Future<Encrypted> f = ahead.poll(); f != null; f = ahead.poll()) {
+				try {
+					await(f).release();
+				} catch(IOException ex) {
+					//Not wanted anyway
+				}
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			return (read(single, 0, 1) == -1) ? -1 : (single[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len == 0) return 0;
+			while(outPos == outLen) {
+				if(!fill()) return -1;
+			}
+			final int n = Math.min(len, outLen - outPos);
+			System.arraycopy(out, outPos, b, off, n);
+			outPos += n;
+			pos += n;
+			return n;
+		}
+
+		//Skipping past what's buffered seeks to the segment rather than encrypting
+		//everything before it, since the large file uploader reads each part by
+		//skipping to it
+		@Override
+		public long skip(long n) throws IOException {
+			if(n <= 0) return 0;
+			final long before = pos;
+			final long target = Math.min(pos + n, length);
+			if(target > pos + (outLen - outPos)) {
+				final long segmentOut = ctx.segmentSize + TAG_LENGTH;
+				discardAhead();
+				digest = null;
+				next = (target - HEADER_LENGTH) / segmentOut;
+				pos = HEADER_LENGTH + next * segmentOut;
+				outPos = outLen = 0;
+				if(pos < target && !fill()) return pos - before;
+			}
+			final int discard = (int)(target - pos);
+			outPos += discard;
+			pos += discard;
+			return pos - before;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(closed) return;
+			closed = true;
+			discardAhead();
+			BUFFERS.release(out);
+			out = null;
+			channel.close();
+		}
+	}
+
+	private static class EncryptingOutputStream extends OutputStream {
+		private final FileContext ctx;
+		private final OutputStream out;
+		private final byte[] single = new byte[1];
+		//Plaintext of the segment being filled, and its encryption
+		private byte[] plain;
+		private byte[] enc;
+		private int have = 0;
+		private long index = 0;
+		private boolean closed = false;
+
+		EncryptingOutputStream(FileContext ctx, OutputStream out) throws IOException {
+			this.ctx = ctx;
+			this.out = out;
+			this.plain = acquire(ctx.segmentSize + TAG_LENGTH + 1);
+			this.enc = acquire(ctx.segmentSize + TAG_LENGTH + 1);
+			out.write(ctx.header);
+		}
+
+		private void writeSegment(boolean last) throws IOException {
+			final int n = ctx.encryptSegment(index++, last, plain, 0, have, enc, 0);
+			out.write(enc, 0, n);
+			have = 0;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			single[0] = (byte)b;
+			write(single, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(closed) throw new IOException("Stream closed");
+			while(len > 0) {
+				if(have == ctx.segmentSize) writeSegment(false);
+				final int n = Math.min(len, ctx.segmentSize - have);
+				System.arraycopy(b, off, plain, have, n);
+				have += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		//Only passes on what's been encrypted; the segment being filled waits
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(closed) return;
+			closed = true;
+			try {
+				writeSegment(true);
+			} finally {
+				BUFFERS.release(plain);
+				BUFFERS.release(enc);
+				plain = enc = null;
+				out.close();
+			}
+		}
+	}
+
+	private static class DecryptingInputStream extends InputStream {
+		private final FileContext ctx;
+		private final InputStream in;
+		private final int segmentOut;
+		private final byte[] single = new byte[1];
+		//Encrypted input, with a byte of lookahead past the segment to tell
+		//whether it's the last
+		private byte[] buf;
+		private byte[] plain;
+		private int have = 0;
+		private int plainPos = 0;
+		private int plainLen = 0;
+		private long index = 0;
+		private boolean done = false;
+		private boolean closed = false;
+
+		DecryptingInputStream(FileContext ctx, InputStream in) {
+			this.ctx = ctx;
+			this.in = in;
+			this.segmentOut = ctx.segmentSize + TAG_LENGTH;
+			this.buf = acquire(segmentOut + 1);
+			this.plain = acquire(segmentOut + 1);
+		}
+
+		//Decrypts the next segment, returning false after the last
+		private boolean fill() throws IOException {
+			if(done) return false;
+			final int n = have + in.readNBytes(buf, have, segmentOut + 1 - have);
+			final boolean last = n <= segmentOut;
+			final int len = last ? n : segmentOut;
+			if(len < TAG_LENGTH) throw new IOException("Truncated encrypted stream");
+			plainLen = ctx.decryptSegment(index++, last, buf, 0, len, plain, 0);
+			plainPos = 0;
+			if(last) {
+				done = true;
+			} else {
+				buf[0] = buf[segmentOut];
+				have = 1;
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return (read(single, 0, 1) == -1) ? -1 : (single[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(closed) throw new IOException("Stream closed");
+			if(len == 0) return 0;
+			while(plainPos == plainLen) {
+				if(!fill()) return -1;
+			}
+			final int n = Math.min(len, plainLen - plainPos);
+			System.arraycopy(plain, plainPos, b, off, n);
+			plainPos += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(closed) return;
+			closed = true;
+			BUFFERS.release(buf);
+			BUFFERS.release(plain);
+			buf = plain = null;
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package com.nyeggen.cryptid.util;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Blocking priority queue holding at most a fixed number of elements.  Takes
+//return the least element currently held, so ordering holds within a sliding
+//window of what producers have put, while producers block rather than letting
+//the queue grow without bound.
+public class WindowedPriorityQueue<T extends Comparable<T>> implements Channel<T> {
+	private final PriorityQueue<T> queue;
+	private final int window;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	public WindowedPriorityQueue(int window) {
+		this.window = window;
+		this.queue = new PriorityQueue<>(Math.min(window, 1024));
+	}
+
+	@Override
+	public void put(T t) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while(queue.size() >= window) notFull.await();
+			queue.add(t);
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public T take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while(queue.isEmpty()) notEmpty.await();
+			final T out = queue.poll();
+			notFull.signal();
+			return out;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+}